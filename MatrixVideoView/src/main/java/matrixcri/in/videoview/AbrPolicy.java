@@ -0,0 +1,77 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+/**
+ * Picks an HLS variant from the throughput estimate and the buffer level.
+ * The ideal variant is the highest one whose bandwidth fits in a fraction of
+ * the estimate; with little buffer left the fraction shrinks. To avoid
+ * flapping, quality only goes up once enough is buffered to absorb a wrong
+ * guess, and only goes down while the buffer is not yet comfortable.
+ */
+public class AbrPolicy {
+    private float mBandwidthFraction = 0.75f;
+    private float mLowBufferFraction = 0.5f;
+    private long mLowBufferMs = 5000;
+    private long mMinBufferForIncreaseMs = 10000;
+    private long mMaxBufferForDecreaseMs = 25000;
+
+    /** Share of the estimated throughput a variant may use. */
+    public void setBandwidthFraction(float fraction) {
+        mBandwidthFraction = fraction;
+    }
+
+    /** Share used instead while less than {@code lowBufferMs} is buffered. */
+    public void setLowBuffer(long lowBufferMs, float fraction) {
+        mLowBufferMs = lowBufferMs;
+        mLowBufferFraction = fraction;
+    }
+
+    /** Buffer needed before switching up, and above which a switch down is not needed. */
+    public void setSwitchBuffers(long minForIncreaseMs, long maxForDecreaseMs) {
+        mMinBufferForIncreaseMs = minForIncreaseMs;
+        mMaxBufferForDecreaseMs = maxForDecreaseMs;
+    }
+
+    /**
+     * Returns the index into {@code bandwidths} (ascending, bits per second)
+     * to download next. {@code current} is the variant in use, or -1 before
+     * the first choice.
+     */
+    public int select(long[] bandwidths, int current, long throughput, long bufferedMs) {
+        float fraction = bufferedMs < mLowBufferMs ? mLowBufferFraction : mBandwidthFraction;
+        long budget = (long) (throughput * fraction);
+        int ideal = 0;
+        for (int i = bandwidths.length - 1; i > 0; i--) {
+            if (bandwidths[i] <= budget) {
+                ideal = i;
+                break;
+            }
+        }
+        if (current < 0 || current >= bandwidths.length) {
+            return ideal;
+        }
+        if (ideal > current && bufferedMs < mMinBufferForIncreaseMs) {
+            return current;
+        }
+        if (ideal < current && bufferedMs >= mMaxBufferForDecreaseMs) {
+            return current;
+        }
+        return ideal;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays an {@link AbrPolicy} and a {@link ThroughputEstimator} against a
+ * recorded bandwidth trace without a network or a clock, so a policy change
+ * can be compared offline: the same inputs always give the same result.
+ *
+ * <p>Segments are downloaded one after another at the rate the trace gives
+ * for that moment, playback drains the buffer in real time once the first
+ * segment is in, and downloading waits while the buffer is full.</p>
+ */
+public class AbrSimulator {
+    private final long[] mBandwidths;
+    private final long mSegmentMs;
+    private final int mSegmentCount;
+    private long mMaxBufferMs = 30000;
+    private long mRequestLatencyMs;
+
+    /**
+     * {@code bandwidths} are the variants' bits per second, ascending;
+     * the simulated video has {@code segmentCount} segments of
+     * {@code segmentMs} each.
+     */
+    public AbrSimulator(long[] bandwidths, long segmentMs, int segmentCount) {
+        mBandwidths = bandwidths.clone();
+        mSegmentMs = segmentMs;
+        mSegmentCount = segmentCount;
+    }
+
+    public void setMaxBufferMs(long maxBufferMs) {
+        mMaxBufferMs = maxBufferMs;
+    }
+
+    /** Time before the first byte of each segment arrives. */
+    public void setRequestLatencyMs(long latencyMs) {
+        mRequestLatencyMs = latencyMs;
+    }
+
+    public Result run(Trace trace, AbrPolicy policy, ThroughputEstimator estimator) {
+        Result result = new Result(mSegmentCount);
+        double now = 0;
+        double buffered = 0;
+        boolean playing = false;
+        int current = -1;
+        long bitrateSum = 0;
+        for (int i = 0; i < mSegmentCount; i++) {
+            if (buffered > mMaxBufferMs) {
+                now += buffered - mMaxBufferMs;
+                buffered = mMaxBufferMs;
+            }
+            int variant = policy.select(mBandwidths, current, estimator.getEstimate(), (long) buffered);
+            if (current >= 0 && variant != current) {
+                result.switches++;
+            }
+            current = variant;
+            result.variants[i] = variant;
+            bitrateSum += mBandwidths[variant];
+
+            long bytes = mBandwidths[variant] * mSegmentMs / 8000;
+            double transfer = trace.transferMs(now + mRequestLatencyMs, bytes);
+            double elapsed = mRequestLatencyMs + transfer;
+            if (playing) {
+                if (elapsed > buffered) {
+                    result.stallCount++;
+                    result.stallMs += (long) (elapsed - buffered);
+                    buffered = 0;
+                } else {
+                    buffered -= elapsed;
+                }
+            }
+            now += elapsed;
+            estimator.addSample(bytes, (long) Math.ceil(transfer));
+            buffered += mSegmentMs;
+            if (!playing) {
+                playing = true;
+                result.startupMs = (long) now;
+            }
+        }
+        result.averageBitrate = mSegmentCount == 0 ? 0 : bitrateSum / mSegmentCount;
+        return result;
+    }
+
+    /**
+     * A bandwidth trace: consecutive periods of a fixed rate, repeated from
+     * the start when it runs out.
+     */
+    public static class Trace {
+        private final long[] mDurationsMs;
+        private final long[] mBitsPerSecond;
+        private final long mTotalMs;
+
+        public Trace(long[] durationsMs, long[] bitsPerSecond) {
+            if (durationsMs.length == 0 || durationsMs.length != bitsPerSecond.length) {
+                throw new IllegalArgumentException("Trace needs matching, non-empty periods");
+            }
+            mDurationsMs = durationsMs.clone();
+            mBitsPerSecond = bitsPerSecond.clone();
+            long total = 0;
+            for (long duration : durationsMs) {
+                if (duration <= 0) {
+                    throw new IllegalArgumentException("Period durations must be positive");
+                }
+                total += duration;
+            }
+            mTotalMs = total;
+        }
+
+        /**
+         * Reads one period per line: its duration in milliseconds and its rate
+         * in bits per second, separated by white space. Blank lines and lines
+         * starting with '#' are skipped.
+         */
+        public static Trace parse(Reader reader) throws IOException {
+            BufferedReader in = new BufferedReader(reader);
+            List<long[]> periods = new ArrayList<long[]>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2) {
+                    throw new IOException("Bad trace line: " + line);
+                }
+                try {
+                    periods.add(new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad trace line: " + line);
+                }
+            }
+            long[] durations = new long[periods.size()];
+            long[] rates = new long[periods.size()];
+            for (int i = 0; i < durations.length; i++) {
+                durations[i] = periods.get(i)[0];
+                rates[i] = periods.get(i)[1];
+            }
+            return new Trace(durations, rates);
+        }
+
+        /** Milliseconds needed to move {@code bytes} starting at {@code startMs}. */
+        double transferMs(double startMs, long bytes) {
+            double bits = bytes * 8.0;
+            double position = startMs % mTotalMs;
+            int period = 0;
+            double periodStart = 0;
+            while (periodStart + mDurationsMs[period] <= position) {
+                periodStart += mDurationsMs[period];
+                period++;
+            }
+            double elapsed = 0;
+            int idlePeriods = 0;
+            while (true) {
+                double available = periodStart + mDurationsMs[period] - position;
+                double rate = mBitsPerSecond[period] / 1000.0;
+                if (rate > 0 && bits <= available * rate) {
+                    return elapsed + bits / rate;
+                }
+                bits -= available * rate;
+                elapsed += available;
+                idlePeriods = rate > 0 ? 0 : idlePeriods + 1;
+                if (idlePeriods > mDurationsMs.length) {
+                    return Double.POSITIVE_INFINITY;
+                }
+                periodStart += mDurationsMs[period];
+                position = periodStart;
+                period++;
+                if (period == mDurationsMs.length) {
+                    period = 0;
+                    periodStart = 0;
+                    position = 0;
+                }
+            }
+        }
+    }
+
+    public static class Result {
+        /** Variant chosen for each segment. */
+        public final int[] variants;
+        public int switches;
+        public int stallCount;
+        public long stallMs;
+        public long startupMs;
+        public long averageBitrate;
+
+        Result(int segments) {
+            variants = new int[segments];
+        }
+
+        @Override
+        public String toString() {
+            return "startupMs=" + startupMs + " stalls=" + stallCount + " stallMs=" + stallMs
+                    + " switches=" + switches + " avgBitrate=" + averageBitrate;
+        }
+    }
+}
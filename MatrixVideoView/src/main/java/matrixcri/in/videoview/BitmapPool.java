@@ -0,0 +1,89 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.graphics.Bitmap;
+
+/**
+ * Free list of mutable bitmaps that all have the same size and config, so a
+ * bitmap dropped from a cache can be drawn into again instead of allocating
+ * a new one. Thread safe.
+ */
+class BitmapPool {
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+    private final Bitmap[] mFree;
+    private int mFreeCount;
+    private int mAllocations;
+
+    BitmapPool(int width, int height, Bitmap.Config config, int maxFree) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mFree = new Bitmap[maxFree];
+    }
+
+    Bitmap acquire() {
+        synchronized (this) {
+            if (mFreeCount > 0) {
+                Bitmap bitmap = mFree[--mFreeCount];
+                mFree[mFreeCount] = null;
+                return bitmap;
+            }
+            mAllocations++;
+        }
+        return Bitmap.createBitmap(mWidth, mHeight, mConfig);
+    }
+
+    /** Takes {@code bitmap} back; it must no longer be drawn anywhere. */
+    void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getWidth() != mWidth
+                || bitmap.getHeight() != mHeight) {
+            return;
+        }
+        synchronized (this) {
+            if (mFreeCount < mFree.length) {
+                mFree[mFreeCount++] = bitmap;
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < mFreeCount; i++) {
+            mFree[i].recycle();
+            mFree[i] = null;
+        }
+        mFreeCount = 0;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /** Number of bitmaps created because the pool was empty. */
+    synchronized int getAllocationCount() {
+        return mAllocations;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Random access reads over a video, wherever it lives. Used by code that only
+ * needs a few scattered pieces of a file, such as the MP4 box parser.
+ */
+interface ByteSource {
+    /** Total length in bytes, or -1 if unknown. */
+    long length() throws IOException;
+
+    /**
+     * Reads up to {@code length} bytes at {@code position}. Returns the number
+     * of bytes read, or -1 at the end of the data.
+     */
+    int read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    void close();
+
+    class Factory {
+        /** Opens {@code uri}, or returns null for schemes that cannot be read at random. */
+        static ByteSource open(Context context, Uri uri, Map<String, String> headers) throws IOException {
+            String scheme = uri.getScheme();
+            if (scheme == null || ContentResolver.SCHEME_FILE.equals(scheme)) {
+                RandomAccessFile file = new RandomAccessFile(new File(uri.getPath()), "r");
+                return new ChannelSource(file.getChannel(), file);
+            }
+            if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+                ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+                if (pfd == null) {
+                    return null;
+                }
+                return new ChannelSource(new FileInputStream(pfd.getFileDescriptor()).getChannel(), pfd);
+            }
+            if ("http".equals(scheme) || "https".equals(scheme)) {
+                return new HttpSource(uri.toString(), headers);
+            }
+            return null;
+        }
+    }
+
+    class ChannelSource implements ByteSource {
+        private final FileChannel mChannel;
+        private final Closeable mOwner;
+
+        ChannelSource(FileChannel channel, Closeable owner) {
+            mChannel = channel;
+            mOwner = owner;
+        }
+
+        public long length() throws IOException {
+            return mChannel.size();
+        }
+
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            return mChannel.read(ByteBuffer.wrap(buffer, offset, length), position);
+        }
+
+        public void close() {
+            try {
+                mChannel.close();
+                mOwner.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Reads an HTTP resource with range requests of whole blocks, keeping the
+     * last few blocks so that readers hopping between nearby offsets don't
+     * send a request per read.
+     */
+    class HttpSource implements ByteSource {
+        private static final int BLOCK_SIZE = 32 * 1024;
+        private static final int BLOCK_COUNT = 8;
+        private static final int CONNECT_TIMEOUT = 10000;
+        private static final int READ_TIMEOUT = 15000;
+
+        private final String mUrl;
+        private final Map<String, String> mHeaders;
+        private final byte[][] mBlocks = new byte[BLOCK_COUNT][];
+        private final long[] mBlockIndex = new long[BLOCK_COUNT];
+        private final int[] mBlockLength = new int[BLOCK_COUNT];
+        private int mNextVictim;
+        private long mLength = -1;
+
+        HttpSource(String url, Map<String, String> headers) {
+            mUrl = url;
+            mHeaders = headers;
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                mBlockIndex[i] = -1;
+            }
+        }
+
+        public long length() throws IOException {
+            if (mLength < 0) {
+                block(0);
+            }
+            return mLength;
+        }
+
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (mLength >= 0 && position >= mLength) {
+                return -1;
+            }
+            int slot = block(position / BLOCK_SIZE);
+            int start = (int) (position % BLOCK_SIZE);
+            int n = Math.min(length, mBlockLength[slot] - start);
+            if (n <= 0) {
+                return -1;
+            }
+            System.arraycopy(mBlocks[slot], start, buffer, offset, n);
+            return n;
+        }
+
+        public void close() {
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                mBlocks[i] = null;
+                mBlockIndex[i] = -1;
+            }
+        }
+
+        private int block(long index) throws IOException {
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                if (mBlockIndex[i] == index) {
+                    return i;
+                }
+            }
+            int slot = mNextVictim;
+            mNextVictim = (mNextVictim + 1) % BLOCK_COUNT;
+            if (mBlocks[slot] == null) {
+                mBlocks[slot] = new byte[BLOCK_SIZE];
+            }
+            mBlockIndex[slot] = -1;
+            long start = index * BLOCK_SIZE;
+            HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+            try {
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                if (mHeaders != null) {
+                    for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                        connection.setRequestProperty(header.getKey(), header.getValue());
+                    }
+                }
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + (start + BLOCK_SIZE - 1));
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_PARTIAL && !(code == HttpURLConnection.HTTP_OK && start == 0)) {
+                    throw new IOException("Range request returned " + code + " for " + mUrl);
+                }
+                if (mLength < 0) {
+                    mLength = totalLength(connection);
+                }
+                InputStream in = connection.getInputStream();
+                int filled = 0;
+                try {
+                    int n;
+                    while (filled < BLOCK_SIZE && (n = in.read(mBlocks[slot], filled, BLOCK_SIZE - filled)) != -1) {
+                        filled += n;
+                    }
+                } finally {
+                    in.close();
+                }
+                mBlockLength[slot] = filled;
+                mBlockIndex[slot] = index;
+                return slot;
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private static long totalLength(HttpURLConnection connection) {
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange != null) {
+                int slash = contentRange.lastIndexOf('/');
+                if (slash >= 0) {
+                    try {
+                        return Long.parseLong(contentRange.substring(slash + 1).trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                return -1;
+            }
+            return connection.getContentLength();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import java.io.IOException;
+
+/**
+ * Presents an MP4 whose {@code moov} comes after the media data as if it had
+ * been written fast-start: the boxes before the first {@code mdat}, then the
+ * {@code moov} with its chunk offsets moved past itself, then everything from
+ * that {@code mdat} up to where the {@code moov} was, then whatever followed
+ * it. The length is unchanged. Only the patched {@code moov} is kept in
+ * memory; every other virtual byte maps to one original byte.
+ */
+class FastStartLayout {
+    /** Upper bound on what is read from the end of the file to find the moov. */
+    private static final int MAX_TAIL = 16 * 1024 * 1024;
+    private static final int HEAD_PROBE = 64 * 1024;
+
+    private static final int MOOV = Mp4Parser.fourcc("moov");
+    private static final int MDAT = Mp4Parser.fourcc("mdat");
+    private static final int TRAK = Mp4Parser.fourcc("trak");
+    private static final int MDIA = Mp4Parser.fourcc("mdia");
+    private static final int MINF = Mp4Parser.fourcc("minf");
+    private static final int STBL = Mp4Parser.fourcc("stbl");
+    private static final int STCO = Mp4Parser.fourcc("stco");
+    private static final int CO64 = Mp4Parser.fourcc("co64");
+
+    final long mdatOffset;
+    final long moovOffset;
+    final long total;
+    final byte[] moov;
+
+    private FastStartLayout(long mdatOffset, long moovOffset, long total, byte[] moov) {
+        this.mdatOffset = mdatOffset;
+        this.moovOffset = moovOffset;
+        this.total = total;
+        this.moov = moov;
+    }
+
+    long moovEnd() {
+        return moovOffset + moov.length;
+    }
+
+    /**
+     * Returns where virtual offset {@code position} comes from: an original
+     * file offset, or -1 if it falls inside the relocated {@code moov}.
+     * {@code segmentEnd[0]} receives the end (exclusive) of the stretch of
+     * virtual bytes that map the same way.
+     */
+    long toOriginal(long position, long[] segmentEnd) {
+        long moovStart = mdatOffset;
+        long moovStop = mdatOffset + moov.length;
+        if (position < moovStart) {
+            segmentEnd[0] = moovStart;
+            return position;
+        }
+        if (position < moovStop) {
+            segmentEnd[0] = moovStop;
+            return -1;
+        }
+        if (position < moovEnd()) {
+            segmentEnd[0] = moovEnd();
+            return position - moov.length;
+        }
+        segmentEnd[0] = total;
+        return position;
+    }
+
+    /**
+     * Reads the head of {@code source} and, if the first {@code mdat} is
+     * followed by the {@code moov}, everything after that {@code mdat} in one
+     * read. {@code listener} hears where the {@code mdat} is before the tail is
+     * requested, so its first bytes can be fetched at the same time. Returns
+     * null for files that are already fast-start, are not MP4 or cannot be
+     * relocated.
+     */
+    static FastStartLayout probe(ByteSource source, OnMediaDataListener listener) throws IOException {
+        byte[] head = new byte[HEAD_PROBE];
+        int headLength = readFully(source, 0, head, head.length);
+        long total = source.length();
+        if (total <= 0) {
+            return null;
+        }
+        long position = 0;
+        long mdatOffset = -1;
+        long tailStart = -1;
+        while (position + 16 <= headLength) {
+            int at = (int) position;
+            long size = readUInt(head, at);
+            int type = readInt(head, at + 4);
+            if (size == 1) {
+                size = readLong(head, at + 8);
+            } else if (size == 0) {
+                return null;
+            }
+            if (size < 8 || type == MOOV) {
+                return null;
+            }
+            if (type == MDAT) {
+                mdatOffset = position;
+                tailStart = position + size;
+                break;
+            }
+            position += size;
+        }
+        if (mdatOffset < 0 || tailStart >= total || total - tailStart > MAX_TAIL) {
+            return null;
+        }
+        if (listener != null) {
+            listener.onMediaData(mdatOffset, tailStart - mdatOffset);
+        }
+        byte[] tail = new byte[(int) (total - tailStart)];
+        if (readFully(source, tailStart, tail, tail.length) != tail.length) {
+            return null;
+        }
+        for (int at = 0; at + 8 <= tail.length; ) {
+            long size = readUInt(tail, at);
+            int type = readInt(tail, at + 4);
+            if (size < 8 || at + size > tail.length) {
+                return null;
+            }
+            if (type == MOOV) {
+                byte[] moov = new byte[(int) size];
+                System.arraycopy(tail, at, moov, 0, moov.length);
+                long moovOffset = tailStart + at;
+                if (shiftChunkOffsets(moov, 8, moov.length, mdatOffset, moovOffset, size) <= 0) {
+                    return null;
+                }
+                return new FastStartLayout(mdatOffset, moovOffset, total, moov);
+            }
+            at += (int) size;
+        }
+        return null;
+    }
+
+    /**
+     * Adds {@code shift} to every chunk offset from {@code from} up to
+     * {@code until} (exclusive) in the boxes between {@code start} and
+     * {@code end}: data after the {@code moov} does not move. Returns the number of chunk
+     * offset tables patched, or -1 if the boxes are malformed or a 32 bit
+     * offset would overflow.
+     */
+    private static int shiftChunkOffsets(byte[] box, int start, int end, long from, long until, long shift) {
+        int tables = 0;
+        int at = start;
+        while (at + 8 <= end) {
+            long size = readUInt(box, at);
+            int type = readInt(box, at + 4);
+            if (size < 8 || at + size > end) {
+                return -1;
+            }
+            int boxEnd = at + (int) size;
+            if (type == TRAK || type == MDIA || type == MINF || type == STBL) {
+                int nested = shiftChunkOffsets(box, at + 8, boxEnd, from, until, shift);
+                if (nested < 0) {
+                    return -1;
+                }
+                tables += nested;
+            } else if (type == STCO || type == CO64) {
+                if (boxEnd - at < 16) {
+                    return -1;
+                }
+                long count = readUInt(box, at + 12);
+                int entry = type == CO64 ? 8 : 4;
+                if (at + 16 + count * entry > boxEnd) {
+                    return -1;
+                }
+                for (int i = 0, p = at + 16; i < count; i++, p += entry) {
+                    long offset = type == CO64 ? readLong(box, p) : readUInt(box, p);
+                    if (offset < from || offset >= until) {
+                        continue;
+                    }
+                    offset += shift;
+                    if (type == CO64) {
+                        writeLong(box, p, offset);
+                    } else if (offset > 0xffffffffL) {
+                        return -1;
+                    } else {
+                        writeInt(box, p, (int) offset);
+                    }
+                }
+                tables++;
+            }
+            at = boxEnd;
+        }
+        return tables;
+    }
+
+    private static int readFully(ByteSource source, long position, byte[] buffer, int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            int n = source.read(position + done, buffer, done, length - done);
+            if (n < 0) {
+                break;
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+    }
+
+    private static long readUInt(byte[] b, int i) {
+        return readInt(b, i) & 0xffffffffL;
+    }
+
+    private static long readLong(byte[] b, int i) {
+        return readUInt(b, i) << 32 | readUInt(b, i + 4);
+    }
+
+    private static void writeInt(byte[] b, int i, int value) {
+        b[i] = (byte) (value >>> 24);
+        b[i + 1] = (byte) (value >>> 16);
+        b[i + 2] = (byte) (value >>> 8);
+        b[i + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] b, int i, long value) {
+        writeInt(b, i, (int) (value >>> 32));
+        writeInt(b, i + 4, (int) value);
+    }
+
+    interface OnMediaDataListener {
+        void onMediaData(long offset, long size);
+    }
+}
@@ -0,0 +1,747 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.support.v4.content.ContextCompat;
+import android.util.AttributeSet;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Drop-in alternative to {@link MatrixMediaController} that draws the same
+ * controls (title bar, play/pause, progress with buffer, times, scale and
+ * back buttons, loading/error/replay states) in a single {@link #onDraw}
+ * and does its own hit testing. Showing, hiding and progress ticks only
+ * invalidate the bars that changed; nothing is measured or laid out again.
+ */
+public class FlatMediaController extends View implements MediaControllerView {
+    private static final int sDefaultTimeout = 3000;
+    private static final int MIN_PROGRESS_INTERVAL = 16;
+
+    private static final int CENTER_NONE = 0;
+    private static final int CENTER_LOADING = 1;
+    private static final int CENTER_ERROR = 2;
+    private static final int CENTER_COMPLETE = 3;
+
+    private static final int SHOW_LOADING = 1;
+    private static final int HIDE_LOADING = 2;
+    private static final int SHOW_ERROR = 3;
+    private static final int HIDE_ERROR = 4;
+    private static final int SHOW_COMPLETE = 5;
+    private static final int HIDE_COMPLETE = 6;
+
+    private static final int TARGET_NONE = 0;
+    private static final int TARGET_PLAY = 1;
+    private static final int TARGET_SCALE = 2;
+    private static final int TARGET_BACK = 3;
+    private static final int TARGET_SEEK = 4;
+    private static final int TARGET_CENTER = 5;
+
+    private static final int BAR_COLOR = 0x7f000000;
+    private static final int TEXT_COLOR = 0xfff0f0f0;
+    private static final int TRACK_COLOR = 0x70ffffff;
+    private static final int BUFFER_COLOR = 0x90ffffff;
+
+    /** The spinner turns in steps at this interval, about 30 fps. */
+    private static final int LOADING_FRAME_MS = 33;
+    private static final float LOADING_STEP_DEGREES = 24;
+
+    private MatrixMediaController.MediaPlayerControl mPlayer;
+    private boolean mScalable = false;
+    private boolean mShowing = true;
+    private boolean mIsFullScreen = false;
+    private boolean mDragging;
+    private int mCenter = CENTER_NONE;
+    private String mTitle;
+
+    private long mFadeOutAt;
+    private long mProgressAt;
+    private final int[] mPendingCenters = new int[4];
+    private int mPendingCount;
+    private boolean mAttached;
+
+    private int mTouchTarget = TARGET_NONE;
+    private int mDragPosition;
+    private boolean mHidOnDown;
+
+    private int mDuration;
+    private int mPosition;
+    private int mBufferPercentage;
+    private boolean mPlaying;
+    private final TimeText mEndTimeText = new TimeText();
+    private final TimeText mCurrentTimeText = new TimeText();
+
+    private final Paint mBarPaint = new Paint();
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTitlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTrackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mThumbnailPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private Drawable mPlayIcon;
+    private Drawable mPauseIcon;
+    private Drawable mScaleIcon;
+    private Drawable mZoomInIcon;
+    private Drawable mBackIcon;
+    private Drawable mCenterPlayIcon;
+    private Drawable mErrorIcon;
+    private Drawable mLoadingIcon;
+    private Drawable mThumb;
+
+    private final float mDensity;
+    private final int mBarHeight;
+    private final Rect mTopBar = new Rect();
+    private final Rect mBottomBar = new Rect();
+    private final Rect mPlayRect = new Rect();
+    private final Rect mScaleRect = new Rect();
+    private final Rect mBackRect = new Rect();
+    private final Rect mCenterRect = new Rect();
+    private final RectF mTrack = new RectF();
+    private final RectF mTrackPart = new RectF();
+    private float mCurrentTimeX;
+    private float mEndTimeX;
+    private float mTextBaseline;
+    private boolean mLongTimes;
+    private float mLoadingAngle;
+    private final Rect mLoadingRect = new Rect();
+    private String mLoadingText;
+    private String mErrorText;
+    private ThumbnailEngine mThumbnails;
+    private Bitmap mThumbnail;
+    private final Rect mThumbnailSrc = new Rect();
+    private final Rect mThumbnailRect = new Rect();
+
+    public FlatMediaController(Context context) {
+        this(context, null);
+    }
+
+    public FlatMediaController(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        if (attrs != null) {
+            TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.MatrixMediaController);
+            mScalable = a.getBoolean(R.styleable.MatrixMediaController_mvv_scalable, false);
+            a.recycle();
+        }
+        mDensity = getResources().getDisplayMetrics().density;
+        mBarHeight = dp(50);
+        init(context);
+    }
+
+    private void init(Context context) {
+        mBarPaint.setColor(BAR_COLOR);
+        mTextPaint.setColor(TEXT_COLOR);
+        mTextPaint.setTextSize(14 * getResources().getDisplayMetrics().scaledDensity);
+        mTitlePaint.setColor(Color.WHITE);
+        mTitlePaint.setTextSize(dp(18));
+        mTitlePaint.setTextAlign(Paint.Align.CENTER);
+
+        mPlayIcon = ContextCompat.getDrawable(context, R.drawable.matrix_player_player_btn);
+        mPauseIcon = ContextCompat.getDrawable(context, R.drawable.matrix_stop_btn);
+        mScaleIcon = ContextCompat.getDrawable(context, R.drawable.matrix_player_scale_btn);
+        mZoomInIcon = ContextCompat.getDrawable(context, R.drawable.matrix_star_zoom_in);
+        mBackIcon = ContextCompat.getDrawable(context, R.drawable.matrix_back_btn);
+        mCenterPlayIcon = ContextCompat.getDrawable(context, R.drawable.matrix_itv_player_play);
+        mErrorIcon = ContextCompat.getDrawable(context, R.drawable.matrix_on_error);
+        mLoadingIcon = ContextCompat.getDrawable(context, R.drawable.matrixVideoView_common_ic_loading_icon);
+        mThumb = ContextCompat.getDrawable(context, R.drawable.matrix_seek_dot);
+        mLoadingText = context.getString(R.string.mvv_loading);
+        mErrorText = context.getString(R.string.mvv_error);
+        setClickable(true);
+        setFocusable(true);
+    }
+
+    public void setMediaPlayer(MatrixMediaController.MediaPlayerControl player) {
+        mPlayer = player;
+        invalidate(mBottomBar.left, mBottomBar.top, mBottomBar.right, mBottomBar.bottom);
+    }
+
+    public MatrixMediaController.MediaPlayerControl getMediaPlayer() {
+        return mPlayer;
+    }
+
+    /** Draws previews from {@code engine} above the track while it is dragged. */
+    public void setThumbnailEngine(ThumbnailEngine engine) {
+        if (mThumbnails != null) {
+            mThumbnails.setListener(null);
+        }
+        mThumbnails = engine;
+        mThumbnail = null;
+        if (engine != null) {
+            engine.setListener(mThumbnailListener);
+        }
+    }
+
+    private ThumbnailEngine.Listener mThumbnailListener = new ThumbnailEngine.Listener() {
+        public void onThumbnailReady(int timeMs, Bitmap thumbnail) {
+            if (mDragging) {
+                mThumbnail = thumbnail;
+                invalidate();
+            }
+        }
+    };
+
+    public void setTitle(String title) {
+        mTitle = title;
+        invalidate(mTopBar.left, mTopBar.top, mTopBar.right, mTopBar.bottom);
+    }
+
+    public void show() {
+        show(sDefaultTimeout);
+    }
+
+    public void show(int timeout) {
+        if (!mShowing) {
+            mShowing = true;
+            updateProgress();
+            invalidateBars();
+        }
+        long now = SystemClock.uptimeMillis();
+        mProgressAt = now;
+        if (timeout != 0) {
+            mFadeOutAt = now + timeout;
+        }
+        scheduleTick();
+    }
+
+    public boolean isShowing() {
+        return mShowing;
+    }
+
+    public void hide() {
+        if (mShowing) {
+            mShowing = false;
+            mProgressAt = 0;
+            scheduleTick();
+            invalidateBars();
+        }
+    }
+
+    public void showLoading() {
+        postCenter(SHOW_LOADING);
+    }
+
+    public void hideLoading() {
+        postCenter(HIDE_LOADING);
+    }
+
+    public void showError() {
+        postCenter(SHOW_ERROR);
+    }
+
+    public void hideError() {
+        postCenter(HIDE_ERROR);
+    }
+
+    public void showComplete() {
+        postCenter(SHOW_COMPLETE);
+    }
+
+    public void hideComplete() {
+        postCenter(HIDE_COMPLETE);
+    }
+
+    public void toggleButtons(boolean isFullScreen) {
+        mIsFullScreen = isFullScreen;
+        invalidateBars();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        invalidate(mBottomBar.left, mBottomBar.top, mBottomBar.right, mBottomBar.bottom);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        scheduleTick();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mAttached = false;
+        UiTicker.getInstance().cancel(mTickClient);
+        if (mThumbnails != null) {
+            mThumbnails.cancel();
+        }
+    }
+
+    private void applyCenter(int what) {
+        switch (what) {
+            case SHOW_LOADING:
+                show();
+                setCenter(CENTER_LOADING);
+                break;
+            case SHOW_COMPLETE:
+                setCenter(CENTER_COMPLETE);
+                break;
+            case SHOW_ERROR:
+                show();
+                setCenter(CENTER_ERROR);
+                break;
+            case HIDE_LOADING:
+            case HIDE_ERROR:
+            case HIDE_COMPLETE:
+                hide();
+                setCenter(CENTER_NONE);
+                break;
+        }
+    }
+
+    // Queued rather than replaced, so changes posted in the same frame are all
+    // applied, in order, as the Handler messages before them were.
+    private void postCenter(int what) {
+        if (mPendingCount == mPendingCenters.length) {
+            System.arraycopy(mPendingCenters, 1, mPendingCenters, 0, mPendingCount - 1);
+            mPendingCount--;
+        }
+        mPendingCenters[mPendingCount++] = what;
+        scheduleTick();
+    }
+
+    private void scheduleTick() {
+        if (!mAttached) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        if (mPendingCount != 0) {
+            next = 0;
+        }
+        if (mFadeOutAt != 0) {
+            next = Math.min(next, mFadeOutAt);
+        }
+        if (mProgressAt != 0) {
+            next = Math.min(next, mProgressAt);
+        }
+        if (next == Long.MAX_VALUE) {
+            UiTicker.getInstance().cancel(mTickClient);
+        } else {
+            UiTicker.getInstance().schedule(mTickClient, next);
+        }
+    }
+
+    private UiTicker.Client mTickClient = new UiTicker.Client() {
+        public void onTick(long now) {
+            int pending = mPendingCount;
+            mPendingCount = 0;
+            for (int i = 0; i < pending; i++) {
+                applyCenter(mPendingCenters[i]);
+            }
+            if (mFadeOutAt != 0 && now >= mFadeOutAt) {
+                mFadeOutAt = 0;
+                hide();
+            }
+            if (mProgressAt != 0 && now >= mProgressAt) {
+                mProgressAt = 0;
+                updateProgress();
+                if (!mDragging && mShowing && mPlayer != null && mPlayer.isPlaying()) {
+                    mProgressAt = now + progressInterval();
+                }
+            }
+            scheduleTick();
+        }
+    };
+
+    private long progressInterval() {
+        long interval = 1000 - (mPosition % 1000);
+        float width = mTrack.right - mTrack.left;
+        if (mDuration > 0 && width > 0) {
+            interval = Math.min(interval, (long) (mDuration / width));
+        }
+        return Math.max(interval, MIN_PROGRESS_INTERVAL);
+    }
+
+    private void setCenter(int center) {
+        if (mCenter != center) {
+            mCenter = center;
+            invalidate();
+        }
+    }
+
+    // Reads the player and invalidates the bottom bar only if something
+    // visible there has changed.
+    private void updateProgress() {
+        if (mPlayer == null || mDragging) {
+            return;
+        }
+        int duration = mPlayer.getDuration();
+        int position = mPlayer.getCurrentPosition();
+        int buffer = mPlayer.getBufferPercentage();
+        boolean playing = mPlayer.isPlaying();
+        boolean changed = mEndTimeText.set(duration) | mCurrentTimeText.set(position)
+                || playing != mPlaying;
+        boolean longTimes = duration >= 3600 * 1000;
+        if (longTimes != mLongTimes) {
+            mLongTimes = longTimes;
+            layoutBottomBar();
+            changed = true;
+        }
+        if (!changed && duration > 0) {
+            float width = mTrack.right - mTrack.left;
+            changed = (int) (width * position / duration) != (int) (width * mPosition / duration)
+                    || buffer != mBufferPercentage;
+        }
+        mDuration = duration;
+        mPosition = position;
+        mBufferPercentage = buffer;
+        mPlaying = playing;
+        if (changed) {
+            invalidate(mBottomBar.left, mBottomBar.top, mBottomBar.right, mBottomBar.bottom);
+        }
+    }
+
+    private void invalidateBars() {
+        invalidate(mTopBar.left, mTopBar.top, mTopBar.right, mTopBar.bottom);
+        invalidate(mBottomBar.left, mBottomBar.top, mBottomBar.right, mBottomBar.bottom);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mTopBar.set(0, 0, w, mBarHeight);
+        mBottomBar.set(0, h - mBarHeight, w, h);
+        mBackRect.set(0, 0, mBarHeight, mBarHeight);
+        int cw = mCenterPlayIcon != null ? mCenterPlayIcon.getIntrinsicWidth() : mBarHeight;
+        int ch = mCenterPlayIcon != null ? mCenterPlayIcon.getIntrinsicHeight() : mBarHeight;
+        mCenterRect.set((w - cw) / 2, (h - ch) / 2, (w + cw) / 2, (h + ch) / 2);
+        layoutBottomBar();
+    }
+
+    private void layoutBottomBar() {
+        int top = mBottomBar.top;
+        int left = dp(3);
+        mPlayRect.set(left, top, left + mBarHeight, mBottomBar.bottom);
+        int right = mBottomBar.right;
+        if (mScalable) {
+            right -= dp(3);
+            mScaleRect.set(right - mBarHeight, top, right, mBottomBar.bottom);
+            right = mScaleRect.left;
+        } else {
+            mScaleRect.set(0, 0, 0, 0);
+        }
+        float textWidth = mTextPaint.measureText(mLongTimes ? "00:00:00" : "00:00");
+        mCurrentTimeX = mPlayRect.right + dp(10);
+        mEndTimeX = right - dp(10) - textWidth;
+        float trackHeight = dp(2);
+        float centerY = top + mBarHeight / 2f;
+        mTrack.set(mCurrentTimeX + textWidth + dp(10), centerY - trackHeight / 2,
+                mEndTimeX - dp(10), centerY + trackHeight / 2);
+        mTextBaseline = centerY - (mTextPaint.descent() + mTextPaint.ascent()) / 2;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        switch (mCenter) {
+            case CENTER_LOADING:
+                canvas.drawColor(Color.BLACK);
+                drawCenteredWithText(canvas, mLoadingIcon, mLoadingText, mLoadingAngle);
+                scheduleLoadingFrame();
+                break;
+            case CENTER_ERROR:
+                canvas.drawColor(Color.BLACK);
+                drawCenteredWithText(canvas, mErrorIcon, mErrorText, 0);
+                break;
+            case CENTER_COMPLETE:
+                drawIcon(canvas, mCenterPlayIcon, mCenterRect);
+                break;
+        }
+        if (!mShowing) {
+            return;
+        }
+        canvas.drawRect(mTopBar.left, mTopBar.top, mTopBar.right, mTopBar.bottom, mBarPaint);
+        if (mIsFullScreen) {
+            drawIcon(canvas, mBackIcon, mBackRect);
+        }
+        if (mTitle != null) {
+            float baseline = mTopBar.exactCenterY()
+                    - (mTitlePaint.descent() + mTitlePaint.ascent()) / 2;
+            canvas.drawText(mTitle, mTopBar.exactCenterX(), baseline, mTitlePaint);
+        }
+
+        canvas.drawRect(mBottomBar.left, mBottomBar.top, mBottomBar.right, mBottomBar.bottom, mBarPaint);
+        drawIcon(canvas, mPlaying ? mPauseIcon : mPlayIcon, mPlayRect);
+        if (mScalable) {
+            drawIcon(canvas, mIsFullScreen ? mZoomInIcon : mScaleIcon, mScaleRect);
+        }
+        canvas.drawText(mCurrentTimeText.getChars(), 0, mCurrentTimeText.getLength(),
+                mCurrentTimeX, mTextBaseline, mTextPaint);
+        canvas.drawText(mEndTimeText.getChars(), 0, mEndTimeText.getLength(),
+                mEndTimeX, mTextBaseline, mTextPaint);
+
+        float width = mTrack.right - mTrack.left;
+        float radius = dp(5);
+        mTrackPaint.setColor(TRACK_COLOR);
+        canvas.drawRoundRect(mTrack, radius, radius, mTrackPaint);
+        mTrackPaint.setColor(BUFFER_COLOR);
+        mTrackPart.set(mTrack.left, mTrack.top, mTrack.left + width * mBufferPercentage / 100f, mTrack.bottom);
+        canvas.drawRoundRect(mTrackPart, radius, radius, mTrackPaint);
+        int position = mDragging ? mDragPosition : mPosition;
+        float progressX = mTrack.left + (mDuration > 0 ? width * position / mDuration : 0);
+        mTrackPaint.setColor(Color.WHITE);
+        mTrackPart.set(mTrack.left, mTrack.top, progressX, mTrack.bottom);
+        canvas.drawRoundRect(mTrackPart, radius, radius, mTrackPaint);
+        if (mThumb != null) {
+            int tw = mThumb.getIntrinsicWidth() / 2;
+            int th = mThumb.getIntrinsicHeight() / 2;
+            int cy = (int) mTrack.centerY();
+            mThumb.setBounds((int) progressX - tw, cy - th, (int) progressX + tw, cy + th);
+            mThumb.draw(canvas);
+        }
+        if (mDragging && mThumbnail != null) {
+            int w = dp(160);
+            int h = dp(90);
+            int left = Math.max(0, Math.min(getWidth() - w, (int) progressX - w / 2));
+            int bottom = mBottomBar.top - dp(6);
+            mThumbnailRect.set(left, bottom - h, left + w, bottom);
+            mThumbnailSrc.set(0, 0, mThumbnail.getWidth(), mThumbnail.getHeight());
+            canvas.drawBitmap(mThumbnail, mThumbnailSrc, mThumbnailRect, mThumbnailPaint);
+        }
+    }
+
+    private void drawIcon(Canvas canvas, Drawable icon, Rect area) {
+        if (icon == null) {
+            return;
+        }
+        int w = Math.min(icon.getIntrinsicWidth(), area.width());
+        int h = Math.min(icon.getIntrinsicHeight(), area.height());
+        int left = area.left + (area.width() - w) / 2;
+        int top = area.top + (area.height() - h) / 2;
+        icon.setBounds(left, top, left + w, top + h);
+        icon.draw(canvas);
+    }
+
+    // Only the square the rotating icon sweeps is redrawn, a step at a time.
+    private void scheduleLoadingFrame() {
+        if (mLoadingIcon == null) {
+            return;
+        }
+        Rect icon = mLoadingIcon.getBounds();
+        int radius = (int) Math.ceil(Math.hypot(icon.width(), icon.height()) / 2) + 1;
+        mLoadingRect.set(icon.centerX() - radius, icon.centerY() - radius,
+                icon.centerX() + radius, icon.centerY() + radius);
+        mLoadingAngle = (mLoadingAngle + LOADING_STEP_DEGREES) % 360;
+        postInvalidateDelayed(LOADING_FRAME_MS, mLoadingRect.left, mLoadingRect.top,
+                mLoadingRect.right, mLoadingRect.bottom);
+    }
+
+    private void drawCenteredWithText(Canvas canvas, Drawable icon, String text, float rotation) {
+        int w = icon != null ? icon.getIntrinsicWidth() : 0;
+        int h = icon != null ? icon.getIntrinsicHeight() : 0;
+        float cx = getWidth() / 2f;
+        float cy = getHeight() / 2f;
+        if (icon != null) {
+            int left = (int) (cx - w / 2f);
+            int top = (int) (cy - h);
+            icon.setBounds(left, top, left + w, top + h);
+            canvas.save();
+            canvas.rotate(rotation, cx, top + h / 2f);
+            icon.draw(canvas);
+            canvas.restore();
+        }
+        float textWidth = mTextPaint.measureText(text);
+        canvas.drawText(text, cx - textWidth / 2, cy + dp(10) - mTextPaint.ascent(), mTextPaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        int x = (int) event.getX();
+        int y = (int) event.getY();
+        switch (event.getAction()) {
+            case MotionEvent.ACTION_DOWN:
+                mTouchTarget = hitTest(x, y);
+                mHidOnDown = false;
+                if (mTouchTarget == TARGET_SEEK) {
+                    startDrag(event.getX());
+                } else if (mTouchTarget == TARGET_NONE && mShowing) {
+                    hide();
+                    mHidOnDown = true;
+                } else {
+                    show(0);
+                }
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                if (mTouchTarget == TARGET_SEEK) {
+                    updateDrag(event.getX());
+                }
+                return true;
+            case MotionEvent.ACTION_UP:
+                int target = mTouchTarget;
+                mTouchTarget = TARGET_NONE;
+                if (target == TARGET_SEEK) {
+                    stopDrag(true);
+                } else if (target != TARGET_NONE && target == hitTest(x, y)) {
+                    performTarget(target);
+                }
+                if (!mHidOnDown) {
+                    show(sDefaultTimeout);
+                }
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                if (mTouchTarget == TARGET_SEEK) {
+                    stopDrag(false);
+                }
+                mTouchTarget = TARGET_NONE;
+                hide();
+                return true;
+        }
+        return true;
+    }
+
+    private int hitTest(int x, int y) {
+        if (mPlayer == null || !isEnabled()) {
+            return TARGET_NONE;
+        }
+        if (mCenter == CENTER_COMPLETE && mCenterRect.contains(x, y)) {
+            return TARGET_CENTER;
+        }
+        if (!mShowing) {
+            return TARGET_NONE;
+        }
+        if (mIsFullScreen && mBackRect.contains(x, y)) {
+            return TARGET_BACK;
+        }
+        if (!mBottomBar.contains(x, y)) {
+            return TARGET_NONE;
+        }
+        if (mPlayRect.contains(x, y)) {
+            return TARGET_PLAY;
+        }
+        if (mScalable && mScaleRect.contains(x, y)) {
+            return TARGET_SCALE;
+        }
+        if (x >= mTrack.left - dp(10) && x <= mTrack.right + dp(10)) {
+            return TARGET_SEEK;
+        }
+        return TARGET_NONE;
+    }
+
+    private void performTarget(int target) {
+        switch (target) {
+            case TARGET_PLAY:
+                doPauseResume();
+                break;
+            case TARGET_SCALE:
+                mIsFullScreen = !mIsFullScreen;
+                invalidateBars();
+                mPlayer.setFullscreen(mIsFullScreen);
+                break;
+            case TARGET_BACK:
+                if (mIsFullScreen) {
+                    mIsFullScreen = false;
+                    invalidateBars();
+                    mPlayer.setFullscreen(false);
+                }
+                break;
+            case TARGET_CENTER:
+                setCenter(CENTER_NONE);
+                mPlayer.start();
+                break;
+        }
+    }
+
+    private void startDrag(float x) {
+        show(3600000);
+        mDragging = true;
+        mProgressAt = 0;
+        scheduleTick();
+        if (mPlayer instanceof MatrixMediaController.ScrubControl) {
+            ((MatrixMediaController.ScrubControl) mPlayer).beginScrub();
+        }
+        updateDrag(x);
+    }
+
+    private void updateDrag(float x) {
+        float width = mTrack.right - mTrack.left;
+        float fraction = width > 0 ? Math.max(0f, Math.min(1f, (x - mTrack.left) / width)) : 0f;
+        int position = (int) (mPlayer.getDuration() * fraction);
+        if (position != mDragPosition && mPlayer instanceof MatrixMediaController.ScrubControl) {
+            ((MatrixMediaController.ScrubControl) mPlayer).scrubTo(position);
+        }
+        mDragPosition = position;
+        mCurrentTimeText.set(mDragPosition);
+        if (mThumbnails != null) {
+            Bitmap thumbnail = mThumbnails.request(position);
+            if (thumbnail != null) {
+                mThumbnail = thumbnail;
+            }
+            invalidate();
+            return;
+        }
+        invalidate(mBottomBar.left, mBottomBar.top, mBottomBar.right, mBottomBar.bottom);
+    }
+
+    private void stopDrag(boolean commit) {
+        mDragging = false;
+        if (mThumbnails != null) {
+            mThumbnails.cancel();
+            invalidate();
+        }
+        if (mPlayer instanceof MatrixMediaController.ScrubControl) {
+            ((MatrixMediaController.ScrubControl) mPlayer).endScrub(commit ? mDragPosition : -1);
+        } else if (commit) {
+            mPlayer.seekTo(mDragPosition);
+        }
+        if (commit) {
+            mPosition = mDragPosition;
+        }
+        updateProgress();
+        invalidate(mBottomBar.left, mBottomBar.top, mBottomBar.right, mBottomBar.bottom);
+    }
+
+    private void doPauseResume() {
+        if (mPlayer.isPlaying()) {
+            mPlayer.pause();
+        } else {
+            mPlayer.start();
+        }
+        updateProgress();
+        invalidate(mBottomBar.left, mBottomBar.top, mBottomBar.right, mBottomBar.bottom);
+    }
+
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        int keyCode = event.getKeyCode();
+        boolean uniqueDown = event.getRepeatCount() == 0 && event.getAction() == KeyEvent.ACTION_DOWN;
+        if (mPlayer != null && (keyCode == KeyEvent.KEYCODE_HEADSETHOOK
+                || keyCode == KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE
+                || keyCode == KeyEvent.KEYCODE_SPACE)) {
+            if (uniqueDown) {
+                doPauseResume();
+                show(sDefaultTimeout);
+            }
+            return true;
+        }
+        return super.dispatchKeyEvent(event);
+    }
+
+    private int dp(float value) {
+        return (int) (value * mDensity + 0.5f);
+    }
+}
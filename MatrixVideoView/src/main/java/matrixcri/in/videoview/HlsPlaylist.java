@@ -0,0 +1,198 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Just enough of an HLS (m3u8) parser for variant selection: the variants of
+ * a master playlist, and the segments of a media playlist with the tags that
+ * go with each, all with absolute URIs.
+ */
+class HlsPlaylist {
+    private static final String STREAM_INF = "#EXT-X-STREAM-INF:";
+    private static final String EXTINF = "#EXTINF:";
+    private static final String END_LIST = "#EXT-X-ENDLIST";
+    private static final Pattern BANDWIDTH = Pattern.compile("(?:^|,)BANDWIDTH=(\\d+)");
+    private static final Pattern RESOLUTION = Pattern.compile("(?:^|,)RESOLUTION=(\\d+)x(\\d+)");
+    private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"([^\"]*)\"");
+
+    static class Variant {
+        final long bandwidth;
+        final int width;
+        final int height;
+        final String uri;
+        final String attributes;
+
+        Variant(long bandwidth, int width, int height, String uri, String attributes) {
+            this.bandwidth = bandwidth;
+            this.width = width;
+            this.height = height;
+            this.uri = uri;
+            this.attributes = attributes;
+        }
+    }
+
+    static class Segment {
+        final long durationUs;
+        final String uri;
+        /** The tag lines before the URI, #EXTINF included. */
+        final List<String> tags;
+
+        Segment(long durationUs, String uri, List<String> tags) {
+            this.durationUs = durationUs;
+            this.uri = uri;
+            this.tags = tags;
+        }
+    }
+
+    static class Media {
+        /** Playlist-wide tags, without #EXTM3U. */
+        final List<String> header = new ArrayList<String>();
+        final List<Segment> segments = new ArrayList<Segment>();
+        boolean endList;
+        /** Uses byte ranges, init sections or keys, which differ between variants. */
+        boolean variantSpecific;
+
+        long durationUs() {
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.durationUs;
+            }
+            return total;
+        }
+    }
+
+    static boolean isMaster(String text) {
+        return text.contains(STREAM_INF);
+    }
+
+    /** Whether a master playlist has separate audio, subtitle or video renditions. */
+    static boolean hasRenditions(String text) {
+        return text.contains("#EXT-X-MEDIA:");
+    }
+
+    /** Returns the variants of a master playlist, lowest bandwidth first. */
+    static List<Variant> parseMaster(String text, String baseUrl) throws IOException {
+        List<Variant> variants = new ArrayList<Variant>();
+        String attributes = null;
+        for (String line : text.split("\r?\n")) {
+            line = line.trim();
+            if (line.startsWith(STREAM_INF)) {
+                attributes = line.substring(STREAM_INF.length());
+            } else if (attributes != null && line.length() > 0 && !line.startsWith("#")) {
+                Matcher bandwidth = BANDWIDTH.matcher(attributes);
+                Matcher resolution = RESOLUTION.matcher(attributes);
+                boolean sized = resolution.find();
+                variants.add(new Variant(bandwidth.find() ? Long.parseLong(bandwidth.group(1)) : 0,
+                        sized ? Integer.parseInt(resolution.group(1)) : 0,
+                        sized ? Integer.parseInt(resolution.group(2)) : 0,
+                        resolve(baseUrl, line), attributes));
+                attributes = null;
+            }
+        }
+        Collections.sort(variants, new Comparator<Variant>() {
+            public int compare(Variant a, Variant b) {
+                return a.bandwidth < b.bandwidth ? -1 : a.bandwidth > b.bandwidth ? 1 : 0;
+            }
+        });
+        return variants;
+    }
+
+    static Media parseMedia(String text, String baseUrl) throws IOException {
+        Media media = new Media();
+        List<String> tags = new ArrayList<String>();
+        long durationUs = -1;
+        for (String line : text.split("\r?\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.equals("#EXTM3U")) {
+                continue;
+            }
+            if (line.startsWith(END_LIST)) {
+                media.endList = true;
+            } else if (line.startsWith("#")) {
+                if (line.startsWith("#EXT-X-BYTERANGE") || line.startsWith("#EXT-X-MAP")
+                        || line.startsWith("#EXT-X-KEY")) {
+                    media.variantSpecific = true;
+                }
+                line = resolveUriAttribute(line, baseUrl);
+                if (line.startsWith(EXTINF)) {
+                    durationUs = parseDurationUs(line.substring(EXTINF.length()));
+                }
+                if (durationUs < 0 && media.segments.isEmpty()) {
+                    media.header.add(line);
+                } else {
+                    tags.add(line);
+                }
+            } else {
+                media.segments.add(new Segment(Math.max(0, durationUs), resolve(baseUrl, line), tags));
+                tags = new ArrayList<String>();
+                durationUs = -1;
+            }
+        }
+        return media;
+    }
+
+    /** Returns {@code text} with every URI made absolute, so it can be served from another host. */
+    static String absolutize(String text, String baseUrl) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : text.split("\r?\n")) {
+            line = line.trim();
+            if (line.startsWith("#")) {
+                line = resolveUriAttribute(line, baseUrl);
+            } else if (line.length() > 0) {
+                line = resolve(baseUrl, line);
+            }
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static long parseDurationUs(String value) {
+        int comma = value.indexOf(',');
+        try {
+            return (long) (Double.parseDouble(comma >= 0 ? value.substring(0, comma) : value) * 1000000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String resolveUriAttribute(String line, String baseUrl) throws IOException {
+        Matcher matcher = URI_ATTRIBUTE.matcher(line);
+        if (!matcher.find()) {
+            return line;
+        }
+        return line.substring(0, matcher.start(1)) + resolve(baseUrl, matcher.group(1)) + line.substring(matcher.end(1));
+    }
+
+    static String resolve(String baseUrl, String reference) throws IOException {
+        try {
+            return new URL(new URL(baseUrl), reference).toString();
+        } catch (MalformedURLException e) {
+            throw new IOException("Bad playlist URI " + reference);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Variant selection state for one HLS master playlist played through
+ * {@link VideoCacheProxy}. The player is given a single media playlist whose
+ * segments point back at the proxy by number; each segment request is
+ * answered from the variant the {@link AbrPolicy} picks at that moment.
+ *
+ * <p>The player never sees an {@code EXT-X-DISCONTINUITY} at a switch, so
+ * switching is only allowed where none is needed: segment-aligned VOD
+ * playlists with the same codecs and discontinuities, declared
+ * {@code EXT-X-INDEPENDENT-SEGMENTS} and without byte ranges, init sections
+ * or keys. Otherwise one variant is picked when the media playlist is
+ * requested and kept.</p>
+ */
+class HlsSession {
+    private static final long ALIGNMENT_SLACK_US = 500000;
+    static final String INDEPENDENT_SEGMENTS = "#EXT-X-INDEPENDENT-SEGMENTS";
+    private static final String DISCONTINUITY = "#EXT-X-DISCONTINUITY";
+    private static final Pattern CODECS = Pattern.compile("(?:^|,)CODECS=\"([^\"]*)\"");
+
+    interface UrlMapper {
+        /** The URL the player should request for segment {@code index}. */
+        String segmentUrl(int index);
+
+        /** The URL the player should request for the remote {@code url}. */
+        String proxied(String url);
+    }
+
+    private final List<HlsPlaylist.Variant> mVariants;
+    private final HlsPlaylist.Media[] mMedia;
+    private final long[] mBandwidths;
+    private final long[] mSegmentStartMs;
+    private final boolean mSwitchable;
+    private final long mCreatedNanos = System.nanoTime();
+    private int mCurrent = -1;
+    private int mSwitches;
+
+    /** {@code independent} if the master playlist declares independent segments. */
+    HlsSession(List<HlsPlaylist.Variant> variants, HlsPlaylist.Media[] media, boolean independent) {
+        mVariants = variants;
+        mMedia = media;
+        mBandwidths = new long[variants.size()];
+        for (int i = 0; i < mBandwidths.length; i++) {
+            mBandwidths[i] = variants.get(i).bandwidth;
+        }
+        mSwitchable = isAligned(media) && sameCodecs(variants) && (independent || allIndependent(media));
+        List<HlsPlaylist.Segment> segments = media[0].segments;
+        mSegmentStartMs = new long[segments.size()];
+        long startUs = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            mSegmentStartMs[i] = startUs / 1000;
+            startUs += segments.get(i).durationUs;
+        }
+    }
+
+    private static boolean isAligned(HlsPlaylist.Media[] media) {
+        for (HlsPlaylist.Media m : media) {
+            if (!m.endList || m.variantSpecific || m.segments.size() != media[0].segments.size()
+                    || !sequenceTags(m).equals(sequenceTags(media[0]))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < media[0].segments.size(); i++) {
+            HlsPlaylist.Segment first = media[0].segments.get(i);
+            for (HlsPlaylist.Media m : media) {
+                HlsPlaylist.Segment segment = m.segments.get(i);
+                if (Math.abs(segment.durationUs - first.durationUs) > ALIGNMENT_SLACK_US
+                        || segment.tags.contains(DISCONTINUITY) != first.tags.contains(DISCONTINUITY)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String sequenceTags(HlsPlaylist.Media media) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : media.header) {
+            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE") || line.startsWith("#EXT-X-DISCONTINUITY-SEQUENCE")) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    // A decoder set up for one codec cannot continue with another without a discontinuity.
+    private static boolean sameCodecs(List<HlsPlaylist.Variant> variants) {
+        String codecs = codecsOf(variants.get(0));
+        for (HlsPlaylist.Variant variant : variants) {
+            String other = codecsOf(variant);
+            if (codecs == null ? other != null : !codecs.equals(other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String codecsOf(HlsPlaylist.Variant variant) {
+        Matcher matcher = CODECS.matcher(variant.attributes);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    // Each segment then starts with a keyframe, so the first one from another
+    // variant decodes without what came before it.
+    private static boolean allIndependent(HlsPlaylist.Media[] media) {
+        for (HlsPlaylist.Media m : media) {
+            if (!m.header.contains(INDEPENDENT_SEGMENTS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The master playlist handed to the player: one variant, served by the proxy. */
+    String masterPlaylist(String mediaUrl) {
+        HlsPlaylist.Variant top = mVariants.get(mVariants.size() - 1);
+        return "#EXTM3U\n#EXT-X-STREAM-INF:" + top.attributes + "\n" + mediaUrl + "\n";
+    }
+
+    boolean isSwitchable() {
+        return mSwitchable;
+    }
+
+    /** The media playlist of a switchable session, its segments addressed by number. */
+    String mediaPlaylist(UrlMapper mapper) {
+        return render(mMedia[0], mapper, true);
+    }
+
+    /** Picks the variant a session that cannot switch stays on, on first use. */
+    synchronized String pinnedVariant(AbrPolicy policy, long throughput) {
+        if (mCurrent < 0) {
+            mCurrent = Math.max(0, policy.select(mBandwidths, -1, throughput, 0));
+        }
+        return mVariants.get(mCurrent).uri;
+    }
+
+    /** The playlist of the pinned variant, as fetched when the session was opened. */
+    synchronized HlsPlaylist.Media pinnedMedia() {
+        return mMedia[Math.max(0, mCurrent)];
+    }
+
+    /**
+     * Writes {@code media} back out with segment URIs from {@code mapper}:
+     * by number when {@code byIndex}, otherwise the proxied remote URI.
+     */
+    static String render(HlsPlaylist.Media media, UrlMapper mapper, boolean byIndex) {
+        StringBuilder sb = new StringBuilder("#EXTM3U\n");
+        for (String line : media.header) {
+            sb.append(line).append('\n');
+        }
+        for (int i = 0; i < media.segments.size(); i++) {
+            HlsPlaylist.Segment segment = media.segments.get(i);
+            for (String tag : segment.tags) {
+                sb.append(tag).append('\n');
+            }
+            sb.append(byIndex ? mapper.segmentUrl(i) : mapper.proxied(segment.uri)).append('\n');
+        }
+        if (media.endList) {
+            sb.append("#EXT-X-ENDLIST\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Picks the variant for segment {@code index} of a switchable session and
+     * returns its URL, or null if there is no such segment. {@code playheadMs} is the playback
+     * position, or -1 to assume playback has run since the session started.
+     */
+    synchronized String selectSegment(int index, long playheadMs, AbrPolicy policy, long throughput) {
+        if (index < 0 || index >= mSegmentStartMs.length) {
+            return null;
+        }
+        if (playheadMs < 0) {
+            playheadMs = (System.nanoTime() - mCreatedNanos) / 1000000L;
+        }
+        long buffered = Math.max(0, mSegmentStartMs[index] - playheadMs);
+        int variant = Math.max(0, policy.select(mBandwidths, mCurrent, throughput, buffered));
+        if (mCurrent >= 0 && variant != mCurrent) {
+            mSwitches++;
+        }
+        mCurrent = variant;
+        return mMedia[variant].segments.get(index).uri;
+    }
+
+    synchronized long getSelectedBandwidth() {
+        return mCurrent >= 0 ? mBandwidths[mCurrent] : -1;
+    }
+
+    synchronized int getSwitchCount() {
+        return mSwitches;
+    }
+}
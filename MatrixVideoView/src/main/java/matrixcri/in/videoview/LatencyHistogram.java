@@ -0,0 +1,162 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+/**
+ * Fixed-memory histogram of millisecond values. Values below 16 get their own
+ * bucket; above that every power of two is split into 16 buckets, so any
+ * reported percentile is within about 6% of the true value. Recording never
+ * allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final int[] mCounts = new int[BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+    // Holds a copy of the histogram being added; guarded by mAddLock.
+    private final Object mAddLock = new Object();
+    private int[] mScratch;
+
+    public synchronized void record(long valueMs) {
+        if (valueMs < 0) {
+            valueMs = 0;
+        }
+        mCounts[bucketOf(valueMs)]++;
+        mCount++;
+        mSum += valueMs;
+        if (valueMs < mMin) {
+            mMin = valueMs;
+        }
+        if (valueMs > mMax) {
+            mMax = valueMs;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getSum() {
+        return mSum;
+    }
+
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /** Returns the value below which {@code fraction} (0..1) of the recorded values fall. */
+    public synchronized long percentile(double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * mCount);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(mMax, Math.max(mMin, valueOf(i)));
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Adds all values of {@code other} to this histogram. {@code other} is
+     * copied under its own lock before this one is taken, so histograms added
+     * to each other from two threads cannot deadlock.
+     */
+    public void add(LatencyHistogram other) {
+        synchronized (mAddLock) {
+            if (mScratch == null) {
+                mScratch = new int[BUCKETS];
+            }
+            long count;
+            long sum;
+            long min;
+            long max;
+            synchronized (other) {
+                System.arraycopy(other.mCounts, 0, mScratch, 0, BUCKETS);
+                count = other.mCount;
+                sum = other.mSum;
+                min = other.mMin;
+                max = other.mMax;
+            }
+            synchronized (this) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    mCounts[i] += mScratch[i];
+                }
+                mCount += count;
+                mSum += sum;
+                mMin = Math.min(mMin, min);
+                mMax = Math.max(mMax, max);
+            }
+        }
+    }
+
+    /** Copies this histogram into {@code target}, replacing its contents. */
+    public void copyTo(LatencyHistogram target) {
+        target.reset();
+        target.add(this);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    /** Midpoint of a bucket's range. */
+    static long valueOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + sub * width + width / 2;
+    }
+}
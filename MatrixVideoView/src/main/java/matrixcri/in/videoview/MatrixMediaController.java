@@ -34,9 +34,11 @@ import android.content.Context;
 
 import android.content.res.TypedArray;
 
-import android.os.Handler;
+import android.graphics.Bitmap;
 
-import android.os.Message;
+import android.os.SystemClock;
+
+import android.support.v4.view.AsyncLayoutInflater;
 
 import android.util.AttributeSet;
 
@@ -48,12 +50,18 @@ import android.view.MotionEvent;
 
 import android.view.View;
 
+import android.view.ViewParent;
+
 import android.view.ViewGroup;
 
+import android.view.ViewStub;
+
 import android.widget.FrameLayout;
 
 import android.widget.ImageButton;
 
+import android.widget.ImageView;
+
 import android.widget.ProgressBar;
 
 import android.widget.SeekBar;
@@ -62,11 +70,7 @@ import android.widget.SeekBar.OnSeekBarChangeListener;
 
 import android.widget.TextView;
 
-import java.util.Formatter;
-
-import java.util.Locale;
-
-public class MatrixMediaController extends FrameLayout {
+public class MatrixMediaController extends FrameLayout implements MediaControllerView {
 
     private MatrixMediaController.MediaPlayerControl mPlayer;
 
@@ -100,9 +104,7 @@ public class MatrixMediaController extends FrameLayout {
 
     private int mState = STATE_LOADING;
 
-    private static final int FADE_OUT = 1;
-
-    private static final int SHOW_PROGRESS = 2;
+    private static final int MIN_PROGRESS_INTERVAL = 16;
 
     private static final int SHOW_LOADING = 3;
 
@@ -116,9 +118,9 @@ public class MatrixMediaController extends FrameLayout {
 
     private static final int HIDE_COMPLETE = 8;
 
-    StringBuilder mFormatBuilder;
+    private final TimeText mEndTimeText = new TimeText();
 
-    Formatter mFormatter;
+    private final TimeText mCurrentTimeText = new TimeText();
 
     private ImageButton mTurnButton;
 
@@ -136,6 +138,30 @@ public class MatrixMediaController extends FrameLayout {
 
     private View mCenterPlayButton;
 
+    private ViewStub mLoadingStub;
+
+    private ViewStub mErrorStub;
+
+    private ViewStub mCenterPlayStub;
+
+    private ViewStub mThumbnailStub;
+
+    private ImageView mThumbnailView;
+
+    private ThumbnailEngine mThumbnails;
+
+    private View.OnClickListener mErrorClickListener;
+
+    private long mFadeOutAt;
+
+    private long mProgressAt;
+
+    private final int[] mPendingCenters = new int[4];
+
+    private int mPendingCount;
+
+    private boolean mAttached;
+
     public MatrixMediaController(Context context, AttributeSet attrs) {
 
         super(context, attrs);
@@ -160,6 +186,60 @@ public class MatrixMediaController extends FrameLayout {
 
     }
 
+    private MatrixMediaController(Context context, View content, boolean scalable) {
+
+        super(context);
+
+        mContext = context;
+
+        mScalable = scalable;
+
+        addView(content, new FrameLayout.LayoutParams(
+
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+
+        setOnTouchListener(mTouchListener);
+
+        initControllerView(content);
+
+    }
+
+    /**
+
+     * Inflates the controller layout on a background thread and delivers the
+
+     * finished controller on the UI thread, so a feed can build controllers
+
+     * ahead of binding without stalling the UI thread.
+
+     */
+
+    public static void inflateAsync(final Context context, final boolean scalable,
+
+                                    final OnInflatedListener listener) {
+
+        new AsyncLayoutInflater(context).inflate(R.layout.matrix_video_view_player_controller, null,
+
+                new AsyncLayoutInflater.OnInflateFinishedListener() {
+
+                    public void onInflateFinished(View view, int resid, ViewGroup parent) {
+
+                        listener.onInflated(new MatrixMediaController(context, view, scalable));
+
+                    }
+
+                });
+
+    }
+
+    static MatrixMediaController create(Context context, boolean scalable) {
+
+        View content = LayoutInflater.from(context).inflate(R.layout.matrix_video_view_player_controller, null);
+
+        return new MatrixMediaController(context, content, scalable);
+
+    }
+
     private void init(Context context) {
 
         mContext = context;
@@ -180,16 +260,18 @@ public class MatrixMediaController extends FrameLayout {
 
         mControlLayout = v.findViewById(R.id.control_layout);
 
-        loadingLayout = (ViewGroup) v.findViewById(R.id.loading_layout);
+        mLoadingStub = (ViewStub) v.findViewById(R.id.loading_stub);
+
+        mErrorStub = (ViewStub) v.findViewById(R.id.error_stub);
+
+        mCenterPlayStub = (ViewStub) v.findViewById(R.id.center_play_stub);
 
-        errorLayout = (ViewGroup) v.findViewById(R.id.error_layout);
+        mThumbnailStub = (ViewStub) v.findViewById(R.id.thumbnail_stub);
 
         mTurnButton = (ImageButton) v.findViewById(R.id.turn_button);
 
         mScaleButton = (ImageButton) v.findViewById(R.id.scale_button);
 
-        mCenterPlayButton = v.findViewById(R.id.center_play_btn);
-
         mBackButton = v.findViewById(R.id.back_btn);
 
         if (mTurnButton != null) {
@@ -220,12 +302,6 @@ public class MatrixMediaController extends FrameLayout {
 
         }
 
-        if (mCenterPlayButton != null) {
-
-            mCenterPlayButton.setOnClickListener(mCenterPlayListener);
-
-        }
-
         if (mBackButton != null) {
 
             mBackButton.setOnClickListener(mBackListener);
@@ -256,10 +332,6 @@ public class MatrixMediaController extends FrameLayout {
 
         mTitle = (TextView) v.findViewById(R.id.title);
 
-        mFormatBuilder = new StringBuilder();
-
-        mFormatter = new Formatter(mFormatBuilder, Locale.getDefault());
-
     }
 
     public void setMediaPlayer(MediaPlayerControl player) {
@@ -270,6 +342,176 @@ public class MatrixMediaController extends FrameLayout {
 
     }
 
+    public MediaPlayerControl getMediaPlayer() {
+
+        return mPlayer;
+
+    }
+
+    // The loading, error and replay views are ViewStubs until first shown;
+
+    // most sessions never need them.
+
+    private ViewGroup getLoadingLayout() {
+
+        if (loadingLayout == null) {
+
+            loadingLayout = (ViewGroup) mLoadingStub.inflate();
+
+        }
+
+        return loadingLayout;
+
+    }
+
+    private ViewGroup getErrorLayout() {
+
+        if (errorLayout == null) {
+
+            errorLayout = (ViewGroup) mErrorStub.inflate();
+
+            if (mErrorClickListener != null) {
+
+                errorLayout.setOnClickListener(mErrorClickListener);
+
+            }
+
+        }
+
+        return errorLayout;
+
+    }
+
+    private View getCenterPlayButton() {
+
+        if (mCenterPlayButton == null) {
+
+            mCenterPlayButton = mCenterPlayStub.inflate();
+
+            mCenterPlayButton.setOnClickListener(mCenterPlayListener);
+
+        }
+
+        return mCenterPlayButton;
+
+    }
+
+    /**
+
+     * Shows previews from {@code engine} above the seek bar while it is being
+
+     * dragged. The caller keeps ownership of the engine.
+
+     */
+
+    public void setThumbnailEngine(ThumbnailEngine engine) {
+
+        if (mThumbnails != null) {
+
+            mThumbnails.setListener(null);
+
+        }
+
+        mThumbnails = engine;
+
+        if (engine != null) {
+
+            engine.setListener(mThumbnailListener);
+
+        }
+
+    }
+
+    private ImageView getThumbnailView() {
+
+        if (mThumbnailView == null) {
+
+            mThumbnailView = (ImageView) mThumbnailStub.inflate();
+
+        }
+
+        return mThumbnailView;
+
+    }
+
+    private void showThumbnail(SeekBar bar, int position) {
+
+        ImageView view = getThumbnailView();
+
+        Bitmap bitmap = mThumbnails.request(position);
+
+        if (bitmap != null) {
+
+            view.setImageBitmap(bitmap);
+
+        }
+
+        // Centre the preview over the thumb, without leaving the controller.
+
+        int track = bar.getWidth() - bar.getPaddingLeft() - bar.getPaddingRight();
+
+        int x = bar.getLeft() + bar.getPaddingLeft() + track * bar.getProgress() / Math.max(bar.getMax(), 1);
+
+        for (ViewParent parent = bar.getParent(); parent instanceof View && parent != this;
+
+             parent = parent.getParent()) {
+
+            x += ((View) parent).getLeft();
+
+        }
+
+        int width = view.getLayoutParams().width;
+
+        view.setTranslationX(Math.max(0, Math.min(getWidth() - width, x - width / 2)));
+
+        setShown(view, true);
+
+    }
+
+    private void hideThumbnail() {
+
+        if (mThumbnails != null) {
+
+            mThumbnails.cancel();
+
+        }
+
+        setShown(mThumbnailView, false);
+
+    }
+
+    private ThumbnailEngine.Listener mThumbnailListener = new ThumbnailEngine.Listener() {
+
+        public void onThumbnailReady(int timeMs, Bitmap thumbnail) {
+
+            if (mDragging && mThumbnailView != null) {
+
+                mThumbnailView.setImageBitmap(thumbnail);
+
+            }
+
+        }
+
+    };
+
+    private static void setShown(View view, boolean shown) {
+
+        if (view == null) {
+
+            return;
+
+        }
+
+        int visibility = shown ? VISIBLE : GONE;
+
+        if (view.getVisibility() != visibility) {
+
+            view.setVisibility(visibility);
+
+        }
+
+    }
+
     public void show() {
 
         show(sDefaultTimeout);
@@ -332,18 +574,18 @@ public class MatrixMediaController extends FrameLayout {
 
         }
 
-        mHandler.sendEmptyMessage(SHOW_PROGRESS);
+        long now = SystemClock.uptimeMillis();
 
-        Message msg = mHandler.obtainMessage(FADE_OUT);
+        mProgressAt = now;
 
         if (timeout != 0) {
 
-            mHandler.removeMessages(FADE_OUT);
-
-            mHandler.sendMessageDelayed(msg, timeout);
+            mFadeOutAt = now + timeout;
 
         }
 
+        scheduleTick();
+
     }
 
     public boolean isShowing() {
@@ -356,7 +598,9 @@ public class MatrixMediaController extends FrameLayout {
 
         if (mShowing) {
 
-            mHandler.removeMessages(SHOW_PROGRESS);
+            mProgressAt = 0;
+
+            scheduleTick();
 
             mTitleLayout.setVisibility(GONE);
 
@@ -368,204 +612,266 @@ public class MatrixMediaController extends FrameLayout {
 
     }
 
-    private Handler mHandler = new Handler() {
+    @Override
 
-        @Override
+    protected void onAttachedToWindow() {
 
-        public void handleMessage(Message msg) {
+        super.onAttachedToWindow();
 
-            int pos;
+        mAttached = true;
 
-            switch (msg.what) {
+        scheduleTick();
 
-                case FADE_OUT: 
+    }
 
-                    hide();
+    @Override
 
-                    break;
+    protected void onDetachedFromWindow() {
 
-                case SHOW_PROGRESS: 
+        super.onDetachedFromWindow();
 
-                    pos = setProgress();
+        mAttached = false;
 
-                    if (!mDragging && mShowing && mPlayer != null && mPlayer.isPlaying()) {
+        UiTicker.getInstance().cancel(mTickClient);
 
-                        msg = obtainMessage(SHOW_PROGRESS);
+        hideThumbnail();
 
-                        sendMessageDelayed(msg, 1000 - (pos % 1000));
+    }
 
-                    }
+    // Progress, fade-out and center view changes all share one tick from the
 
-                    break;
+    // process-wide UiTicker, so a controller costs one frame callback at most.
 
-                case SHOW_LOADING: 
+    private void scheduleTick() {
 
-                    show();
+        if (!mAttached) {
 
-                    showCenterView(R.id.loading_layout);
+            return;
 
-                    break;
+        }
 
-                case SHOW_COMPLETE: 
+        long next = Long.MAX_VALUE;
 
-                    showCenterView(R.id.center_play_btn);
+        if (mPendingCount != 0) {
 
-                    break;
+            next = 0;
 
-                case SHOW_ERROR: 
+        }
 
-                    show();
+        if (mFadeOutAt != 0) {
 
-                    showCenterView(R.id.error_layout);
+            next = Math.min(next, mFadeOutAt);
 
-                    break;
+        }
 
-                case HIDE_LOADING: 
+        if (mProgressAt != 0) {
 
-                case HIDE_ERROR:
+            next = Math.min(next, mProgressAt);
 
-                case HIDE_COMPLETE: 
+        }
 
-                    hide();
+        if (next == Long.MAX_VALUE) {
 
-                    hideCenterView();
+            UiTicker.getInstance().cancel(mTickClient);
 
-                    break;
+        } else {
 
-            }
+            UiTicker.getInstance().schedule(mTickClient, next);
 
         }
 
-    };
-
-    private void showCenterView(int resId) {
+    }
 
-        if (resId == R.id.loading_layout) {
+    private UiTicker.Client mTickClient = new UiTicker.Client() {
 
-            if (loadingLayout.getVisibility() != VISIBLE) {
+        public void onTick(long now) {
 
-                loadingLayout.setVisibility(VISIBLE);
+            int pending = mPendingCount;
 
-            }
+            mPendingCount = 0;
 
-            if (mCenterPlayButton.getVisibility() == VISIBLE) {
+            for (int i = 0; i < pending; i++) {
 
-                mCenterPlayButton.setVisibility(GONE);
+                applyCenter(mPendingCenters[i]);
 
             }
 
-            if (errorLayout.getVisibility() == VISIBLE) {
+            if (mFadeOutAt != 0 && now >= mFadeOutAt) {
 
-                errorLayout.setVisibility(GONE);
+                mFadeOutAt = 0;
+
+                hide();
 
             }
 
-        } else if (resId == R.id.center_play_btn) {
+            if (mProgressAt != 0 && now >= mProgressAt) {
 
-            if (mCenterPlayButton.getVisibility() != VISIBLE) {
+                mProgressAt = 0;
 
-                mCenterPlayButton.setVisibility(VISIBLE);
+                int pos = setProgress();
 
-            }
+                if (!mDragging && mShowing && mPlayer != null && mPlayer.isPlaying()) {
 
-            if (loadingLayout.getVisibility() == VISIBLE) {
+                    mProgressAt = now + progressInterval(pos);
 
-                loadingLayout.setVisibility(GONE);
+                }
 
             }
 
-            if (errorLayout.getVisibility() == VISIBLE) {
-
-                errorLayout.setVisibility(GONE);
+            scheduleTick();
 
-            }
+        }
 
-        } else if (resId == R.id.error_layout) {
+    };
 
-            if (errorLayout.getVisibility() != VISIBLE) {
+    // Ticks only when something visible can change: the seconds of the
 
-                errorLayout.setVisibility(VISIBLE);
+    // current time, or the seek bar moving by one pixel (or one step).
 
-            }
+    private long progressInterval(int position) {
 
-            if (mCenterPlayButton.getVisibility() == VISIBLE) {
+        long interval = 1000 - (position % 1000);
 
-                mCenterPlayButton.setVisibility(GONE);
+        int duration = mPlayer.getDuration();
 
-            }
+        if (duration > 0 && mProgress != null) {
 
-            if (loadingLayout.getVisibility() == VISIBLE) {
+            int width = mProgress.getWidth() - mProgress.getPaddingLeft() - mProgress.getPaddingRight();
 
-                loadingLayout.setVisibility(GONE);
+            int steps = width > 0 ? Math.min(width, mProgress.getMax()) : mProgress.getMax();
 
-            }
+            interval = Math.min(interval, duration / steps);
 
         }
 
+        return Math.max(interval, MIN_PROGRESS_INTERVAL);
+
     }
 
-    private void hideCenterView() {
+    private void applyCenter(int what) {
 
-        if (mCenterPlayButton.getVisibility() == VISIBLE) {
+        switch (what) {
 
-            mCenterPlayButton.setVisibility(GONE);
+            case SHOW_LOADING: 
 
-        }
+                show();
+
+                showCenterView(R.id.loading_layout);
 
-        if (errorLayout.getVisibility() == VISIBLE) {
+                break;
 
-            errorLayout.setVisibility(GONE);
+            case SHOW_COMPLETE: 
 
-        }
+                showCenterView(R.id.center_play_btn);
+
+                break;
+
+            case SHOW_ERROR: 
+
+                show();
+
+                showCenterView(R.id.error_layout);
+
+                break;
+
+            case HIDE_LOADING: 
 
-        if (loadingLayout.getVisibility() == VISIBLE) {
+            case HIDE_ERROR:
 
-            loadingLayout.setVisibility(GONE);
+            case HIDE_COMPLETE: 
+
+                hide();
+
+                hideCenterView();
+
+                break;
 
         }
 
     }
 
-    public void reset() {
+    // Queued rather than replaced, so changes posted in the same frame are all
 
-        mCurrentTime.setText("00:00");
+    // applied, in order, as the Handler messages before them were.
 
-        mEndTime.setText("00:00");
+    private void postCenter(int what) {
 
-        mProgress.setProgress(0);
+        if (mPendingCount == mPendingCenters.length) {
 
-        mTurnButton.setImageResource(R.drawable.matrix_player_player_btn);
+            System.arraycopy(mPendingCenters, 1, mPendingCenters, 0, mPendingCount - 1);
 
-        setVisibility(View.VISIBLE);
+            mPendingCount--;
 
-        hideLoading();
+        }
+
+        mPendingCenters[mPendingCount++] = what;
+
+        scheduleTick();
 
     }
 
-    private String stringForTime(int timeMs) {
+    private void showCenterView(int resId) {
 
-        int totalSeconds = timeMs / 1000;
+        if (resId == R.id.loading_layout) {
 
-        int seconds = totalSeconds % 60;
+            setShown(getLoadingLayout(), true);
 
-        int minutes = (totalSeconds / 60) % 60;
+            setShown(mCenterPlayButton, false);
 
-        int hours = totalSeconds / 3600;
+            setShown(errorLayout, false);
 
-        mFormatBuilder.setLength(0);
+        } else if (resId == R.id.center_play_btn) {
 
-        if (hours > 0) {
+            setShown(getCenterPlayButton(), true);
 
-            return mFormatter.format("%d:%02d:%02d", hours, minutes, seconds).toString();
+            setShown(loadingLayout, false);
 
-        } else {
+            setShown(errorLayout, false);
 
-            return mFormatter.format("%02d:%02d", minutes, seconds).toString();
+        } else if (resId == R.id.error_layout) {
+
+            setShown(getErrorLayout(), true);
+
+            setShown(mCenterPlayButton, false);
+
+            setShown(loadingLayout, false);
 
         }
 
     }
 
+    private void hideCenterView() {
+
+        setShown(mCenterPlayButton, false);
+
+        setShown(errorLayout, false);
+
+        setShown(loadingLayout, false);
+
+    }
+
+    public void reset() {
+
+        mCurrentTime.setText("00:00");
+
+        mEndTime.setText("00:00");
+
+        mCurrentTimeText.invalidate();
+
+        mEndTimeText.invalidate();
+
+        mProgress.setProgress(0);
+
+        hideThumbnail();
+
+        mTurnButton.setImageResource(R.drawable.matrix_player_player_btn);
+
+        setVisibility(View.VISIBLE);
+
+        hideLoading();
+
+    }
+
     private int setProgress() {
 
         if (mPlayer == null || mDragging) {
@@ -598,11 +904,11 @@ public class MatrixMediaController extends FrameLayout {
 
         if (mEndTime != null)
 
-            mEndTime.setText(stringForTime(duration));
+            mEndTimeText.update(mEndTime, duration);
 
         if (mCurrentTime != null)
 
-            mCurrentTime.setText(stringForTime(position));
+            mCurrentTimeText.update(mCurrentTime, position);
 
         return position;
 
@@ -874,7 +1180,7 @@ public class MatrixMediaController extends FrameLayout {
 
     }
 
-    void toggleButtons(boolean isFullScreen) {
+    public void toggleButtons(boolean isFullScreen) {
 
         mIsFullScreen = isFullScreen;
 
@@ -930,7 +1236,17 @@ public class MatrixMediaController extends FrameLayout {
 
             mDragging = true;
 
-            mHandler.removeMessages(SHOW_PROGRESS);
+            change = false;
+
+            mProgressAt = 0;
+
+            scheduleTick();
+
+            if (mPlayer instanceof ScrubControl) {
+
+                ((ScrubControl) mPlayer).beginScrub();
+
+            }
 
         }
 
@@ -950,6 +1266,24 @@ public class MatrixMediaController extends FrameLayout {
 
             change = true;
 
+            if (mPlayer instanceof ScrubControl) {
+
+                ((ScrubControl) mPlayer).scrubTo(newPosition);
+
+                if (mCurrentTime != null) {
+
+                    mCurrentTimeText.update(mCurrentTime, newPosition);
+
+                }
+
+            }
+
+            if (mThumbnails != null) {
+
+                showThumbnail(bar, newPosition);
+
+            }
+
         }
 
         public void onStopTrackingTouch(SeekBar bar) {
@@ -960,13 +1294,21 @@ public class MatrixMediaController extends FrameLayout {
 
             }
 
-            if (change) {
+            if (mPlayer instanceof ScrubControl) {
+
+                ((ScrubControl) mPlayer).endScrub(change ? newPosition : -1);
+
+            } else if (change) {
 
                 mPlayer.seekTo(newPosition);
 
+            }
+
+            if (change) {
+
                 if (mCurrentTime != null) {
 
-                    mCurrentTime.setText(stringForTime(newPosition));
+                    mCurrentTimeText.update(mCurrentTime, newPosition);
 
                 }
 
@@ -974,6 +1316,8 @@ public class MatrixMediaController extends FrameLayout {
 
             mDragging = false;
 
+            hideThumbnail();
+
             setProgress();
 
             updatePausePlay();
@@ -982,7 +1326,9 @@ public class MatrixMediaController extends FrameLayout {
 
             mShowing = true;
 
-            mHandler.sendEmptyMessage(SHOW_PROGRESS);
+            mProgressAt = SystemClock.uptimeMillis();
+
+            scheduleTick();
 
         }
 
@@ -1016,37 +1362,37 @@ public class MatrixMediaController extends FrameLayout {
 
     public void showLoading() {
 
-        mHandler.sendEmptyMessage(SHOW_LOADING);
+        postCenter(SHOW_LOADING);
 
     }
 
     public void hideLoading() {
 
-        mHandler.sendEmptyMessage(HIDE_LOADING);
+        postCenter(HIDE_LOADING);
 
     }
 
     public void showError() {
 
-        mHandler.sendEmptyMessage(SHOW_ERROR);
+        postCenter(SHOW_ERROR);
 
     }
 
     public void hideError() {
 
-        mHandler.sendEmptyMessage(HIDE_ERROR);
+        postCenter(HIDE_ERROR);
 
     }
 
     public void showComplete() {
 
-        mHandler.sendEmptyMessage(SHOW_COMPLETE);
+        postCenter(SHOW_COMPLETE);
 
     }
 
     public void hideComplete() {
 
-        mHandler.sendEmptyMessage(HIDE_COMPLETE);
+        postCenter(HIDE_COMPLETE);
 
     }
 
@@ -1058,43 +1404,83 @@ public class MatrixMediaController extends FrameLayout {
 
     public void setOnErrorView(int resId) {
 
-        errorLayout.removeAllViews();
+        ViewGroup layout = getErrorLayout();
+
+        layout.removeAllViews();
 
         LayoutInflater inflater = LayoutInflater.from(mContext);
 
-        inflater.inflate(resId, errorLayout, true);
+        inflater.inflate(resId, layout, true);
 
     }
 
     public void setOnErrorView(View onErrorView) {
 
-        errorLayout.removeAllViews();
+        ViewGroup layout = getErrorLayout();
 
-        errorLayout.addView(onErrorView);
+        layout.removeAllViews();
+
+        layout.addView(onErrorView);
 
     }
 
     public void setOnLoadingView(int resId) {
 
-        loadingLayout.removeAllViews();
+        ViewGroup layout = getLoadingLayout();
+
+        layout.removeAllViews();
 
         LayoutInflater inflater = LayoutInflater.from(mContext);
 
-        inflater.inflate(resId, loadingLayout, true);
+        inflater.inflate(resId, layout, true);
 
     }
 
     public void setOnLoadingView(View onLoadingView) {
 
-        loadingLayout.removeAllViews();
+        ViewGroup layout = getLoadingLayout();
 
-        loadingLayout.addView(onLoadingView);
+        layout.removeAllViews();
+
+        layout.addView(onLoadingView);
 
     }
 
     public void setOnErrorViewClick(View.OnClickListener onClickListener) {
 
-        errorLayout.setOnClickListener(onClickListener);
+        mErrorClickListener = onClickListener;
+
+        if (errorLayout != null) {
+
+            errorLayout.setOnClickListener(onClickListener);
+
+        }
+
+    }
+
+    public interface OnInflatedListener {
+
+        void onInflated(MatrixMediaController controller);
+
+    }
+
+    /**
+
+     * Optional player side of seek bar dragging: fast, coalesced seeks while
+
+     * the thumb moves and one precise seek when it is released.
+
+     */
+
+    public interface ScrubControl {
+
+        void beginScrub();
+
+        void scrubTo(int pos);
+
+        /** Ends the drag; {@code pos} is the final position, or -1 if it did not move. */
+
+        void endScrub(int pos);
 
     }
 
@@ -22,7 +22,6 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.pm.ActivityInfo;
 import android.content.res.TypedArray;
-import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Build;
@@ -34,19 +33,25 @@ import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
+import android.widget.FrameLayout;
 
-import java.io.IOException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 
 public class MatrixVideoView extends SurfaceView
-        implements MatrixMediaController.MediaPlayerControl,OrientationDetector.OrientationChangeListener{
+        implements MatrixMediaController.MediaPlayerControl, MatrixMediaController.ScrubControl,
+        OrientationDetector.OrientationChangeListener{
     private String TAG = "MatrixVideoView";
     private Uri mUri;
+    private Uri mSourceUri;
     private static final int STATE_ERROR              = -1;
     private static final int STATE_IDLE               = 0;
     private static final int STATE_PREPARING          = 1;
@@ -54,16 +59,24 @@ public class MatrixVideoView extends SurfaceView
     private static final int STATE_PLAYING            = 3;
     private static final int STATE_PAUSED             = 4;
     private static final int STATE_PLAYBACK_COMPLETED = 5;
+    private static final int PREFETCH_MS = 4000;
+    private static final long MIN_PREFETCH_BYTES = 256 * 1024;
+    private static final long MAX_PREFETCH_BYTES = 4 * 1024 * 1024;
+    /** Waits shorter than this do not show (or inflate) the loading view. */
+    private static final int LOADING_DELAY_MS = 500;
+    public static final int FULLSCREEN_MODE_ORIENTATION = 0;
+    public static final int FULLSCREEN_MODE_CONTAINER   = 1;
     private int mCurrentState = STATE_IDLE;
     private int mTargetState  = STATE_IDLE;
     private SurfaceHolder mSurfaceHolder = null;
-    private MediaPlayer mMediaPlayer = null;
-    private int         mAudioSession;
+    private PlaybackEngine mEngine;
+    private Map<String, String> mHeaders;
+    private int         mDuration;
     private int         mVideoWidth;
     private int         mVideoHeight;
     private int         mSurfaceWidth;
     private int         mSurfaceHeight;
-    private MatrixMediaController mMediaController;
+    private MediaControllerView mMediaController;
     private MediaPlayer.OnCompletionListener mOnCompletionListener;
     private MediaPlayer.OnPreparedListener mOnPreparedListener;
     private int         mCurrentBufferPercentage;
@@ -82,6 +95,32 @@ public class MatrixVideoView extends SurfaceView
 
     private OrientationDetector mOrientationDetector;
     private VideoViewCallback videoViewCallback;
+    private VideoCacheProxy mCacheProxy;
+    private VideoDownloader mDownloader;
+    private boolean     mEvicted;
+    private boolean     mRetainPlayer = false;
+    private boolean     mPlayAudioWhenDetached = false;
+    private int         mFullscreenMode = FULLSCREEN_MODE_ORIENTATION;
+    private boolean     mMovingSurface;
+    private View        mFullscreenPlayer;
+    private ViewGroup   mRestoreParent;
+    private int         mRestoreIndex;
+    private ViewGroup.LayoutParams mRestoreParams;
+    private final StartupMetrics mStartupMetrics = new StartupMetrics();
+    private final StallMetrics mStallMetrics = new StallMetrics();
+    private volatile PlayerSnapshot mSnapshot = PlayerSnapshot.IDLE;
+    private boolean     mScrubbing;
+    private boolean     mResumeAfterScrub;
+    private int         mLastScrubTarget = -1;
+    private Mp4Index    mKeyframeIndex;
+    private int         mSeekSnap = Mp4Index.SNAP_OFF;
+    private List<Uri>   mPlaylist;
+    private int         mPlaylistIndex = -1;
+    private Uri         mQueuedNext;
+    private PlaylistPrefetcher mPlaylistPrefetcher;
+    private Uri         mPositionUri;
+    private boolean     mAutoAdvance;
+    private OnPlaylistIndexChangedListener mOnPlaylistIndexChangedListener;
 
     public MatrixVideoView(Context context) {
         this(context,null);
@@ -97,6 +136,7 @@ public class MatrixVideoView extends SurfaceView
         TypedArray a = mContext.obtainStyledAttributes(attrs, R.styleable.MatrixVideoView,0,0);
         mFitXY = a.getBoolean(R.styleable.MatrixVideoView_mvv_fitXY, false);
         mAutoRotation = a.getBoolean(R.styleable.MatrixVideoView_mvv_autoRotation, false);
+        mRetainPlayer = a.getBoolean(R.styleable.MatrixVideoView_mvv_retainPlayer, false);
         a.recycle();
         initVideoView();
     }
@@ -197,6 +237,7 @@ public class MatrixVideoView extends SurfaceView
     }
 
     private void initVideoView() {
+        mEngine = new PlaybackEngine(mContext, mEngineListener);
         mVideoWidth = 0;
         mVideoHeight = 0;
         getHolder().addCallback(mSHCallback);
@@ -233,6 +274,70 @@ public class MatrixVideoView extends SurfaceView
         mAutoRotation = auto;
     }
 
+    /**
+     * Keeps the prepared player, its buffers and position when the surface is
+     * destroyed, and reattaches it to the next surface instead of reopening.
+     * Call {@link #stopPlayback()} when the video is no longer needed.
+     */
+    public void setRetainPlayerOnSurfaceLoss(boolean retain) {
+        mRetainPlayer = retain;
+    }
+
+    /** In retain mode, keeps playing audio while no surface is attached. */
+    public void setPlayAudioWhenDetached(boolean play) {
+        mPlayAudioWhenDetached = play;
+    }
+
+    /**
+     * {@link #FULLSCREEN_MODE_CONTAINER} moves the player (and its controller,
+     * when they share a parent) into the window's decor view instead of
+     * relying on an activity relaunch, so the prepared player and position
+     * survive the toggle. Declare {@code configChanges="orientation|screenSize"}
+     * on the host activity so the orientation change does not recreate it.
+     */
+    public void setFullscreenMode(int mode) {
+        mFullscreenMode = mode;
+    }
+
+    public void setCacheProxy(VideoCacheProxy proxy) {
+        mCacheProxy = proxy;
+    }
+
+    /** Remote URIs that {@code downloader} has finished are played from the downloaded file. */
+    public void setDownloader(VideoDownloader downloader) {
+        mDownloader = downloader;
+    }
+
+    /**
+     * Moves every {@link #seekTo} onto a keyframe of the video, using one of
+     * the {@code Mp4Index.SNAP_*} modes, once its index has been read. Seeks
+     * that land on a keyframe need no decoding past it. Progressive MP4 only.
+     */
+    public void setSeekSnap(int mode) {
+        mSeekSnap = mode;
+        requestKeyframeIndex();
+    }
+
+    /** Keyframe index of the current video, or null if it is not known (yet). */
+    public Mp4Index getKeyframeIndex() {
+        return mKeyframeIndex;
+    }
+
+    /** Time-to-first-frame breakdown of the last video opened in this view. */
+    public StartupMetrics getStartupMetrics() {
+        return mStartupMetrics;
+    }
+
+    /** Rebuffering counters of the current video in this view. */
+    public StallMetrics getStallMetrics() {
+        return mStallMetrics;
+    }
+
+    /** The player properties as of the last state change; safe to read from any thread. */
+    public PlayerSnapshot getPlayerSnapshot() {
+        return mSnapshot;
+    }
+
     public void setVideoPath(String path) {
         setVideoURI(Uri.parse(path));
     }
@@ -241,9 +346,102 @@ public class MatrixVideoView extends SurfaceView
         setVideoURI(uri, null);
     }
 
+    public void preload(Uri uri) {
+        preload(uri, null);
+    }
+
+    /** Preloads {@code uri} for a later {@code setVideoURI(uri, headers)} with the same headers. */
+    public void preload(Uri uri, Map<String, String> headers) {
+        Uri target = playbackUri(uri);
+        PreparedPlayerCache.getInstance().preload(mContext, target, headers);
+    }
+
+    /**
+     * Plays item {@code index} of {@code playlist}. With a cache proxy set,
+     * the start of the items around the current one is fetched into the cache
+     * in the background while the current one does not need the network; see
+     * {@link #getPlaylistPrefetcher()}.
+     */
+    public void setPlaylist(List<Uri> playlist, int index) {
+        mPlaylist = playlist != null ? new ArrayList<Uri>(playlist) : null;
+        if (mPlaylistPrefetcher == null && mCacheProxy != null && mPlaylist != null) {
+            mPlaylistPrefetcher = new PlaylistPrefetcher(mCacheProxy);
+        }
+        if (mPlaylist == null || index < 0 || index >= mPlaylist.size()) {
+            mPlaylistIndex = -1;
+            if (mPlaylistPrefetcher != null) {
+                mPlaylistPrefetcher.setPlaylist(null, -1);
+            }
+            queueNextItem();
+            return;
+        }
+        mPlaylistIndex = index;
+        if (mPlaylistPrefetcher != null) {
+            mPlaylistPrefetcher.pause();
+            mPlaylistPrefetcher.setPlaylist(mPlaylist, index);
+        }
+        setVideoURI(mPlaylist.get(index));
+    }
+
+    /** Switches to item {@code index} of the playlist; prefetches for other items stop. */
+    public void setPlaylistIndex(int index) {
+        if (mPlaylist == null || index < 0 || index >= mPlaylist.size()) {
+            return;
+        }
+        mPlaylistIndex = index;
+        if (mPlaylistPrefetcher != null) {
+            mPlaylistPrefetcher.pause();
+            mPlaylistPrefetcher.setCurrentIndex(index);
+        }
+        setVideoURI(mPlaylist.get(index));
+    }
+
+    public int getPlaylistIndex() {
+        return mPlaylistIndex;
+    }
+
+    /**
+     * Plays the playlist through: each item is followed by the next one
+     * instead of the completed state. On Jelly Bean and later the next item is
+     * prepared on a second player during the last seconds of the current one
+     * and chained to it, so there is no black frame or prepare stall between
+     * them.
+     */
+    public void setPlaylistAutoAdvance(boolean autoAdvance) {
+        mAutoAdvance = autoAdvance;
+        if (isInPlaybackState()) {
+            queueNextItem();
+        }
+    }
+
+    public void setOnPlaylistIndexChangedListener(OnPlaylistIndexChangedListener l) {
+        mOnPlaylistIndexChangedListener = l;
+    }
+
+    /** Prefetcher of the playlist, for its limits and byte counts; null without a cache proxy. */
+    public PlaylistPrefetcher getPlaylistPrefetcher() {
+        return mPlaylistPrefetcher;
+    }
+
     public void setVideoURI(Uri uri, Map<String, String> headers) {
-        mUri = uri;
+        if (mCacheProxy != null) {
+            mCacheProxy.cancelPrefetch(mSourceUri);
+        }
+        mSourceUri = uri;
+        mUri = playbackUri(uri);
+        mHeaders = headers;
+        trackPosition(uri);
+        if (mPlaylistIndex >= 0 && (uri == null || !uri.equals(mPlaylist.get(mPlaylistIndex)))) {
+            // Opened from outside the playlist.
+            mPlaylistIndex = -1;
+        }
         mSeekWhenPrepared = 0;
+        mKeyframeIndex = mUri != null ? Mp4Index.get(mUri) : null;
+        mStartupMetrics.begin();
+        mStallMetrics.beginSession();
+        if (mSurfaceHolder != null) {
+            mStartupMetrics.mark(StartupMetrics.PHASE_SURFACE_READY);
+        }
         openVideo();
         requestLayout();
         invalidate();
@@ -251,105 +449,108 @@ public class MatrixVideoView extends SurfaceView
 
 
     public void stopPlayback() {
-        if (mMediaPlayer != null) {
-            mMediaPlayer.stop();
-            mMediaPlayer.release();
-            mMediaPlayer = null;
+        if (mEngine.isOpen()) {
+            mEngine.stop();
+            if (mCacheProxy != null) {
+                mCacheProxy.cancelPrefetch(mSourceUri);
+            }
+            if (mPlaylistPrefetcher != null) {
+                mPlaylistPrefetcher.cancel();
+            }
+            trackPosition(null);
+            removeCallbacks(mShowLoading);
+            mStartupMetrics.cancel();
+            mStallMetrics.endSession();
             mCurrentState = STATE_IDLE;
             mTargetState  = STATE_IDLE;
+            publishState();
         }
     }
 
+    // The data source is opened and prepared as soon as the URI is known; the
+    // display is attached whenever the surface shows up, before or after that.
     private void openVideo() {
-        if (mUri == null || mSurfaceHolder == null) {
+        if (mUri == null) {
         
             return;
         }
-        AudioManager am = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
-        am.requestAudioFocus(null, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
-
-        
         release(false);
-        try {
-            mMediaPlayer = new MediaPlayer();
-
-            if (mAudioSession != 0) {
-                mMediaPlayer.setAudioSessionId(mAudioSession);
-            } else {
-                mAudioSession = mMediaPlayer.getAudioSessionId();
-            }
-            mMediaPlayer.setOnPreparedListener(mPreparedListener);
-            mMediaPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
-            mMediaPlayer.setOnCompletionListener(mCompletionListener);
-            mMediaPlayer.setOnErrorListener(mErrorListener);
-            mMediaPlayer.setOnInfoListener(mInfoListener);
-            mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
-            mCurrentBufferPercentage = 0;
-            mMediaPlayer.setDataSource(mContext, mUri);
-            mMediaPlayer.setDisplay(mSurfaceHolder);
-            mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            mMediaPlayer.setScreenOnWhilePlaying(true);
-            mMediaPlayer.prepareAsync();
-
-
-            mCurrentState = STATE_PREPARING;
-            attachMediaController();
-        } catch (IOException ex) {
-            Log.w(TAG, "Unable to open content: " + mUri, ex);
-            mCurrentState = STATE_ERROR;
-            mTargetState = STATE_ERROR;
-            mErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
-        }
+        mEvicted = false;
+        mCurrentBufferPercentage = 0;
+        holdPlaylistPrefetch(true);
+        mEngine.setDisplay(mSurfaceHolder);
+        mEngine.open(mUri, mHeaders);
+        mCurrentState = STATE_PREPARING;
+        publishState();
+        attachMediaController();
     }
 
-    public void setMediaController(MatrixMediaController controller) {
+    /**
+     * Sets the controller. A controller still attached to another
+     * MatrixVideoView is taken over from it, so one controller can follow
+     * the active item of a list.
+     */
+    public void setMediaController(MediaControllerView controller) {
         if (mMediaController != null) {
             mMediaController.hide();
+            if (mMediaController != controller && mMediaController.getMediaPlayer() == this) {
+                mMediaController.setMediaPlayer(null);
+            }
+        }
+        if (controller != null) {
+            MatrixMediaController.MediaPlayerControl previous = controller.getMediaPlayer();
+            if (previous instanceof MatrixVideoView && previous != this) {
+                ((MatrixVideoView) previous).mMediaController = null;
+            }
         }
         mMediaController = controller;
         attachMediaController();
     }
 
     private void attachMediaController() {
-        if (mMediaPlayer != null && mMediaController != null) {
+        if (mEngine.isOpen() && mMediaController != null) {
             mMediaController.setMediaPlayer(this);
             mMediaController.setEnabled(isInPlaybackState());
             mMediaController.hide();
         }
     }
 
-    MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
-            new MediaPlayer.OnVideoSizeChangedListener() {
-                public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
-                    mVideoWidth = mp.getVideoWidth();
-                    mVideoHeight = mp.getVideoHeight();
-                    Log.d(TAG, String.format("onVideoSizeChanged width=%d,height=%d", mVideoWidth, mVideoHeight));
-                    if (mVideoWidth != 0 && mVideoHeight != 0) {
-                        getHolder().setFixedSize(mVideoWidth, mVideoHeight);
-                        requestLayout();
-                    }
-                }
-            };
+    private PlaybackEngine.Listener mEngineListener = new PlaybackEngine.Listener() {
+        public void onVideoSizeChanged(int width, int height) {
+            mVideoWidth = width;
+            mVideoHeight = height;
+            Log.d(TAG, String.format("onVideoSizeChanged width=%d,height=%d", mVideoWidth, mVideoHeight));
+            publishState();
+            if (mVideoWidth != 0 && mVideoHeight != 0) {
+                getHolder().setFixedSize(mVideoWidth, mVideoHeight);
+                requestLayout();
+            }
+        }
 
-    MediaPlayer.OnPreparedListener mPreparedListener = new MediaPlayer.OnPreparedListener() {
-        public void onPrepared(MediaPlayer mp) {
+        public void onPrepared(int width, int height, int duration) {
             mCurrentState = STATE_PREPARED;
+            mDuration = duration;
+            mStartupMetrics.mark(StartupMetrics.PHASE_PREPARE_ISSUED, mEngine.getPrepareIssuedNanos());
+            mStartupMetrics.mark(StartupMetrics.PHASE_PREPARED);
 
             mCanPause = mCanSeekBack = mCanSeekForward = true;
+            publishState();
+            requestKeyframeIndex();
+            holdPlaylistPrefetch(false);
+            queueNextItem();
 
             mPreparedBeforeStart = true;
-            if (mMediaController != null) {
-                mMediaController.hideLoading();
-            }
+            hideLoading();
 
             if (mOnPreparedListener != null) {
-                mOnPreparedListener.onPrepared(mMediaPlayer);
+                mOnPreparedListener.onPrepared(mEngine.getMediaPlayer());
             }
             if (mMediaController != null) {
                 mMediaController.setEnabled(true);
             }
-            mVideoWidth = mp.getVideoWidth();
-            mVideoHeight = mp.getVideoHeight();
+            mVideoWidth = width;
+            mVideoHeight = height;
+            publishState();
 
             int seekToPosition = mSeekWhenPrepared; 
             if (seekToPosition != 0) {
@@ -375,91 +576,134 @@ public class MatrixVideoView extends SurfaceView
                 }
             } else {
             
-                if (mTargetState == STATE_PLAYING) {
+                if (mTargetState == STATE_PLAYING && mSurfaceHolder != null) {
                     start();
                 }
             }
         }
-    };
 
-    private MediaPlayer.OnCompletionListener mCompletionListener =
-            new MediaPlayer.OnCompletionListener() {
-                public void onCompletion(MediaPlayer mp) {
-                    mCurrentState = STATE_PLAYBACK_COMPLETED;
-                    mTargetState = STATE_PLAYBACK_COMPLETED;
-                    if (mMediaController != null) {
-                        boolean a = mMediaPlayer.isPlaying();
-                        int b = mCurrentState;
-                        mMediaController.showComplete();
-                      
-                        Log.d(TAG, String.format("a=%s,b=%d", a, b));
-                    }
-                    if (mOnCompletionListener != null) {
-                        mOnCompletionListener.onCompletion(mMediaPlayer);
-                    }
+        public void onAdvanced(int width, int height, int duration) {
+            // The engine plays what was queued; the playlist may have been
+            // replaced or shortened since, so the item is looked up again.
+            Uri next = mQueuedNext;
+            mQueuedNext = null;
+            int index = mPlaylistIndex + 1;
+            if (mPlaylist == null || mPlaylistIndex < 0 || index >= mPlaylist.size()
+                    || !mPlaylist.get(index).equals(next)) {
+                index = mPlaylist != null ? mPlaylist.indexOf(next) : -1;
+            }
+            mPlaylistIndex = index;
+            mSourceUri = next;
+            mUri = playbackUri(mSourceUri);
+            trackPosition(mSourceUri);
+            mDuration = duration;
+            mVideoWidth = width;
+            mVideoHeight = height;
+            mSeekWhenPrepared = 0;
+            mLastScrubTarget = -1;
+            mKeyframeIndex = Mp4Index.get(mUri);
+            mStallMetrics.beginSession();
+            mStallMetrics.onPlay();
+            if (mPlaylistPrefetcher != null) {
+                mPlaylistPrefetcher.setCurrentIndex(mPlaylistIndex);
+            }
+            publishState();
+            if (mVideoWidth != 0 && mVideoHeight != 0) {
+                getHolder().setFixedSize(mVideoWidth, mVideoHeight);
+                requestLayout();
+            }
+            requestKeyframeIndex();
+            queueNextItem();
+            if (mOnPlaylistIndexChangedListener != null && mPlaylistIndex >= 0) {
+                mOnPlaylistIndexChangedListener.onPlaylistIndexChanged(MatrixVideoView.this, mPlaylistIndex);
+            }
+        }
+
+        public void onCompletion() {
+            if (hasNextItem()) {
+                // The next item was not chained in time; open it the usual way.
+                setPlaylistIndex(mPlaylistIndex + 1);
+                start();
+                if (mOnPlaylistIndexChangedListener != null) {
+                    mOnPlaylistIndexChangedListener.onPlaylistIndexChanged(MatrixVideoView.this, mPlaylistIndex);
                 }
-            };
-
-    private MediaPlayer.OnInfoListener mInfoListener =
-            new MediaPlayer.OnInfoListener() {
-                public  boolean onInfo(MediaPlayer mp, int what, int extra){
-                    boolean handled = false;
-                    switch (what) {
-                        case MediaPlayer.MEDIA_INFO_BUFFERING_START:
-                            Log.d(TAG, "onInfo MediaPlayer.MEDIA_INFO_BUFFERING_START");
-                            if (videoViewCallback != null) {
-                                videoViewCallback.onBufferingStart(mMediaPlayer);
-                            }
-                            if (mMediaController != null) {
-                                mMediaController.showLoading();
-                            }
-                            handled = true;
-                            break;
-                        case MediaPlayer.MEDIA_INFO_BUFFERING_END:
-                            Log.d(TAG, "onInfo MediaPlayer.MEDIA_INFO_BUFFERING_END");
-                            if (videoViewCallback != null) {
-                                videoViewCallback.onBufferingEnd(mMediaPlayer);
-                            }
-                            if (mMediaController != null) {
-                                mMediaController.hideLoading();
-                            }
-                            handled = true;
-                            break;
-                    }
-                    if (mOnInfoListener != null) {
-                        return mOnInfoListener.onInfo(mp, what, extra) || handled;
+                return;
+            }
+            mCurrentState = STATE_PLAYBACK_COMPLETED;
+            mTargetState = STATE_PLAYBACK_COMPLETED;
+            mStallMetrics.onPause();
+            publishState();
+            removeCallbacks(mShowLoading);
+            if (mMediaController != null) {
+                mMediaController.showComplete();
+            }
+            if (mOnCompletionListener != null) {
+                mOnCompletionListener.onCompletion(mEngine.getMediaPlayer());
+            }
+        }
+
+        public void onInfo(int what, int extra) {
+            switch (what) {
+                case MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START:
+                    mStartupMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME);
+                    break;
+                case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+                    Log.d(TAG, "onInfo MediaPlayer.MEDIA_INFO_BUFFERING_START");
+                    mStallMetrics.onBufferingStart();
+                    holdPlaylistPrefetch(true);
+                    if (videoViewCallback != null) {
+                        videoViewCallback.onBufferingStart(mEngine.getMediaPlayer());
                     }
-                    return handled;
-                }
-            };
-
-    private MediaPlayer.OnErrorListener mErrorListener =
-            new MediaPlayer.OnErrorListener() {
-                public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
-                    Log.d(TAG, "Error: " + framework_err + "," + impl_err);
-                    mCurrentState = STATE_ERROR;
-                    mTargetState = STATE_ERROR;
-                    if (mMediaController != null) {
-                        mMediaController.showError();
+                    showLoadingSoon();
+                    break;
+                case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+                    Log.d(TAG, "onInfo MediaPlayer.MEDIA_INFO_BUFFERING_END");
+                    mStallMetrics.onBufferingEnd();
+                    holdPlaylistPrefetch(false);
+                    if (videoViewCallback != null) {
+                        videoViewCallback.onBufferingEnd(mEngine.getMediaPlayer());
                     }
+                    hideLoading();
+                    break;
+            }
+            if (mOnInfoListener != null) {
+                mOnInfoListener.onInfo(mEngine.getMediaPlayer(), what, extra);
+            }
+        }
 
-                    if (mOnErrorListener != null) {
-                        if (mOnErrorListener.onError(mMediaPlayer, framework_err, impl_err)) {
-                            return true;
-                        }
-                    }
+        public void onError(int framework_err, int impl_err) {
+            Log.d(TAG, "Error: " + framework_err + "," + impl_err);
+            mCurrentState = STATE_ERROR;
+            mTargetState = STATE_ERROR;
+            mStallMetrics.onPause();
+            holdPlaylistPrefetch(false);
+            publishState();
+            removeCallbacks(mShowLoading);
+            if (mMediaController != null) {
+                mMediaController.showError();
+            }
 
-          
-                    return true;
-                }
-            };
+            if (mOnErrorListener != null) {
+                mOnErrorListener.onError(mEngine.getMediaPlayer(), framework_err, impl_err);
+            }
+        }
 
-    private MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
-            new MediaPlayer.OnBufferingUpdateListener() {
-                public void onBufferingUpdate(MediaPlayer mp, int percent) {
-                    mCurrentBufferPercentage = percent;
-                }
-            };
+        public void onBufferingUpdate(int percent) {
+            mCurrentBufferPercentage = percent;
+            publishState();
+        }
+
+        public void onEvicted(int position) {
+            mSeekWhenPrepared = position;
+            mCurrentState = STATE_IDLE;
+            mStallMetrics.onPause();
+            mEvicted = true;
+            publishState();
+            if (mMediaController != null) {
+                mMediaController.hide();
+            }
+        }
+    };
 
     public void setOnPreparedListener(MediaPlayer.OnPreparedListener l)
     {
@@ -488,7 +732,7 @@ public class MatrixVideoView extends SurfaceView
             mSurfaceHeight = h;
             boolean isValidState =  (mTargetState == STATE_PLAYING);
             boolean hasValidSize = (mVideoWidth == w && mVideoHeight == h);
-            if (mMediaPlayer != null && isValidState && hasValidSize) {
+            if (mEngine.isOpen() && isValidState && hasValidSize) {
                 if (mSeekWhenPrepared != 0) {
                     seekTo(mSeekWhenPrepared);
                 }
@@ -499,7 +743,18 @@ public class MatrixVideoView extends SurfaceView
         public void surfaceCreated(SurfaceHolder holder)
         {
             mSurfaceHolder = holder;
-            openVideo();
+            mStartupMetrics.mark(StartupMetrics.PHASE_SURFACE_READY);
+            if (mEngine.isOpen()) {
+                mEngine.setDisplay(holder);
+                boolean hasValidSize = mVideoWidth == 0 || mVideoHeight == 0
+                        || (mVideoWidth == mSurfaceWidth && mVideoHeight == mSurfaceHeight);
+                if (mTargetState == STATE_PLAYING && isInPlaybackState() && !isPlaying()
+                        && hasValidSize) {
+                    start();
+                }
+            } else {
+                openVideo();
+            }
             enableOrientationDetect();
         }
 
@@ -508,11 +763,27 @@ public class MatrixVideoView extends SurfaceView
             
             mSurfaceHolder = null;
             if (mMediaController != null) mMediaController.hide();
-            release(true);
+            if ((mRetainPlayer || mMovingSurface) && mEngine.isOpen() && mCurrentState != STATE_ERROR) {
+                mEngine.detachDisplay();
+                if (!mPlayAudioWhenDetached && !mMovingSurface && isPlaying()) {
+                    pause();
+                    mTargetState = STATE_PLAYING;
+                }
+            } else {
+                release(true);
+            }
             disableOrientationDetect();
         }
     };
 
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (visibility == VISIBLE && mEngine.isOpen()) {
+            mEngine.touch();
+        }
+    }
+
     private void enableOrientationDetect() {
         if (mAutoRotation && mOrientationDetector == null) {
             mOrientationDetector = new OrientationDetector(mContext);
@@ -527,14 +798,27 @@ public class MatrixVideoView extends SurfaceView
         }
     }
     private void release(boolean cleartargetstate) {
-        if (mMediaPlayer != null) {
-            mMediaPlayer.reset();
-            mMediaPlayer.release();
-            mMediaPlayer = null;
+        if (mEngine.isOpen()) {
+            mEngine.release();
+            mStallMetrics.onPause();
             mCurrentState = STATE_IDLE;
             if (cleartargetstate) {
                 mTargetState  = STATE_IDLE;
             }
+            publishState();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releasePlaylistPrefetch();
+    }
+
+    // Stops the download thread; the prefetcher starts again with the next playlist.
+    private void releasePlaylistPrefetch() {
+        if (mPlaylistPrefetcher != null) {
+            mPlaylistPrefetcher.release();
         }
     }
 
@@ -567,7 +851,7 @@ public class MatrixVideoView extends SurfaceView
         if (isInPlaybackState() && isKeyCodeSupported && mMediaController != null) {
             if (keyCode == KeyEvent.KEYCODE_HEADSETHOOK ||
                     keyCode == KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE) {
-                if (mMediaPlayer.isPlaying()) {
+                if (isPlaying()) {
                     pause();
                     mMediaController.show();
                 } else {
@@ -576,14 +860,14 @@ public class MatrixVideoView extends SurfaceView
                 }
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_MEDIA_PLAY) {
-                if (!mMediaPlayer.isPlaying()) {
+                if (!isPlaying()) {
                     start();
                     mMediaController.hide();
                 }
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_MEDIA_STOP
                     || keyCode == KeyEvent.KEYCODE_MEDIA_PAUSE) {
-                if (mMediaPlayer.isPlaying()) {
+                if (isPlaying()) {
                     pause();
                     mMediaController.show();
                 }
@@ -607,15 +891,28 @@ public class MatrixVideoView extends SurfaceView
 
     @Override
     public void start() {
-        if (!mPreparedBeforeStart && mMediaController != null) {
-            mMediaController.showLoading();
+        if (!mPreparedBeforeStart) {
+            showLoadingSoon();
         }
 
+        if (mEvicted && !mEngine.isOpen()) {
+            mTargetState = STATE_PLAYING;
+            openVideo();
+            return;
+        }
         if (isInPlaybackState()) {
-            mMediaPlayer.start();
+            mEngine.touch();
+            mEngine.start();
+            mStartupMetrics.mark(StartupMetrics.PHASE_START);
+            mStallMetrics.onPlay();
+            if (mVideoWidth == 0 || mVideoHeight == 0) {
+                // Audio only, there is no frame to wait for.
+                mStartupMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME);
+            }
             mCurrentState = STATE_PLAYING;
+            publishState();
             if (this.videoViewCallback != null) {
-                this.videoViewCallback.onStart(mMediaPlayer);
+                this.videoViewCallback.onStart(mEngine.getMediaPlayer());
             }
         }
         mTargetState = STATE_PLAYING;
@@ -624,11 +921,13 @@ public class MatrixVideoView extends SurfaceView
     @Override
     public void pause() {
         if (isInPlaybackState()) {
-            if (mMediaPlayer.isPlaying()) {
-                mMediaPlayer.pause();
+            if (isPlaying()) {
+                mEngine.pause();
+                mStallMetrics.onPause();
                 mCurrentState = STATE_PAUSED;
+                publishState();
                 if (this.videoViewCallback != null) {
-                    this.videoViewCallback.onPause(mMediaPlayer);
+                    this.videoViewCallback.onPause(mEngine.getMediaPlayer());
                 }
             }
         }
@@ -645,69 +944,291 @@ public class MatrixVideoView extends SurfaceView
 
     @Override
     public int getDuration() {
-        if (isInPlaybackState()) {
-            return mMediaPlayer.getDuration();
-        }
-
-        return -1;
+        return mSnapshot.duration;
     }
 
     @Override
     public int getCurrentPosition() {
-        if (isInPlaybackState()) {
-            return mMediaPlayer.getCurrentPosition();
+        if (mSnapshot.inPlaybackState) {
+            return mEngine.getCurrentPosition();
         }
         return 0;
     }
 
     @Override
     public void seekTo(int msec) {
+        if (mKeyframeIndex != null) {
+            msec = mKeyframeIndex.snap(msec, mSeekSnap);
+        }
         if (isInPlaybackState()) {
-            mMediaPlayer.seekTo(msec);
+            mEngine.seekTo(msec);
+            mStallMetrics.onSeek();
             mSeekWhenPrepared = 0;
         } else {
             mSeekWhenPrepared = msec;
         }
     }
 
+    public void beginScrub() {
+        if (mScrubbing) {
+            return;
+        }
+        mScrubbing = true;
+        mLastScrubTarget = -1;
+        mResumeAfterScrub = isPlaying();
+        if (mResumeAfterScrub) {
+            pause();
+        }
+        requestKeyframeIndex();
+    }
+
+    public void scrubTo(int msec) {
+        if (!mScrubbing || !isInPlaybackState()) {
+            return;
+        }
+        // A fast seek shows a keyframe anyway; with the index, moves that
+        // would show the same one are dropped before reaching the player.
+        if (mKeyframeIndex != null) {
+            msec = mKeyframeIndex.snap(msec, Mp4Index.SNAP_NEAREST);
+            if (msec == mLastScrubTarget) {
+                return;
+            }
+            mLastScrubTarget = msec;
+        }
+        mEngine.seekTo(msec, PlaybackEngine.SEEK_FAST);
+        prefetchAround(msec);
+    }
+
+    public void endScrub(int msec) {
+        if (!mScrubbing) {
+            return;
+        }
+        mScrubbing = false;
+        if (msec >= 0) {
+            seekTo(msec);
+        }
+        if (mResumeAfterScrub) {
+            start();
+        }
+    }
+
+    /**
+     * Seek latency of this view in milliseconds, from issuing a seek to the
+     * player reporting it done. {@code scrub} selects the fast seeks made
+     * while dragging instead of the precise ones.
+     */
+    public LatencyHistogram getSeekLatency(boolean scrub) {
+        return mEngine.getSeekLatency(scrub ? PlaybackEngine.SEEK_FAST : PlaybackEngine.SEEK_PRECISE);
+    }
+
+    /** Number of seek requests dropped because a newer one replaced them. */
+    public int getCoalescedSeekCount() {
+        return mEngine.getCoalescedSeekCount();
+    }
+
+    // While dragging, the bytes the final seek will need are fetched into the
+    // cache: from the keyframe before the target to the one after a few
+    // seconds of playback, or a bitrate estimate of that without an index.
+    private void prefetchAround(int msec) {
+        if (mCacheProxy == null || mSourceUri == null || !VideoCacheProxy.isRemote(mSourceUri)
+                || !VideoCacheProxy.isRemote(mUri)) {
+            return;
+        }
+        long start;
+        long end;
+        Mp4Index index = mKeyframeIndex;
+        if (index != null && index.getKeyframeCount() > 0) {
+            // The index is read from the proxied stream; its offsets are not
+            // the origin's when the proxy moved the moov to the front.
+            int first = index.floorKeyframe(msec);
+            int last = index.floorKeyframe(msec + PREFETCH_MS) + 1;
+            start = mCacheProxy.toSourceOffset(mSourceUri, index.getKeyframeOffset(first));
+            end = last < index.getKeyframeCount()
+                    ? mCacheProxy.toSourceOffset(mSourceUri, index.getKeyframeOffset(last))
+                    : start + MAX_PREFETCH_BYTES;
+            if (start < 0 || end < start) {
+                return;
+            }
+        } else {
+            long total = mCacheProxy.getCache().totalLength(mSourceUri.toString());
+            if (total <= 0 || mDuration <= 0) {
+                return;
+            }
+            // Whole buckets, so small moves ask for the same range again.
+            int bucket = msec - msec % (PREFETCH_MS / 2);
+            start = (long) ((double) total * bucket / mDuration);
+            end = start + (long) ((double) total * PREFETCH_MS / mDuration);
+        }
+        long length = Math.max(MIN_PREFETCH_BYTES, Math.min(MAX_PREFETCH_BYTES, end - start));
+        mCacheProxy.prefetch(mSourceUri, start, length);
+    }
+
+    // A finished download or a fully cached copy is opened as a local file,
+    // so it starts like local media without going through the proxy.
+    private Uri playbackUri(Uri uri) {
+        if (uri == null || !VideoCacheProxy.isRemote(uri)) {
+            return uri;
+        }
+        Uri local = mDownloader != null ? mDownloader.getLocalUri(uri) : null;
+        if (local != null) {
+            return local;
+        }
+        if (mCacheProxy == null) {
+            return uri;
+        }
+        File cached = mCacheProxy.getCache().getCompleteFile(uri.toString());
+        return cached != null ? Uri.fromFile(cached) : mCacheProxy.getProxyUri(uri);
+    }
+
+    private boolean hasNextItem() {
+        return mAutoAdvance && mPlaylist != null && mPlaylistIndex >= 0 && mPlaylistIndex + 1 < mPlaylist.size();
+    }
+
+    // Hands the item after the current one to the engine, which prepares and
+    // chains it near the end of the current one.
+    private void queueNextItem() {
+        if (!hasNextItem()) {
+            // mQueuedNext stays: the engine may have advanced to it already.
+            mEngine.setNext(null, null);
+            return;
+        }
+        mQueuedNext = mPlaylist.get(mPlaylistIndex + 1);
+        mEngine.setNext(playbackUri(mQueuedNext), null);
+    }
+
+    // Playlist prefetching waits while the current video is preparing or
+    // rebuffering, so it only takes bandwidth the player is not using.
+    private void holdPlaylistPrefetch(boolean hold) {
+        if (mPlaylistPrefetcher == null) {
+            return;
+        }
+        if (hold) {
+            mPlaylistPrefetcher.pause();
+        } else {
+            mPlaylistPrefetcher.resume();
+        }
+    }
+
+    // Built once the player is prepared, so a proxied file's moov is already
+    // in the cache; only needed for snapping or for scrubbing from a controller.
+    // A remote file played without the proxy would have its moov downloaded a
+    // second time, so for scrubbing that waits until a scrub begins.
+    private void requestKeyframeIndex() {
+        if (mUri == null || mKeyframeIndex != null || !isInPlaybackState()) {
+            return;
+        }
+        boolean cheap = !VideoCacheProxy.isRemote(mUri) || !mUri.equals(mSourceUri);
+        if (mSeekSnap == Mp4Index.SNAP_OFF && (mMediaController == null || !(cheap || mScrubbing))) {
+            return;
+        }
+        Mp4Index.load(mContext, mUri, mHeaders, mIndexListener);
+    }
+
+    private Mp4Index.OnIndexReadyListener mIndexListener = new Mp4Index.OnIndexReadyListener() {
+        public void onIndexReady(Uri uri, Mp4Index index) {
+            if (uri.equals(mUri)) {
+                mKeyframeIndex = index;
+            }
+        }
+    };
+
+    // Most prepares and rebuffers are over before the loading view would
+    // even be noticed, so it is only shown, and inflated, once a wait lasts.
+    private void showLoadingSoon() {
+        removeCallbacks(mShowLoading);
+        postDelayed(mShowLoading, LOADING_DELAY_MS);
+    }
+
+    private void hideLoading() {
+        removeCallbacks(mShowLoading);
+        if (mMediaController != null) {
+            mMediaController.hideLoading();
+        }
+    }
+
+    private Runnable mShowLoading = new Runnable() {
+        public void run() {
+            if (mMediaController != null) {
+                mMediaController.showLoading();
+            }
+        }
+    };
+
+    // The proxy compares HLS segment requests with the playhead to know how
+    // much is buffered when it picks a variant.
+    private void trackPosition(Uri uri) {
+        if (mCacheProxy == null) {
+            return;
+        }
+        if (mPositionUri != null) {
+            mCacheProxy.setPlaybackPosition(mPositionUri, null);
+        }
+        mPositionUri = uri != null && VideoCacheProxy.isRemote(uri) ? uri : null;
+        if (mPositionUri != null) {
+            mCacheProxy.setPlaybackPosition(mPositionUri, mPlaybackPosition);
+        }
+    }
+
+    private VideoCacheProxy.PlaybackPosition mPlaybackPosition = new VideoCacheProxy.PlaybackPosition() {
+        public int getCurrentPosition() {
+            return MatrixVideoView.this.getCurrentPosition();
+        }
+    };
+
     @Override
     public boolean isPlaying() {
-        return isInPlaybackState() && mMediaPlayer.isPlaying();
+        return mSnapshot.playing;
     }
 
     @Override
     public int getBufferPercentage() {
-        if (mMediaPlayer != null) {
-            return mCurrentBufferPercentage;
-        }
-        return 0;
+        return mSnapshot.bufferPercentage;
     }
 
     private boolean isInPlaybackState() {
-        return (mMediaPlayer != null &&
+        return (mEngine.isOpen() &&
                 mCurrentState != STATE_ERROR &&
                 mCurrentState != STATE_IDLE &&
                 mCurrentState != STATE_PREPARING);
     }
 
+    // Called after every change to the fields a snapshot is built from.
+    private void publishState() {
+        boolean inPlaybackState = isInPlaybackState();
+        boolean playing = inPlaybackState && mCurrentState == STATE_PLAYING;
+        int duration = inPlaybackState ? mDuration : -1;
+        int bufferPercentage = mEngine.isOpen() ? mCurrentBufferPercentage : 0;
+        PlayerSnapshot current = mSnapshot;
+        if (current.inPlaybackState == inPlaybackState && current.playing == playing
+                && current.duration == duration && current.bufferPercentage == bufferPercentage
+                && current.canPause == mCanPause && current.canSeekBackward == mCanSeekBack
+                && current.canSeekForward == mCanSeekForward
+                && current.videoWidth == mVideoWidth && current.videoHeight == mVideoHeight) {
+            return;
+        }
+        mSnapshot = new PlayerSnapshot(inPlaybackState, playing, duration, bufferPercentage,
+                mCanPause, mCanSeekBack, mCanSeekForward, mVideoWidth, mVideoHeight);
+    }
+
     @Override
     public boolean canPause() {
-        return mCanPause;
+        return mSnapshot.canPause;
     }
 
     @Override
     public boolean canSeekBackward() {
-        return mCanSeekBack;
+        return mSnapshot.canSeekBackward;
     }
 
     @Override
     public boolean canSeekForward() {
-        return mCanSeekForward;
+        return mSnapshot.canSeekForward;
     }
 
     @Override
     public void closePlayer() {
         release(true);
+        releasePlaylistPrefetch();
     }
 
     @Override
@@ -722,7 +1243,14 @@ public class MatrixVideoView extends SurfaceView
        
         Activity activity = (Activity) mContext;
 
-        if (fullscreen) {
+        if (mFullscreenMode == FULLSCREEN_MODE_CONTAINER) {
+            if (fullscreen) {
+                enterFullscreenContainer(activity);
+            } else {
+                exitFullscreenContainer(activity);
+            }
+            activity.setRequestedOrientation(screenOrientation);
+        } else if (fullscreen) {
             if (mVideoViewLayoutWidth == 0 && mVideoViewLayoutHeight == 0) {
                 ViewGroup.LayoutParams params = getLayoutParams();
                 mVideoViewLayoutWidth = params.width;
@@ -739,13 +1267,74 @@ public class MatrixVideoView extends SurfaceView
             activity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
             activity.setRequestedOrientation(screenOrientation);
         }
-        mMediaController.toggleButtons(fullscreen);
+        if (mMediaController != null) {
+            mMediaController.toggleButtons(fullscreen);
+        }
         if (videoViewCallback != null) {
             videoViewCallback.onScaleChange(fullscreen);
         }
     }
 
 
+    private void enterFullscreenContainer(Activity activity) {
+        if (mFullscreenPlayer != null || !(getParent() instanceof ViewGroup)) {
+            return;
+        }
+        ViewGroup parent = (ViewGroup) getParent();
+        View player = this;
+        if (mMediaController instanceof View && ((View) mMediaController).getParent() == parent
+                && parent.getParent() instanceof ViewGroup) {
+            player = parent;
+            parent = (ViewGroup) parent.getParent();
+        }
+        mRestoreParent = parent;
+        mRestoreIndex = parent.indexOfChild(player);
+        mRestoreParams = player.getLayoutParams();
+        mFullscreenPlayer = player;
+
+        ViewGroup decor = (ViewGroup) activity.getWindow().getDecorView();
+        moveSurface(player, parent, decor, -1, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        activity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            decor.setSystemUiVisibility(View.SYSTEM_UI_FLAG_FULLSCREEN
+                    | View.SYSTEM_UI_FLAG_HIDE_NAVIGATION
+                    | View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY);
+        }
+    }
+
+    private void exitFullscreenContainer(Activity activity) {
+        if (mFullscreenPlayer == null) {
+            return;
+        }
+        ViewGroup decor = (ViewGroup) activity.getWindow().getDecorView();
+        moveSurface(mFullscreenPlayer, decor, mRestoreParent, mRestoreIndex, mRestoreParams);
+        mFullscreenPlayer = null;
+        mRestoreParent = null;
+        mRestoreParams = null;
+        activity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            decor.setSystemUiVisibility(View.SYSTEM_UI_FLAG_VISIBLE);
+        }
+    }
+
+    private void moveSurface(View player, ViewGroup from, ViewGroup to, int index,
+                             ViewGroup.LayoutParams params) {
+        mMovingSurface = true;
+        try {
+            from.removeView(player);
+        } finally {
+            mMovingSurface = false;
+        }
+        to.addView(player, index, params);
+        requestFocus();
+    }
+
+    public interface OnPlaylistIndexChangedListener {
+        /** Playback moved on to item {@code index} of the playlist by itself. */
+        void onPlaylistIndexChanged(MatrixVideoView view, int index);
+    }
+
     public interface VideoViewCallback {
         void onScaleChange(boolean isFullscreen);
         void onPause(final MediaPlayer mediaPlayer);
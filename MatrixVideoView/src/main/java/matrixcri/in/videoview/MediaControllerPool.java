@@ -0,0 +1,97 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.content.Context;
+import android.view.ViewGroup;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles {@link MatrixMediaController}s for a list or feed, so binding an
+ * item takes a ready controller instead of inflating one. Controllers are
+ * tied to the pool's {@link Context}; keep one pool per screen and
+ * {@link #clear()} it when the screen goes away. UI thread only.
+ */
+public class MediaControllerPool {
+    private static final int DEFAULT_MAX_IDLE = 3;
+
+    private final Context mContext;
+    private final boolean mScalable;
+    private final ArrayDeque<MatrixMediaController> mIdle = new ArrayDeque<MatrixMediaController>();
+    private int mMaxIdle = DEFAULT_MAX_IDLE;
+    private int mInflating;
+
+    public MediaControllerPool(Context context, boolean scalable) {
+        mContext = context;
+        mScalable = scalable;
+    }
+
+    public void setMaxIdle(int max) {
+        mMaxIdle = Math.max(0, max);
+        while (mIdle.size() > mMaxIdle) {
+            mIdle.poll();
+        }
+    }
+
+    /** Inflates controllers in the background until {@code count} are idle. */
+    public void prewarm(int count) {
+        int wanted = Math.min(count, mMaxIdle) - mIdle.size() - mInflating;
+        for (int i = 0; i < wanted; i++) {
+            mInflating++;
+            MatrixMediaController.inflateAsync(mContext, mScalable, new MatrixMediaController.OnInflatedListener() {
+                public void onInflated(MatrixMediaController controller) {
+                    mInflating--;
+                    if (mIdle.size() < mMaxIdle) {
+                        mIdle.add(controller);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Returns an idle controller, or inflates one if there is none. The result has no parent. */
+    public MatrixMediaController acquire() {
+        MatrixMediaController controller = mIdle.poll();
+        if (controller == null) {
+            controller = MatrixMediaController.create(mContext, mScalable);
+        }
+        return controller;
+    }
+
+    /** Detaches {@code controller} from its view and parent and keeps it for reuse. */
+    public void release(MatrixMediaController controller) {
+        MatrixMediaController.MediaPlayerControl player = controller.getMediaPlayer();
+        if (player instanceof MatrixVideoView) {
+            ((MatrixVideoView) player).setMediaController(null);
+        }
+        controller.setMediaPlayer(null);
+        controller.reset();
+        controller.hide();
+        if (controller.getParent() instanceof ViewGroup) {
+            ((ViewGroup) controller.getParent()).removeView(controller);
+        }
+        if (mIdle.size() < mMaxIdle) {
+            mIdle.add(controller);
+        }
+    }
+
+    public void clear() {
+        mIdle.clear();
+    }
+}
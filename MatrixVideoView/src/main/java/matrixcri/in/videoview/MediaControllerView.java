@@ -0,0 +1,53 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+/**
+ * What {@link MatrixVideoView} needs from its controller. Implemented by the
+ * inflated {@link MatrixMediaController} and the canvas-drawn
+ * {@link FlatMediaController}.
+ */
+public interface MediaControllerView {
+    void setMediaPlayer(MatrixMediaController.MediaPlayerControl player);
+
+    MatrixMediaController.MediaPlayerControl getMediaPlayer();
+
+    void setEnabled(boolean enabled);
+
+    void show();
+
+    void show(int timeout);
+
+    void hide();
+
+    boolean isShowing();
+
+    void showLoading();
+
+    void hideLoading();
+
+    void showError();
+
+    void hideError();
+
+    void showComplete();
+
+    void hideComplete();
+
+    void toggleButtons(boolean isFullScreen);
+}
@@ -0,0 +1,248 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keyframe (sync sample) times and file offsets of the video track of a
+ * progressive MP4, sorted by time. Built once per URI from the sample tables
+ * by {@link Mp4Parser} and kept in a small process wide cache; lookups are a
+ * binary search over primitive arrays.
+ */
+public class Mp4Index {
+    private static final String TAG = "Mp4Index";
+    private static final int CACHE_SIZE = 16;
+
+    /** Leave times as they are. */
+    public static final int SNAP_OFF = -1;
+    /** Snap to the closest keyframe on either side. */
+    public static final int SNAP_NEAREST = 0;
+    /** Snap to the keyframe at or before the time. */
+    public static final int SNAP_PREVIOUS = 1;
+    /** Snap to the keyframe at or after the time. */
+    public static final int SNAP_NEXT = 2;
+
+    private static final Map<String, Mp4Index> sCache = new LinkedHashMap<String, Mp4Index>(CACHE_SIZE, 0.75f, true);
+    private static final Set<String> sLoading = new HashSet<String>();
+    private static ExecutorService sExecutor;
+
+    private final int[] mTimesMs;
+    private final long[] mOffsets;
+    private final int mDurationMs;
+    private final long mMoovOffset;
+    private final long mMoovSize;
+    private final long mMdatOffset;
+
+    Mp4Index(int[] timesMs, long[] offsets, int durationMs, long moovOffset, long moovSize, long mdatOffset) {
+        mTimesMs = timesMs;
+        mOffsets = offsets;
+        mDurationMs = durationMs;
+        mMoovOffset = moovOffset;
+        mMoovSize = moovSize;
+        mMdatOffset = mdatOffset;
+    }
+
+    public int getKeyframeCount() {
+        return mTimesMs.length;
+    }
+
+    /** Presentation time of keyframe {@code i}, rounded up to the millisecond. */
+    public int getKeyframeTime(int i) {
+        return mTimesMs[i];
+    }
+
+    /** File offset of the first byte of keyframe {@code i}. */
+    public long getKeyframeOffset(int i) {
+        return mOffsets[i];
+    }
+
+    /** Index of the last keyframe at or before {@code timeMs}, or 0 if the time is before the first. */
+    public int floorKeyframe(int timeMs) {
+        int i = Arrays.binarySearch(mTimesMs, timeMs);
+        if (i < 0) {
+            i = -i - 2;
+        } else {
+            while (i + 1 < mTimesMs.length && mTimesMs[i + 1] == timeMs) {
+                i++;
+            }
+        }
+        return Math.max(i, 0);
+    }
+
+    /** Moves {@code timeMs} onto a keyframe according to {@code mode}; unchanged if there are none. */
+    public int snap(int timeMs, int mode) {
+        int count = mTimesMs.length;
+        if (count == 0 || mode == SNAP_OFF) {
+            return timeMs;
+        }
+        int floor = floorKeyframe(timeMs);
+        int before = mTimesMs[floor];
+        if (before >= timeMs || floor + 1 == count) {
+            return mode == SNAP_NEXT && before < timeMs ? timeMs : before;
+        }
+        int after = mTimesMs[floor + 1];
+        switch (mode) {
+            case SNAP_PREVIOUS:
+                return before;
+            case SNAP_NEXT:
+                return after;
+            case SNAP_NEAREST:
+                return timeMs - before <= after - timeMs ? before : after;
+            default:
+                return timeMs;
+        }
+    }
+
+    public int getDurationMs() {
+        return mDurationMs;
+    }
+
+    /** Offset of the {@code moov} box. */
+    public long getMoovOffset() {
+        return mMoovOffset;
+    }
+
+    public long getMoovSize() {
+        return mMoovSize;
+    }
+
+    /** True if {@code moov} comes before the media data, so playback can start from the first bytes. */
+    public boolean isFastStart() {
+        return mMdatOffset < 0 || mMoovOffset < mMdatOffset;
+    }
+
+    /** The cached index for {@code uri}, or null if it has not been built. */
+    public static Mp4Index get(Uri uri) {
+        synchronized (sCache) {
+            return sCache.get(uri.toString());
+        }
+    }
+
+    /**
+     * Builds the index for {@code uri} in the background unless it is cached
+     * or already being built. {@code listener} is called on the main thread
+     * once it is available, or not at all if the URI is not an MP4 with a
+     * video track or could not be read.
+     */
+    public static void load(Context context, final Uri uri, final Map<String, String> headers,
+                            final OnIndexReadyListener listener) {
+        final String key = uri.toString();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        synchronized (sCache) {
+            final Mp4Index cached = sCache.get(key);
+            if (cached != null) {
+                if (listener != null) {
+                    handler.post(new Runnable() {
+                        public void run() {
+                            listener.onIndexReady(uri, cached);
+                        }
+                    });
+                }
+                return;
+            }
+            if (!sLoading.add(key) && listener == null) {
+                return;
+            }
+            if (sExecutor == null) {
+                sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Mp4Index");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                final Mp4Index index = getOrBuild(appContext, uri, key, headers);
+                if (index != null && listener != null) {
+                    handler.post(new Runnable() {
+                        public void run() {
+                            listener.onIndexReady(uri, index);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /** Reads the sample tables of {@code source}; null if it is not an MP4 with a video track. */
+    static Mp4Index build(ByteSource source) throws IOException {
+        return new Mp4Parser(source).parse();
+    }
+
+    private static Mp4Index getOrBuild(Context context, Uri uri, String key, Map<String, String> headers) {
+        synchronized (sCache) {
+            Mp4Index cached = sCache.get(key);
+            if (cached != null) {
+                sLoading.remove(key);
+                return cached;
+            }
+        }
+        Mp4Index index = null;
+        ByteSource source = null;
+        try {
+            source = ByteSource.Factory.open(context, uri, headers);
+            if (source != null) {
+                index = build(source);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to index " + uri + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Malformed sample tables in " + uri, e);
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+        synchronized (sCache) {
+            sLoading.remove(key);
+            if (index != null) {
+                sCache.put(key, index);
+                Iterator<Mp4Index> it = sCache.values().iterator();
+                while (sCache.size() > CACHE_SIZE && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+        return index;
+    }
+
+    public interface OnIndexReadyListener {
+        void onIndexReady(Uri uri, Mp4Index index);
+    }
+}
@@ -0,0 +1,482 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Streaming reader for the sample tables of the first video track of an MP4
+ * file. Only box headers and the tables it needs are read: {@code mdat} and
+ * everything else is skipped by offset, and each table is consumed through a
+ * small window rather than loaded whole, so even a movie box of many
+ * megabytes costs a few tens of kilobytes of heap. Not thread safe.
+ */
+class Mp4Parser {
+    private static final int WINDOW = 4096;
+
+    private static final int FTYP = fourcc("ftyp");
+    private static final int STYP = fourcc("styp");
+    private static final int MOOV = fourcc("moov");
+    private static final int MDAT = fourcc("mdat");
+    private static final int FREE = fourcc("free");
+    private static final int SKIP = fourcc("skip");
+    private static final int WIDE = fourcc("wide");
+    private static final int MVHD = fourcc("mvhd");
+    private static final int TRAK = fourcc("trak");
+    private static final int EDTS = fourcc("edts");
+    private static final int ELST = fourcc("elst");
+    private static final int MDIA = fourcc("mdia");
+    private static final int MDHD = fourcc("mdhd");
+    private static final int HDLR = fourcc("hdlr");
+    private static final int MINF = fourcc("minf");
+    private static final int STBL = fourcc("stbl");
+    private static final int STTS = fourcc("stts");
+    private static final int CTTS = fourcc("ctts");
+    private static final int STSS = fourcc("stss");
+    private static final int STSC = fourcc("stsc");
+    private static final int STSZ = fourcc("stsz");
+    private static final int STCO = fourcc("stco");
+    private static final int CO64 = fourcc("co64");
+    private static final int VIDE = fourcc("vide");
+
+    private final ByteSource mSource;
+    private final byte[] mScratch = new byte[32];
+    private long mBoxSize;
+    private int mBoxType;
+    private int mHeaderSize;
+
+    private long mMoovOffset = -1;
+    private long mMoovSize;
+    private long mMdatOffset = -1;
+    private long mMovieTimescale;
+    private Track mTrack;
+
+    Mp4Parser(ByteSource source) {
+        mSource = source;
+    }
+
+    /** Returns the keyframe index, or null if this is not an MP4 with a video track. */
+    Mp4Index parse() throws IOException {
+        long length = mSource.length();
+        long end = length >= 0 ? length : Long.MAX_VALUE;
+        long position = 0;
+        while (position + 8 <= end && (mTrack == null || mMdatOffset < 0)) {
+            if (!readHeader(position, end)) {
+                break;
+            }
+            int type = mBoxType;
+            long size = mBoxSize;
+            if (position == 0 && type != FTYP && type != STYP && type != MOOV && type != MDAT
+                    && type != FREE && type != SKIP && type != WIDE) {
+                return null;
+            }
+            if (type == MOOV && mMoovOffset < 0) {
+                mMoovOffset = position;
+                mMoovSize = size;
+                parseMoov(position + mHeaderSize, position + size);
+            } else if (type == MDAT && mMdatOffset < 0) {
+                mMdatOffset = position;
+            }
+            if (size == Long.MAX_VALUE) {
+                break;
+            }
+            position += size;
+        }
+        if (mTrack == null) {
+            return null;
+        }
+        return buildIndex(mTrack);
+    }
+
+    private void parseMoov(long start, long end) throws IOException {
+        long position = start;
+        while (position + 8 <= end && readHeader(position, end)) {
+            long payload = position + mHeaderSize;
+            long boxEnd = position + mBoxSize;
+            if (mBoxType == MVHD) {
+                readFully(payload, 24);
+                mMovieTimescale = mScratch[0] == 1 ? readUInt(mScratch, 20) : readUInt(mScratch, 12);
+            } else if (mBoxType == TRAK && mTrack == null) {
+                Track track = new Track();
+                parseTrak(track, payload, boxEnd);
+                if (track.isComplete()) {
+                    mTrack = track;
+                }
+            }
+            position = boxEnd;
+        }
+    }
+
+    private void parseTrak(Track track, long start, long end) throws IOException {
+        long position = start;
+        while (position + 8 <= end && readHeader(position, end)) {
+            long payload = position + mHeaderSize;
+            long boxEnd = position + mBoxSize;
+            if (mBoxType == MDIA || mBoxType == MINF || mBoxType == STBL || mBoxType == EDTS) {
+                parseTrak(track, payload, boxEnd);
+            } else if (mBoxType == MDHD) {
+                readFully(payload, 32);
+                if (mScratch[0] == 1) {
+                    track.timescale = readUInt(mScratch, 20);
+                    track.duration = readLong(mScratch, 24);
+                } else {
+                    track.timescale = readUInt(mScratch, 12);
+                    track.duration = readUInt(mScratch, 16);
+                }
+            } else if (mBoxType == HDLR) {
+                readFully(payload, 12);
+                track.video = readInt(mScratch, 8) == VIDE;
+            } else if (mBoxType == ELST) {
+                parseEditList(track, payload, boxEnd);
+            } else if (mBoxType == STTS) {
+                track.stts = payload;
+            } else if (mBoxType == CTTS) {
+                track.ctts = payload;
+            } else if (mBoxType == STSS) {
+                track.stss = payload;
+            } else if (mBoxType == STSC) {
+                track.stsc = payload;
+            } else if (mBoxType == STSZ) {
+                track.stsz = payload;
+            } else if (mBoxType == STCO || mBoxType == CO64) {
+                track.stco = payload;
+                track.co64 = mBoxType == CO64;
+            }
+            position = boxEnd;
+        }
+    }
+
+    /** Only the common shapes are honoured: leading empty edits and the start of the first real one. */
+    private void parseEditList(Track track, long start, long end) throws IOException {
+        Cursor cursor = new Cursor(mSource, start, end);
+        boolean version1 = (cursor.readInt() >>> 24) == 1;
+        int entries = cursor.readInt();
+        for (int i = 0; i < entries; i++) {
+            long segmentDuration = version1 ? cursor.readLong() : cursor.readUnsignedInt();
+            long mediaTime = version1 ? cursor.readLong() : cursor.readInt();
+            cursor.skip(4);
+            if (mediaTime == -1) {
+                track.emptyEditDuration += segmentDuration;
+            } else {
+                track.mediaTime = mediaTime;
+                break;
+            }
+        }
+    }
+
+    private Mp4Index buildIndex(Track track) throws IOException {
+        Cursor stsz = new Cursor(mSource, track.stsz, Long.MAX_VALUE);
+        stsz.skip(4);
+        int uniformSize = stsz.readInt();
+        int sampleCount = stsz.readInt();
+        long sizesStart = track.stsz + 12;
+
+        int[] sync;
+        if (track.stss >= 0) {
+            Cursor stss = new Cursor(mSource, track.stss, Long.MAX_VALUE);
+            stss.skip(4);
+            sync = new int[stss.readInt()];
+            for (int i = 0; i < sync.length; i++) {
+                sync[i] = stss.readInt();
+            }
+        } else {
+            sync = new int[sampleCount];
+            for (int i = 0; i < sampleCount; i++) {
+                sync[i] = i + 1;
+            }
+        }
+
+        int count = sync.length;
+        int[] timesMs = new int[count];
+        long[] offsets = new long[count];
+
+        // Decode times: stts is (count, delta) runs.
+        Cursor stts = new Cursor(mSource, track.stts, Long.MAX_VALUE);
+        stts.skip(4);
+        int sttsRuns = stts.readInt();
+        long runFirst = 1;
+        long runLength = 0;
+        long runDelta = 0;
+        long runTime = 0;
+        long[] decodeTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            int sample = sync[i];
+            while (sample >= runFirst + runLength) {
+                if (sttsRuns-- == 0) {
+                    throw new EOFException("stts ends before sample " + sample);
+                }
+                runTime += runLength * runDelta;
+                runFirst += runLength;
+                runLength = stts.readUnsignedInt();
+                runDelta = stts.readUnsignedInt();
+            }
+            decodeTimes[i] = runTime + (sample - runFirst) * runDelta;
+        }
+
+        // Composition offsets: ctts is (count, offset) runs.
+        if (track.ctts >= 0) {
+            Cursor ctts = new Cursor(mSource, track.ctts, Long.MAX_VALUE);
+            ctts.skip(4);
+            int cttsRuns = ctts.readInt();
+            runFirst = 1;
+            runLength = 0;
+            long runOffset = 0;
+            for (int i = 0; i < count; i++) {
+                int sample = sync[i];
+                while (sample >= runFirst + runLength && cttsRuns > 0) {
+                    cttsRuns--;
+                    runFirst += runLength;
+                    runLength = ctts.readUnsignedInt();
+                    // Signed in version 1 and, in practice, in many version 0 files too.
+                    runOffset = ctts.readInt();
+                }
+                if (sample < runFirst + runLength) {
+                    decodeTimes[i] += runOffset;
+                }
+            }
+        }
+
+        long emptyEditUs = mMovieTimescale > 0 ? track.emptyEditDuration * 1000000L / mMovieTimescale : 0;
+        for (int i = 0; i < count; i++) {
+            long us = emptyEditUs + (decodeTimes[i] - track.mediaTime) * 1000000L / track.timescale;
+            // Round up, so a seek to the time never lands on the frame before it.
+            timesMs[i] = (int) Math.max(0, (us + 999) / 1000);
+        }
+
+        // File offsets: walk stsc runs to find each sample's chunk, then add up
+        // the sizes of the samples before it in that chunk.
+        Cursor stsc = new Cursor(mSource, track.stsc, Long.MAX_VALUE);
+        stsc.skip(4);
+        int stscRuns = stsc.readInt();
+        Cursor stco = new Cursor(mSource, track.stco, Long.MAX_VALUE);
+        stco.skip(4);
+        int chunkCount = stco.readInt();
+        long chunksStart = track.stco + 8;
+        int chunkEntrySize = track.co64 ? 8 : 4;
+
+        if (stscRuns-- <= 0) {
+            throw new EOFException("Empty stsc");
+        }
+        long firstChunk = stsc.readUnsignedInt();
+        long samplesPerChunk = stsc.readUnsignedInt();
+        stsc.skip(4);
+        long runFirstSample = 1;
+        long nextFirstChunk = Long.MAX_VALUE;
+        long nextSamplesPerChunk = 0;
+        if (stscRuns-- > 0) {
+            nextFirstChunk = stsc.readUnsignedInt();
+            nextSamplesPerChunk = stsc.readUnsignedInt();
+            stsc.skip(4);
+        }
+        for (int i = 0; i < count; i++) {
+            int sample = sync[i];
+            while (nextFirstChunk != Long.MAX_VALUE
+                    && sample >= runFirstSample + (nextFirstChunk - firstChunk) * samplesPerChunk) {
+                runFirstSample += (nextFirstChunk - firstChunk) * samplesPerChunk;
+                firstChunk = nextFirstChunk;
+                samplesPerChunk = nextSamplesPerChunk;
+                nextFirstChunk = Long.MAX_VALUE;
+                if (stscRuns-- > 0) {
+                    nextFirstChunk = stsc.readUnsignedInt();
+                    nextSamplesPerChunk = stsc.readUnsignedInt();
+                    stsc.skip(4);
+                }
+            }
+            if (samplesPerChunk == 0) {
+                throw new IOException("Empty stsc run");
+            }
+            long chunk = firstChunk + (sample - runFirstSample) / samplesPerChunk;
+            long chunkFirstSample = runFirstSample + (chunk - firstChunk) * samplesPerChunk;
+            if (chunk > chunkCount) {
+                throw new EOFException("Chunk " + chunk + " beyond stco");
+            }
+            stco.seek(chunksStart + (chunk - 1) * chunkEntrySize);
+            long offset = track.co64 ? stco.readLong() : stco.readUnsignedInt();
+            if (uniformSize != 0) {
+                offset += (sample - chunkFirstSample) * (long) uniformSize;
+            } else {
+                stsz.seek(sizesStart + (chunkFirstSample - 1) * 4);
+                for (long s = chunkFirstSample; s < sample; s++) {
+                    offset += stsz.readUnsignedInt();
+                }
+            }
+            offsets[i] = offset;
+        }
+
+        sortByTime(timesMs, offsets);
+        long timescale = track.timescale;
+        int durationMs = (int) (emptyEditUs / 1000 + Math.max(0, track.duration - Math.max(0, track.mediaTime))
+                * 1000 / timescale);
+        return new Mp4Index(timesMs, offsets, durationMs, mMoovOffset, mMoovSize, mMdatOffset);
+    }
+
+    /** Composition offsets can leave keyframes slightly out of order; fix that up in place. */
+    private static void sortByTime(int[] times, long[] offsets) {
+        for (int i = 1; i < times.length; i++) {
+            int time = times[i];
+            long offset = offsets[i];
+            int j = i - 1;
+            while (j >= 0 && times[j] > time) {
+                times[j + 1] = times[j];
+                offsets[j + 1] = offsets[j];
+                j--;
+            }
+            times[j + 1] = time;
+            offsets[j + 1] = offset;
+        }
+    }
+
+    /** Reads the box header at {@code position}; false if there is no well formed box there. */
+    private boolean readHeader(long position, long end) throws IOException {
+        if (!tryReadFully(position, 8)) {
+            return false;
+        }
+        long size = readUInt(mScratch, 0);
+        mBoxType = readInt(mScratch, 4);
+        mHeaderSize = 8;
+        if (size == 1) {
+            if (!tryReadFully(position + 8, 8)) {
+                return false;
+            }
+            size = readLong(mScratch, 0);
+            mHeaderSize = 16;
+        } else if (size == 0) {
+            size = end == Long.MAX_VALUE ? Long.MAX_VALUE : end - position;
+        }
+        if (size < mHeaderSize || (end != Long.MAX_VALUE && size > end - position)) {
+            return false;
+        }
+        mBoxSize = size;
+        return true;
+    }
+
+    private void readFully(long position, int length) throws IOException {
+        if (!tryReadFully(position, length)) {
+            throw new EOFException("Truncated box at " + position);
+        }
+    }
+
+    private boolean tryReadFully(long position, int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            int n = mSource.read(position + done, mScratch, done, length - done);
+            if (n < 0) {
+                return false;
+            }
+            done += n;
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+    }
+
+    private static long readUInt(byte[] b, int i) {
+        return readInt(b, i) & 0xffffffffL;
+    }
+
+    private static long readLong(byte[] b, int i) {
+        return readUInt(b, i) << 32 | readUInt(b, i + 4);
+    }
+
+    static int fourcc(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+
+    private static class Track {
+        boolean video;
+        long timescale;
+        long duration;
+        long emptyEditDuration;
+        long mediaTime;
+        long stts = -1;
+        long ctts = -1;
+        long stss = -1;
+        long stsc = -1;
+        long stsz = -1;
+        long stco = -1;
+        boolean co64;
+
+        boolean isComplete() {
+            return video && timescale > 0 && stts >= 0 && stsc >= 0 && stsz >= 0 && stco >= 0;
+        }
+    }
+
+    /** Big-endian reader over part of the source through a fixed window. */
+    static class Cursor {
+        private final ByteSource mSource;
+        private final byte[] mWindow = new byte[WINDOW];
+        private final long mEnd;
+        private long mWindowStart;
+        private int mWindowLength;
+        private long mPosition;
+
+        Cursor(ByteSource source, long position, long end) {
+            mSource = source;
+            mPosition = position;
+            mEnd = end;
+        }
+
+        void seek(long position) {
+            mPosition = position;
+        }
+
+        void skip(long bytes) {
+            mPosition += bytes;
+        }
+
+        int readInt() throws IOException {
+            int i = ensure(4);
+            mPosition += 4;
+            return Mp4Parser.readInt(mWindow, i);
+        }
+
+        long readUnsignedInt() throws IOException {
+            return readInt() & 0xffffffffL;
+        }
+
+        long readLong() throws IOException {
+            int i = ensure(8);
+            mPosition += 8;
+            return Mp4Parser.readLong(mWindow, i);
+        }
+
+        private int ensure(int bytes) throws IOException {
+            if (mPosition >= mWindowStart && mPosition + bytes <= mWindowStart + mWindowLength) {
+                return (int) (mPosition - mWindowStart);
+            }
+            mWindowStart = mPosition;
+            int want = (int) Math.min(WINDOW, mEnd - mPosition);
+            int filled = 0;
+            while (filled < want) {
+                int n = mSource.read(mPosition + filled, mWindow, filled, want - filled);
+                if (n < 0) {
+                    break;
+                }
+                filled += n;
+            }
+            mWindowLength = filled;
+            if (filled < bytes) {
+                throw new EOFException("Truncated table at " + mPosition);
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.os.SystemClock;
+
+/**
+ * Local estimate of the playback position. The playback thread anchors it to
+ * a real player position on start, pause, seek, buffering and completion, and
+ * between anchors the position is extrapolated from the wall clock, so
+ * reading it never goes to the media server.
+ */
+class PlaybackClock {
+    private int mAnchorPosition;
+    private long mAnchorTime;
+    private boolean mRunning;
+    private int mDuration;
+
+    synchronized void anchor(int positionMs, boolean running) {
+        mAnchorPosition = positionMs;
+        mAnchorTime = SystemClock.elapsedRealtime();
+        mRunning = running;
+    }
+
+    /** Re-anchors at the current estimate, keeping or stopping the clock. */
+    synchronized void setRunning(boolean running) {
+        anchor(getPosition(), running);
+    }
+
+    synchronized void setDuration(int durationMs) {
+        mDuration = durationMs;
+    }
+
+    synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    synchronized int getPosition() {
+        if (!mRunning) {
+            return mAnchorPosition;
+        }
+        long position = mAnchorPosition + SystemClock.elapsedRealtime() - mAnchorTime;
+        if (mDuration > 0 && position > mDuration) {
+            return mDuration;
+        }
+        return (int) position;
+    }
+
+    synchronized void reset() {
+        mAnchorPosition = 0;
+        mAnchorTime = 0;
+        mRunning = false;
+        mDuration = 0;
+    }
+}
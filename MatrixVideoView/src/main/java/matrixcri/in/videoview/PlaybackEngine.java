@@ -0,0 +1,703 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the {@link MediaPlayer} of one {@link MatrixVideoView} and drives it
+ * from a playback thread shared by all views, so no player call ever blocks
+ * the UI thread. Commands are queued from the UI thread; player events are
+ * delivered back to it through {@link Listener}.
+ *
+ * <p>Every {@link #open} and {@link #release} starts a new generation, and
+ * events raised by an older player are dropped before they reach the
+ * listener.</p>
+ *
+ * <p>A video queued with {@link #setNext} is prepared on a second player near
+ * the end of the current one and chained to it, so it starts without a gap;
+ * the switch is reported through {@link Listener#onAdvanced}.</p>
+ */
+class PlaybackEngine {
+    private static final String TAG = "PlaybackEngine";
+    private static final int CLOCK_SYNC_INTERVAL = 2000;
+    private static final long DETACH_TIMEOUT_MS = 500;
+    private static final int NEXT_PREPARE_LEAD_MS = 10000;
+    /** A seek without onSeekComplete by then no longer holds back the next one. */
+    private static final int SEEK_TIMEOUT_MS = 3000;
+
+    private static final int MSG_OPEN = 1;
+    private static final int MSG_SET_DISPLAY = 2;
+    private static final int MSG_START = 3;
+    private static final int MSG_PAUSE = 4;
+    private static final int MSG_SEEK = 5;
+    private static final int MSG_STOP = 6;
+    private static final int MSG_RELEASE = 7;
+    private static final int MSG_SYNC_CLOCK = 8;
+    private static final int MSG_DETACH_DISPLAY = 9;
+    private static final int MSG_SET_NEXT = 10;
+    private static final int MSG_SEEK_TIMEOUT = 11;
+
+    static final int SEEK_PRECISE = 0;
+    static final int SEEK_FAST = 1;
+
+    private static final int EVT_PREPARED = 1;
+    private static final int EVT_SIZE_CHANGED = 2;
+    private static final int EVT_COMPLETION = 3;
+    private static final int EVT_ERROR = 4;
+    private static final int EVT_INFO = 5;
+    private static final int EVT_BUFFERING = 6;
+    private static final int EVT_EVICTED = 7;
+    private static final int EVT_ADVANCED = 8;
+
+    private static HandlerThread sThread;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final Listener mListener;
+    private final PlaybackClock mClock = new PlaybackClock();
+    private final LatencyHistogram mPreciseSeekLatency = new LatencyHistogram();
+    private final LatencyHistogram mFastSeekLatency = new LatencyHistogram();
+
+    // UI thread state.
+    private int mGeneration;
+    private boolean mOpen;
+
+    // Playback thread state.
+    private MediaPlayer mPlayer;
+    private int mPlayerGeneration;
+    private int mAudioSession;
+    private SurfaceHolder mHolder;
+    private boolean mPrepared;
+    private boolean mPlaying;
+    private final SeekQueue mSeeks = new SeekQueue();
+    private OpenRequest mNextRequest;
+    private MediaPlayer mNextPlayer;
+    private boolean mNextLinked;
+
+    // Written on the playback thread, read anywhere.
+    private volatile MediaPlayer mPublishedPlayer;
+    private volatile long mPrepareIssuedNanos;
+
+    /** Returns the looper of the shared playback thread, starting it on first use. */
+    static synchronized Looper playbackLooper() {
+        if (sThread == null) {
+            sThread = new HandlerThread("MatrixVideoView-playback", Process.THREAD_PRIORITY_AUDIO);
+            sThread.start();
+        }
+        return sThread.getLooper();
+    }
+
+    PlaybackEngine(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mHandler = new Handler(playbackLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                handleCommand(msg);
+            }
+        };
+        mMainHandler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                dispatchEvent(msg);
+            }
+        };
+    }
+
+    boolean isOpen() {
+        return mOpen;
+    }
+
+    /** The current player, for handing to user listeners only; never call it from the UI thread. */
+    MediaPlayer getMediaPlayer() {
+        return mPublishedPlayer;
+    }
+
+    /** The interpolated position; costs no call into the player. */
+    int getCurrentPosition() {
+        return mClock.getPosition();
+    }
+
+    /** {@link System#nanoTime()} at which the current player was asked to prepare. */
+    long getPrepareIssuedNanos() {
+        return mPrepareIssuedNanos;
+    }
+
+    void open(Uri uri, Map<String, String> headers) {
+        mOpen = true;
+        mHandler.obtainMessage(MSG_OPEN, ++mGeneration, 0, new OpenRequest(uri, headers)).sendToTarget();
+    }
+
+    /**
+     * Queues {@code uri} to play right after the current video. It is
+     * prepared on a second player during the last seconds of the current one
+     * and linked with {@link MediaPlayer#setNextMediaPlayer}; null drops it.
+     * Needs Jelly Bean; before that the current video just completes.
+     */
+    void setNext(Uri uri, Map<String, String> headers) {
+        OpenRequest request = uri != null ? new OpenRequest(uri, headers) : null;
+        mHandler.obtainMessage(MSG_SET_NEXT, mGeneration, 0, request).sendToTarget();
+    }
+
+    void setDisplay(SurfaceHolder holder) {
+        mHandler.obtainMessage(MSG_SET_DISPLAY, holder).sendToTarget();
+    }
+
+    /**
+     * Disconnects the player from its surface and waits (briefly) until that
+     * has happened, so the surface can be destroyed safely when this returns.
+     */
+    void detachDisplay() {
+        CountDownLatch done = new CountDownLatch(1);
+        mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(MSG_DETACH_DISPLAY, done));
+        try {
+            if (!done.await(DETACH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out detaching display");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void start() {
+        mHandler.sendEmptyMessage(MSG_START);
+    }
+
+    void pause() {
+        mHandler.sendEmptyMessage(MSG_PAUSE);
+    }
+
+    void seekTo(int msec) {
+        seekTo(msec, SEEK_PRECISE);
+    }
+
+    /**
+     * Queues a seek. At most one seek is in flight on the player; while it
+     * runs, newer requests replace each other and only the last one is
+     * issued once the player reports completion.
+     */
+    void seekTo(int msec, int mode) {
+        mClock.anchor(msec, mClock.isRunning());
+        mHandler.removeMessages(MSG_SEEK);
+        mHandler.obtainMessage(MSG_SEEK, msec, mode).sendToTarget();
+    }
+
+    /** Time from issuing a seek to the player reporting it done, in milliseconds. */
+    LatencyHistogram getSeekLatency(int mode) {
+        return mode == SEEK_FAST ? mFastSeekLatency : mPreciseSeekLatency;
+    }
+
+    int getCoalescedSeekCount() {
+        return mSeeks.getCoalescedCount();
+    }
+
+    void stop() {
+        mHandler.sendEmptyMessage(MSG_STOP);
+        release();
+    }
+
+    /** Returns the player to the pool asynchronously; pending events of it are dropped. */
+    void release() {
+        if (!mOpen) {
+            return;
+        }
+        mOpen = false;
+        mGeneration++;
+        mMainHandler.removeCallbacksAndMessages(null);
+        mHandler.removeMessages(MSG_START);
+        mHandler.removeMessages(MSG_PAUSE);
+        mHandler.removeMessages(MSG_SEEK);
+        mHandler.sendEmptyMessage(MSG_RELEASE);
+    }
+
+    void touch() {
+        PlayerPool.getInstance().touch(mPoolOwner);
+    }
+
+    private void handleCommand(Message msg) {
+        switch (msg.what) {
+            case MSG_OPEN:
+                doOpen((OpenRequest) msg.obj, msg.arg1);
+                break;
+            case MSG_SET_DISPLAY:
+                mHolder = (SurfaceHolder) msg.obj;
+                PlayerPool.getInstance().setVisible(mPoolOwner, mHolder != null);
+                if (mPlayer != null) {
+                    mPlayer.setDisplay(mHolder);
+                }
+                if (mNextLinked) {
+                    mNextPlayer.setDisplay(mHolder);
+                }
+                break;
+            case MSG_DETACH_DISPLAY:
+                mHolder = null;
+                if (mPlayer != null) {
+                    mPlayer.setDisplay(null);
+                }
+                if (mNextLinked) {
+                    mNextPlayer.setDisplay(null);
+                }
+                ((CountDownLatch) msg.obj).countDown();
+                break;
+            case MSG_START:
+                if (mPlayer != null && mPrepared) {
+                    mPlayer.start();
+                    mPlaying = true;
+                    mClock.anchor(mPlayer.getCurrentPosition(), true);
+                    scheduleClockSync();
+                }
+                break;
+            case MSG_PAUSE:
+                if (mPlayer != null && mPrepared && mPlayer.isPlaying()) {
+                    mPlayer.pause();
+                    mClock.anchor(mPlayer.getCurrentPosition(), false);
+                }
+                mPlaying = false;
+                mClock.setRunning(false);
+                break;
+            case MSG_SEEK:
+                if (mPlayer != null && mPrepared && mSeeks.request(msg.arg1, msg.arg2)) {
+                    issueSeek(msg.arg1, msg.arg2);
+                }
+                break;
+            case MSG_SEEK_TIMEOUT:
+                if (mSeeks.isTimedOut(msg.arg1)) {
+                    Log.w(TAG, "No seek completion after " + SEEK_TIMEOUT_MS + " ms");
+                    finishSeek();
+                }
+                break;
+            case MSG_STOP:
+                if (mPlayer != null) {
+                    mPlayer.stop();
+                }
+                mPlaying = false;
+                clearSeek();
+                mClock.setRunning(false);
+                break;
+            case MSG_RELEASE:
+                releasePlayer();
+                break;
+            case MSG_SYNC_CLOCK:
+                if (mPlayer != null && mPrepared && mPlaying) {
+                    if (mClock.isRunning()) {
+                        mClock.anchor(mPlayer.getCurrentPosition(), true);
+                    }
+                    scheduleClockSync();
+                    maybePrepareNext();
+                }
+                break;
+            case MSG_SET_NEXT:
+                if (msg.arg1 == mPlayerGeneration) {
+                    releaseNext();
+                    mNextRequest = (OpenRequest) msg.obj;
+                    maybePrepareNext();
+                }
+                break;
+        }
+    }
+
+    private void doOpen(OpenRequest request, int generation) {
+        releasePlayer();
+        mPlayerGeneration = generation;
+        mClock.reset();
+        AudioManager am = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+        am.requestAudioFocus(null, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
+
+        PreparedPlayerCache.Entry warm = PreparedPlayerCache.getInstance().take(request.uri, request.headers);
+        try {
+            if (warm != null) {
+                PlayerPool.getInstance().transfer(warm, mPoolOwner);
+                PlayerPool.getInstance().setVisible(mPoolOwner, mHolder != null);
+                mPlayer = warm.mPlayer;
+                mPublishedPlayer = mPlayer;
+                mPrepareIssuedNanos = System.nanoTime();
+                attachListeners(mPlayer);
+                mPlayer.setDisplay(mHolder);
+                mPlayer.setScreenOnWhilePlaying(true);
+                postEvent(EVT_BUFFERING, warm.mBufferPercentage, null);
+                if (warm.mPrepared) {
+                    mPreparedListener.onPrepared(mPlayer);
+                }
+                return;
+            }
+            mPlayer = PlayerPool.getInstance().acquire(mPoolOwner);
+            PlayerPool.getInstance().setVisible(mPoolOwner, mHolder != null);
+            mPublishedPlayer = mPlayer;
+            if (mAudioSession != 0) {
+                mPlayer.setAudioSessionId(mAudioSession);
+            } else {
+                mAudioSession = mPlayer.getAudioSessionId();
+            }
+            attachListeners(mPlayer);
+            mPlayer.setDataSource(mContext, request.uri, request.headers);
+            mPlayer.setDisplay(mHolder);
+            mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mPlayer.setScreenOnWhilePlaying(true);
+            mPrepareIssuedNanos = System.nanoTime();
+            mPlayer.prepareAsync();
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to open content: " + request.uri, ex);
+            postEvent(EVT_ERROR, 0, new int[]{MediaPlayer.MEDIA_ERROR_UNKNOWN, 0});
+        } catch (RuntimeException ex) {
+            // IllegalArgumentException, IllegalStateException, SecurityException:
+            // reported like any open failure instead of killing the playback thread.
+            Log.w(TAG, "Unable to open content: " + request.uri, ex);
+            postEvent(EVT_ERROR, 0, new int[]{MediaPlayer.MEDIA_ERROR_UNKNOWN, 0});
+        }
+    }
+
+    // Started once the current video is within the lead of its end; the sync
+    // messages while playing keep checking until then.
+    private void maybePrepareNext() {
+        if (mNextRequest == null || mNextPlayer != null || mPlayer == null || !mPrepared
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        int duration = mPlayer.getDuration();
+        if (duration > 0 && duration - mClock.getPosition() > NEXT_PREPARE_LEAD_MS) {
+            return;
+        }
+        // Only a spare slot: the lookahead must not evict a player on screen.
+        // Without one, the sync messages try again until the end.
+        MediaPlayer next = PlayerPool.getInstance().acquireSpeculative(mNextPoolOwner);
+        if (next == null) {
+            return;
+        }
+        OpenRequest request = mNextRequest;
+        mNextRequest = null;
+        mNextPlayer = next;
+        try {
+            if (mAudioSession != 0) {
+                mNextPlayer.setAudioSessionId(mAudioSession);
+            }
+            mNextPlayer.setOnPreparedListener(mNextPreparedListener);
+            mNextPlayer.setOnErrorListener(mNextErrorListener);
+            mNextPlayer.setDataSource(mContext, request.uri, request.headers);
+            mNextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mNextPlayer.prepareAsync();
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to open next content: " + request.uri, ex);
+            releaseNext();
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "Unable to open next content: " + request.uri, ex);
+            releaseNext();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void linkNext(MediaPlayer next) {
+        mPlayer.setNextMediaPlayer(next);
+        mNextLinked = next != null;
+    }
+
+    private void releaseNext() {
+        mNextRequest = null;
+        if (mNextPlayer == null) {
+            return;
+        }
+        if (mNextLinked && mPlayer != null) {
+            linkNext(null);
+        }
+        mNextLinked = false;
+        mNextPlayer = null;
+        PlayerPool.getInstance().release(mNextPoolOwner);
+    }
+
+    // The chained player has already started, on the surface it was given
+    // when linked, when the current one reports completion; it takes over the
+    // pool slot and the listeners.
+    private void advanceToNext() {
+        MediaPlayer next = mNextPlayer;
+        mNextPlayer = null;
+        mNextLinked = false;
+        mPlayer.setDisplay(null);
+        PlayerPool.getInstance().release(mPoolOwner);
+        PlayerPool.getInstance().transfer(mNextPoolOwner, mPoolOwner);
+        PlayerPool.getInstance().setVisible(mPoolOwner, mHolder != null);
+        mPlayer = next;
+        mPublishedPlayer = next;
+        attachListeners(next);
+        next.setScreenOnWhilePlaying(true);
+        clearSeek();
+        mPlaying = true;
+        mClock.reset();
+        mClock.setDuration(next.getDuration());
+        mClock.anchor(0, true);
+        scheduleClockSync();
+        postEvent(EVT_ADVANCED, 0, new int[]{next.getVideoWidth(), next.getVideoHeight(), next.getDuration()});
+    }
+
+    private void issueSeek(int msec, int mode) {
+        int serial = mSeeks.issued(mode, SystemClock.elapsedRealtime());
+        mHandler.removeMessages(MSG_SEEK_TIMEOUT);
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SEEK_TIMEOUT, serial, 0), SEEK_TIMEOUT_MS);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            seekWithMode(msec, mode);
+        } else {
+            mPlayer.seekTo(msec);
+        }
+    }
+
+    // Issues the seek that queued up behind the finished one, if any.
+    private void finishSeek() {
+        mHandler.removeMessages(MSG_SEEK_TIMEOUT);
+        int target = mSeeks.finish();
+        if (target >= 0 && mPlayer != null && mPrepared) {
+            issueSeek(target, mSeeks.getPendingMode());
+        }
+    }
+
+    // After an error, a stop or a reset no completion will come for the seek.
+    private void clearSeek() {
+        mHandler.removeMessages(MSG_SEEK_TIMEOUT);
+        mSeeks.clear();
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void seekWithMode(int msec, int mode) {
+        mPlayer.seekTo(msec, mode == SEEK_FAST ? MediaPlayer.SEEK_CLOSEST_SYNC : MediaPlayer.SEEK_CLOSEST);
+    }
+
+    private void attachListeners(MediaPlayer player) {
+        player.setOnPreparedListener(mPreparedListener);
+        player.setOnVideoSizeChangedListener(mSizeChangedListener);
+        player.setOnCompletionListener(mCompletionListener);
+        player.setOnErrorListener(mErrorListener);
+        player.setOnInfoListener(mInfoListener);
+        player.setOnBufferingUpdateListener(mBufferingUpdateListener);
+        player.setOnSeekCompleteListener(mSeekCompleteListener);
+    }
+
+    private void releasePlayer() {
+        mHandler.removeMessages(MSG_SYNC_CLOCK);
+        releaseNext();
+        if (mPlayer != null) {
+            PlayerPool.getInstance().release(mPoolOwner);
+            mPlayer = null;
+            mPublishedPlayer = null;
+        }
+        mPrepared = false;
+        mPlaying = false;
+        clearSeek();
+        mClock.setRunning(false);
+    }
+
+    // The clock runs on its own between syncs; this only corrects drift.
+    private void scheduleClockSync() {
+        mHandler.removeMessages(MSG_SYNC_CLOCK);
+        mHandler.sendEmptyMessageDelayed(MSG_SYNC_CLOCK, CLOCK_SYNC_INTERVAL);
+    }
+
+    private void postEvent(int what, int arg, Object obj) {
+        mMainHandler.obtainMessage(what, mPlayerGeneration, arg, obj).sendToTarget();
+    }
+
+    private void dispatchEvent(Message msg) {
+        if (msg.arg1 != mGeneration) {
+            return;
+        }
+        int[] values = (int[]) msg.obj;
+        switch (msg.what) {
+            case EVT_PREPARED:
+                mListener.onPrepared(values[0], values[1], values[2]);
+                break;
+            case EVT_SIZE_CHANGED:
+                mListener.onVideoSizeChanged(values[0], values[1]);
+                break;
+            case EVT_COMPLETION:
+                mListener.onCompletion();
+                break;
+            case EVT_ERROR:
+                mListener.onError(values[0], values[1]);
+                break;
+            case EVT_INFO:
+                mListener.onInfo(values[0], values[1]);
+                break;
+            case EVT_BUFFERING:
+                mListener.onBufferingUpdate(msg.arg2);
+                break;
+            case EVT_ADVANCED:
+                mListener.onAdvanced(values[0], values[1], values[2]);
+                break;
+            case EVT_EVICTED:
+                mOpen = false;
+                mGeneration++;
+                mListener.onEvicted(msg.arg2);
+                break;
+        }
+    }
+
+    private final PlayerPool.Owner mPoolOwner = new PlayerPool.Owner() {
+        public void onPlayerEvicted() {
+            int position = mPrepared ? mPlayer.getCurrentPosition() : mClock.getPosition();
+            postEvent(EVT_EVICTED, position, null);
+            releasePlayer();
+        }
+    };
+
+    private final PlayerPool.Owner mNextPoolOwner = new PlayerPool.Owner() {
+        public void onPlayerEvicted() {
+            releaseNext();
+        }
+    };
+
+    private final MediaPlayer.OnPreparedListener mPreparedListener = new MediaPlayer.OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+            mPrepared = true;
+            mClock.setDuration(mp.getDuration());
+            postEvent(EVT_PREPARED, 0, new int[]{mp.getVideoWidth(), mp.getVideoHeight(), mp.getDuration()});
+            maybePrepareNext();
+        }
+    };
+
+    private final MediaPlayer.OnPreparedListener mNextPreparedListener = new MediaPlayer.OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+            if (mp == mNextPlayer && mPlayer != null) {
+                // On its surface before it starts, so its first frame shows
+                // at the handoff rather than once completion is handled.
+                mp.setDisplay(mHolder);
+                linkNext(mp);
+            }
+        }
+    };
+
+    private final MediaPlayer.OnErrorListener mNextErrorListener = new MediaPlayer.OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.w(TAG, "Next player failed: " + what + "," + extra);
+            if (mp == mNextPlayer) {
+                releaseNext();
+            }
+            return true;
+        }
+    };
+
+    private final MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
+            new MediaPlayer.OnVideoSizeChangedListener() {
+                public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+                    postEvent(EVT_SIZE_CHANGED, 0, new int[]{mp.getVideoWidth(), mp.getVideoHeight()});
+                }
+            };
+
+    private final MediaPlayer.OnCompletionListener mCompletionListener =
+            new MediaPlayer.OnCompletionListener() {
+                public void onCompletion(MediaPlayer mp) {
+                    if (mNextLinked && mp == mPlayer) {
+                        advanceToNext();
+                        return;
+                    }
+                    mPlaying = false;
+                    mClock.anchor(mp.getDuration(), false);
+                    postEvent(EVT_COMPLETION, 0, null);
+                }
+            };
+
+    private final MediaPlayer.OnErrorListener mErrorListener = new MediaPlayer.OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            mPlaying = false;
+            clearSeek();
+            mClock.setRunning(false);
+            postEvent(EVT_ERROR, 0, new int[]{what, extra});
+            return true;
+        }
+    };
+
+    private final MediaPlayer.OnInfoListener mInfoListener = new MediaPlayer.OnInfoListener() {
+        public boolean onInfo(MediaPlayer mp, int what, int extra) {
+            if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+                mClock.anchor(mp.getCurrentPosition(), false);
+            } else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+                mClock.anchor(mp.getCurrentPosition(), mPlaying);
+            }
+            postEvent(EVT_INFO, 0, new int[]{what, extra});
+            return true;
+        }
+    };
+
+    private final MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
+            new MediaPlayer.OnBufferingUpdateListener() {
+                public void onBufferingUpdate(MediaPlayer mp, int percent) {
+                    postEvent(EVT_BUFFERING, percent, null);
+                }
+            };
+
+    private final MediaPlayer.OnSeekCompleteListener mSeekCompleteListener =
+            new MediaPlayer.OnSeekCompleteListener() {
+                public void onSeekComplete(MediaPlayer mp) {
+                    if (!mSeeks.isInFlight()) {
+                        return;
+                    }
+                    long latency = SystemClock.elapsedRealtime() - mSeeks.getIssuedAt();
+                    getSeekLatency(mSeeks.getInFlightMode()).record(latency);
+                    finishSeek();
+                    if (!mSeeks.isInFlight()) {
+                        mClock.anchor(mp.getCurrentPosition(), mClock.isRunning());
+                    }
+                }
+            };
+
+    private static class OpenRequest {
+        final Uri uri;
+        final Map<String, String> headers;
+
+        OpenRequest(Uri uri, Map<String, String> headers) {
+            this.uri = uri;
+            this.headers = headers;
+        }
+    }
+
+    /** Player events, delivered on the UI thread. */
+    interface Listener {
+        void onPrepared(int videoWidth, int videoHeight, int duration);
+
+        void onVideoSizeChanged(int videoWidth, int videoHeight);
+
+        void onCompletion();
+
+        void onError(int what, int extra);
+
+        void onInfo(int what, int extra);
+
+        void onBufferingUpdate(int percent);
+
+        /** The video queued with {@link #setNext} took over from the one that completed. */
+        void onAdvanced(int videoWidth, int videoHeight, int duration);
+
+        /** The pool took the player away; {@code position} is where playback was. */
+        void onEvicted(int position);
+    }
+}
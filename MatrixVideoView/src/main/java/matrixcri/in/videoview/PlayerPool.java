@@ -0,0 +1,238 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide budget for live {@link MediaPlayer} instances. Released players
+ * are {@code reset()} and kept for reuse instead of being torn down, and when
+ * the budget is exceeded the owner that was least recently visible loses its
+ * player through {@link Owner#onPlayerEvicted()}.
+ *
+ * <p>Speculative players (preloads, the next playlist item) are reclaimed
+ * before any other and never take a player from anyone else. Owners that are
+ * on screen are never evicted; the budget is exceeded instead.</p>
+ */
+public class PlayerPool {
+    private static final String TAG = "PlayerPool";
+    private static final int DEFAULT_MAX_LIVE = 4;
+    private static final int DEFAULT_MAX_IDLE = 2;
+
+    private static PlayerPool sInstance;
+
+    private final Map<Owner, MediaPlayer> mLive = new LinkedHashMap<Owner, MediaPlayer>(8, 0.75f, true);
+    private final ArrayDeque<MediaPlayer> mIdle = new ArrayDeque<MediaPlayer>();
+    private final Set<Owner> mSpeculative = new HashSet<Owner>();
+    private final Set<Owner> mVisible = new HashSet<Owner>();
+    private int mMaxLive = DEFAULT_MAX_LIVE;
+    private int mMaxIdle = DEFAULT_MAX_IDLE;
+
+    private int mPoolHits;
+    private int mPoolMisses;
+    private int mEvictions;
+    private int mPeakLive;
+
+    public static synchronized PlayerPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new PlayerPool();
+        }
+        return sInstance;
+    }
+
+    public synchronized void setMaxLivePlayers(int max) {
+        mMaxLive = Math.max(1, max);
+    }
+
+    public synchronized void setMaxIdlePlayers(int max) {
+        mMaxIdle = Math.max(0, max);
+        while (mIdle.size() > mMaxIdle) {
+            mIdle.poll().release();
+        }
+    }
+
+    /**
+     * Returns a player in the idle state for {@code owner}, evicting a
+     * speculative player or else the least recently visible other owner that
+     * is off screen if the live budget is already used up.
+     */
+    public synchronized MediaPlayer acquire(Owner owner) {
+        MediaPlayer current = mLive.get(owner);
+        if (current != null) {
+            return current;
+        }
+        while (mLive.size() >= mMaxLive && (evictEldest(owner, true) || evictEldest(owner, false))) {
+            mEvictions++;
+        }
+        if (mLive.size() >= mMaxLive) {
+            Log.d(TAG, "Every player is on screen, going over the budget of " + mMaxLive);
+        }
+        return newLivePlayer(owner);
+    }
+
+    /**
+     * Like {@link #acquire} for a player that is only wanted ahead of time: it
+     * may only displace other speculative players, and null is returned when
+     * the budget is used by the rest.
+     */
+    public synchronized MediaPlayer acquireSpeculative(Owner owner) {
+        MediaPlayer current = mLive.get(owner);
+        if (current != null) {
+            return current;
+        }
+        while (mLive.size() >= mMaxLive && evictEldest(owner, true)) {
+            mEvictions++;
+        }
+        if (mLive.size() >= mMaxLive) {
+            return null;
+        }
+        mSpeculative.add(owner);
+        return newLivePlayer(owner);
+    }
+
+    /** Marks whether {@code owner} is on screen; visible owners are never evicted. */
+    public synchronized void setVisible(Owner owner, boolean visible) {
+        if (visible && mLive.containsKey(owner)) {
+            mVisible.add(owner);
+        } else {
+            mVisible.remove(owner);
+        }
+    }
+
+    private MediaPlayer newLivePlayer(Owner owner) {
+        MediaPlayer player = mIdle.poll();
+        if (player != null) {
+            mPoolHits++;
+        } else {
+            mPoolMisses++;
+            player = new MediaPlayer();
+        }
+        mLive.put(owner, player);
+        mPeakLive = Math.max(mPeakLive, mLive.size());
+        return player;
+    }
+
+    /** Returns the player held by {@code owner} to the pool. */
+    public synchronized void release(Owner owner) {
+        MediaPlayer player = mLive.remove(owner);
+        mSpeculative.remove(owner);
+        mVisible.remove(owner);
+        if (player == null) {
+            return;
+        }
+        player.setOnPreparedListener(null);
+        player.setOnVideoSizeChangedListener(null);
+        player.setOnCompletionListener(null);
+        player.setOnErrorListener(null);
+        player.setOnInfoListener(null);
+        player.setOnBufferingUpdateListener(null);
+        player.setOnSeekCompleteListener(null);
+        player.reset();
+        if (mIdle.size() < mMaxIdle) {
+            mIdle.add(player);
+        } else {
+            player.release();
+        }
+    }
+
+    /**
+     * Moves a live player from one owner to another without touching it. The
+     * new owner holds it as a regular player, off screen until marked visible.
+     */
+    public synchronized void transfer(Owner from, Owner to) {
+        MediaPlayer player = mLive.remove(from);
+        mSpeculative.remove(from);
+        mVisible.remove(from);
+        if (player != null) {
+            mLive.put(to, player);
+        }
+    }
+
+    /** Marks {@code owner} as just visible, making it the last candidate for eviction. */
+    public synchronized void touch(Owner owner) {
+        mLive.get(owner);
+    }
+
+    public synchronized void trim() {
+        while (!mIdle.isEmpty()) {
+            mIdle.poll().release();
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mLive.size(), mIdle.size(), mPoolHits, mPoolMisses, mEvictions, mPeakLive);
+    }
+
+    private boolean evictEldest(Owner keep, boolean speculative) {
+        Iterator<Owner> it = mLive.keySet().iterator();
+        while (it.hasNext()) {
+            Owner victim = it.next();
+            if (victim == keep || mSpeculative.contains(victim) != speculative || mVisible.contains(victim)) {
+                continue;
+            }
+            Log.d(TAG, "Evicting player of " + victim);
+            victim.onPlayerEvicted();
+            if (mLive.containsKey(victim)) {
+                release(victim);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public interface Owner {
+        /**
+         * Called when the owner's player is about to be reclaimed. The owner
+         * should save whatever it needs and call {@link #release(Owner)}.
+         */
+        void onPlayerEvicted();
+    }
+
+    public static class Stats {
+        public final int livePlayers;
+        public final int idlePlayers;
+        public final int poolHits;
+        public final int poolMisses;
+        public final int evictions;
+        public final int peakLivePlayers;
+
+        Stats(int livePlayers, int idlePlayers, int poolHits, int poolMisses, int evictions,
+              int peakLivePlayers) {
+            this.livePlayers = livePlayers;
+            this.idlePlayers = idlePlayers;
+            this.poolHits = poolHits;
+            this.poolMisses = poolMisses;
+            this.evictions = evictions;
+            this.peakLivePlayers = peakLivePlayers;
+        }
+
+        @Override
+        public String toString() {
+            return "live=" + livePlayers + " idle=" + idlePlayers + " hits=" + poolHits
+                    + " misses=" + poolMisses + " evictions=" + evictions + " peak=" + peakLivePlayers;
+        }
+    }
+}
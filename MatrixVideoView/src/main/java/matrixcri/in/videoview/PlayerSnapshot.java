@@ -0,0 +1,59 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+/**
+ * Immutable view of a {@link MatrixVideoView}'s player properties. A new
+ * snapshot is published whenever a player event or a control call changes
+ * one of them, so the {@code MediaPlayerControl} getters are plain field
+ * reads. The position is not part of it; it comes from the playback clock.
+ */
+public class PlayerSnapshot {
+    static final PlayerSnapshot IDLE = new PlayerSnapshot(false, false, -1, 0, false, false, false, 0, 0);
+
+    public final boolean inPlaybackState;
+    public final boolean playing;
+    /** Duration in milliseconds, or -1 when not in a playback state. */
+    public final int duration;
+    public final int bufferPercentage;
+    public final boolean canPause;
+    public final boolean canSeekBackward;
+    public final boolean canSeekForward;
+    public final int videoWidth;
+    public final int videoHeight;
+
+    PlayerSnapshot(boolean inPlaybackState, boolean playing, int duration, int bufferPercentage,
+                   boolean canPause, boolean canSeekBackward, boolean canSeekForward,
+                   int videoWidth, int videoHeight) {
+        this.inPlaybackState = inPlaybackState;
+        this.playing = playing;
+        this.duration = duration;
+        this.bufferPercentage = bufferPercentage;
+        this.canPause = canPause;
+        this.canSeekBackward = canSeekBackward;
+        this.canSeekForward = canSeekForward;
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "inPlayback=" + inPlaybackState + " playing=" + playing + " duration=" + duration
+                + " buffer=" + bufferPercentage + "% size=" + videoWidth + "x" + videoHeight;
+    }
+}
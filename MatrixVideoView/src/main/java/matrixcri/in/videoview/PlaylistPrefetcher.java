@@ -0,0 +1,358 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Fetches the start of the items around the current one of a playlist into
+ * the {@link VideoCacheProxy} cache, nearest first, so the next video does
+ * not start cold. Downloads run one at a time on a background thread, are
+ * paced by a token bucket shared by all prefetchers in the process and can be
+ * paused while the playing video needs the network. Moving to another item or calling {@link #cancel} stops the
+ * running download at its next chunk.
+ *
+ * <p>Bytes fetched for an item that later leaves the window without being
+ * played are counted as wasted.</p>
+ */
+public class PlaylistPrefetcher {
+    private static final String TAG = "PlaylistPrefetcher";
+    private static final long DEFAULT_ITEM_BYTES = 1024 * 1024;
+    private static final long DEFAULT_BYTES_PER_SECOND = 256 * 1024;
+    private static final int DEFAULT_AHEAD = 3;
+    private static final int DEFAULT_BEHIND = 1;
+
+    private static final TokenBucket sBandwidth = new TokenBucket(DEFAULT_BYTES_PER_SECOND);
+
+    private final VideoCacheProxy mProxy;
+    private final Object mLock = new Object();
+    private ExecutorService mExecutor;
+    private List<Uri> mPlaylist = Collections.emptyList();
+    private int mCurrent = -1;
+    private int mAhead = DEFAULT_AHEAD;
+    private int mBehind = DEFAULT_BEHIND;
+    private long mItemBytes = DEFAULT_ITEM_BYTES;
+    private boolean mPaused;
+    private int mGeneration;
+
+    /** Bytes fetched per URL that has not been played since. */
+    private final Map<String, Long> mUnplayed = new HashMap<String, Long>();
+    private long mFetchedBytes;
+    private long mUsedBytes;
+    private long mWastedBytes;
+
+    public PlaylistPrefetcher(VideoCacheProxy proxy) {
+        mProxy = proxy;
+    }
+
+    /** How many items after and before the current one are prefetched. */
+    public void setWindow(int ahead, int behind) {
+        synchronized (mLock) {
+            mAhead = Math.max(0, ahead);
+            mBehind = Math.max(0, behind);
+        }
+        schedule();
+    }
+
+    /** Prefetches the first {@code bytes} of each item. */
+    public void setItemBytes(long bytes) {
+        synchronized (mLock) {
+            mItemBytes = Math.max(0, bytes);
+        }
+        schedule();
+    }
+
+    /**
+     * Prefetches about the first {@code seconds} of each item, assuming a
+     * bitrate of {@code bitsPerSecond}.
+     */
+    public void setItemDuration(int seconds, int bitsPerSecond) {
+        setItemBytes((long) seconds * bitsPerSecond / 8);
+    }
+
+    /**
+     * Caps the download rate of all prefetching in the process together, for
+     * every view; 0 removes the cap.
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        sBandwidth.setRate(bytesPerSecond);
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    public void setPlaylist(List<Uri> playlist, int current) {
+        synchronized (mLock) {
+            mPlaylist = playlist != null ? new ArrayList<Uri>(playlist) : Collections.<Uri>emptyList();
+            mCurrent = current;
+            markPlayed(current);
+            dropOutsideWindow();
+        }
+        schedule();
+    }
+
+    public void setCurrentIndex(int current) {
+        synchronized (mLock) {
+            mCurrent = current;
+            markPlayed(current);
+            dropOutsideWindow();
+        }
+        schedule();
+    }
+
+    /** Holds downloads after their current chunk until {@link #resume}. */
+    public void pause() {
+        synchronized (mLock) {
+            mPaused = true;
+        }
+    }
+
+    public void resume() {
+        synchronized (mLock) {
+            mPaused = false;
+            mLock.notifyAll();
+        }
+    }
+
+    /** Stops the running download and drops the queue until the next change of item. */
+    public void cancel() {
+        synchronized (mLock) {
+            mGeneration++;
+            mLock.notifyAll();
+        }
+    }
+
+    /** Cancels and stops the download thread; unplayed bytes count as wasted. */
+    public void release() {
+        synchronized (mLock) {
+            mGeneration++;
+            mPlaylist = Collections.emptyList();
+            mCurrent = -1;
+            dropOutsideWindow();
+            mLock.notifyAll();
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
+        }
+    }
+
+    /** Bytes fetched from the origin by this prefetcher. */
+    public long getFetchedBytes() {
+        synchronized (mLock) {
+            return mFetchedBytes;
+        }
+    }
+
+    /** Bytes fetched for items that were played afterwards. */
+    public long getUsedBytes() {
+        synchronized (mLock) {
+            return mUsedBytes;
+        }
+    }
+
+    /** Bytes fetched for items that left the window without being played. */
+    public long getWastedBytes() {
+        synchronized (mLock) {
+            return mWastedBytes;
+        }
+    }
+
+    private void markPlayed(int index) {
+        if (index >= 0 && index < mPlaylist.size() && mPlaylist.get(index) != null) {
+            Long bytes = mUnplayed.remove(mPlaylist.get(index).toString());
+            if (bytes != null) {
+                mUsedBytes += bytes;
+            }
+        }
+    }
+
+    private void dropOutsideWindow() {
+        List<String> keep = window();
+        Iterator<Map.Entry<String, Long>> it = mUnplayed.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (!keep.contains(entry.getKey())) {
+                mWastedBytes += entry.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    // Nearest first; of two items at the same distance the next one goes first.
+    private List<String> window() {
+        List<String> urls = new ArrayList<String>();
+        if (mCurrent < 0) {
+            return urls;
+        }
+        for (int distance = 1; distance <= Math.max(mAhead, mBehind); distance++) {
+            if (distance <= mAhead) {
+                addItem(urls, mCurrent + distance);
+            }
+            if (distance <= mBehind) {
+                addItem(urls, mCurrent - distance);
+            }
+        }
+        return urls;
+    }
+
+    private void addItem(List<String> urls, int index) {
+        if (index >= 0 && index < mPlaylist.size()) {
+            Uri uri = mPlaylist.get(index);
+            if (uri != null && VideoCacheProxy.isRemote(uri)) {
+                urls.add(uri.toString());
+            }
+        }
+    }
+
+    private void schedule() {
+        final List<String> queue;
+        final long itemBytes;
+        final int generation;
+        synchronized (mLock) {
+            generation = ++mGeneration;
+            mLock.notifyAll();
+            queue = window();
+            itemBytes = mItemBytes;
+            if (queue.isEmpty() || itemBytes == 0) {
+                return;
+            }
+            if (mExecutor == null) {
+                mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MatrixVideoProxy-playlist");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    runQueue(queue, itemBytes, generation);
+                }
+            });
+        }
+    }
+
+    private void runQueue(List<String> queue, long itemBytes, final int generation) {
+        for (final String url : queue) {
+            if (mProxy.getCache().contiguousLength(url, 0) >= itemBytes) {
+                continue;
+            }
+            try {
+                mProxy.download(url, 0, itemBytes, new VideoCacheProxy.DownloadControl() {
+                    public boolean proceed(int bytes) {
+                        return acquire(url, bytes, generation);
+                    }
+                });
+            } catch (IOException e) {
+                Log.d(TAG, "prefetch of " + url + " stopped: " + e.getMessage());
+            }
+            synchronized (mLock) {
+                if (generation != mGeneration) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Records the bytes just fetched and blocks while paused or until the
+    // bucket has paid them off. False once the queue is out of date.
+    private boolean acquire(String url, int bytes, int generation) {
+        synchronized (mLock) {
+            if (bytes > 0) {
+                mFetchedBytes += bytes;
+                if (generation != mGeneration && !window().contains(url)) {
+                    mWastedBytes += bytes;
+                } else {
+                    Long unplayed = mUnplayed.get(url);
+                    mUnplayed.put(url, (unplayed != null ? unplayed : 0) + bytes);
+                }
+                sBandwidth.take(bytes);
+            }
+            try {
+                while (generation == mGeneration) {
+                    if (mPaused) {
+                        mLock.wait();
+                        continue;
+                    }
+                    long delay = sBandwidth.delayMillis();
+                    if (delay == 0) {
+                        return true;
+                    }
+                    mLock.wait(delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+    }
+
+    /** Download budget that goes into debt for bytes already fetched. Holds at most one second of it. */
+    private static class TokenBucket {
+        private long mBytesPerSecond;
+        private long mTokens;
+        private long mRefillNanos = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond) {
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        synchronized void setRate(long bytesPerSecond) {
+            mBytesPerSecond = Math.max(0, bytesPerSecond);
+            mTokens = 0;
+            mRefillNanos = System.nanoTime();
+        }
+
+        synchronized void take(int bytes) {
+            refill();
+            mTokens -= bytes;
+        }
+
+        /** How long until the debt is paid off; 0 if there is none or no cap. */
+        synchronized long delayMillis() {
+            refill();
+            if (mBytesPerSecond == 0 || mTokens >= 0) {
+                return 0;
+            }
+            return Math.max(1, -mTokens * 1000 / mBytesPerSecond);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (mBytesPerSecond > 0) {
+                long elapsed = Math.min(now - mRefillNanos, 1000000000L);
+                mTokens = Math.min(mBytesPerSecond, mTokens + elapsed * mBytesPerSecond / 1000000000L);
+            }
+            mRefillNanos = now;
+        }
+    }
+}
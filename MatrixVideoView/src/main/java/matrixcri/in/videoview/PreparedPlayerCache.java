@@ -0,0 +1,215 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Players that were created and prepared ahead of time for URIs that are
+ * about to be shown. {@link MatrixVideoView} takes a warm player from here
+ * instead of creating a new one, skipping the PREPARING state. Warm players
+ * count against the {@link PlayerPool} budget but are the first to go, and a
+ * preload never takes the player of a view. Players are
+ * created and torn down on the playback thread; the public methods only
+ * queue that work and may be called from any thread.
+ */
+public class PreparedPlayerCache {
+    private static final String TAG = "PreparedPlayerCache";
+    private static final int DEFAULT_CAPACITY = 2;
+
+    private static PreparedPlayerCache sInstance;
+
+    private final Map<Uri, Entry> mEntries = new LinkedHashMap<Uri, Entry>();
+    private final Handler mHandler = new Handler(PlaybackEngine.playbackLooper());
+    private int mCapacity = DEFAULT_CAPACITY;
+
+    public static synchronized PreparedPlayerCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PreparedPlayerCache();
+        }
+        return sInstance;
+    }
+
+    public void setCapacity(final int capacity) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                mCapacity = capacity;
+                trim();
+            }
+        });
+    }
+
+    public void preload(Context context, Uri uri) {
+        preload(context, uri, null);
+    }
+
+    /** The player is only handed out for an open of {@code uri} with the same headers. */
+    public void preload(Context context, final Uri uri, final Map<String, String> headers) {
+        if (uri == null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        mHandler.post(new Runnable() {
+            public void run() {
+                doPreload(appContext, uri, headers);
+            }
+        });
+    }
+
+    public synchronized boolean isPreloaded(Uri uri) {
+        Entry entry = mEntries.get(uri);
+        return entry != null && entry.mPrepared;
+    }
+
+    public void remove(final Uri uri) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                doRemove(uri);
+            }
+        });
+    }
+
+    public void clear() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                synchronized (PreparedPlayerCache.this) {
+                    for (Entry entry : mEntries.values()) {
+                        PlayerPool.getInstance().release(entry);
+                    }
+                    mEntries.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands the warm player for {@code uri} over to the caller. A player
+     * prepared with other headers is dropped. Playback thread only.
+     */
+    synchronized Entry take(Uri uri, Map<String, String> headers) {
+        Entry entry = mEntries.remove(uri);
+        if (entry != null && (entry.mFailed || !sameHeaders(entry.mHeaders, headers))) {
+            PlayerPool.getInstance().release(entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static boolean sameHeaders(Map<String, String> a, Map<String, String> b) {
+        if (a == null || a.isEmpty()) {
+            return b == null || b.isEmpty();
+        }
+        return a.equals(b);
+    }
+
+    private void doPreload(Context context, Uri uri, Map<String, String> headers) {
+        synchronized (this) {
+            if (mEntries.containsKey(uri)) {
+                return;
+            }
+        }
+        Entry entry = new Entry(uri, headers);
+        MediaPlayer player = PlayerPool.getInstance().acquireSpeculative(entry);
+        if (player == null) {
+            Log.d(TAG, "No player to spare for preloading " + uri);
+            return;
+        }
+        entry.mPlayer = player;
+        player.setOnPreparedListener(entry);
+        player.setOnErrorListener(entry);
+        player.setOnBufferingUpdateListener(entry);
+        try {
+            player.setDataSource(context, uri, headers);
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            player.prepareAsync();
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to preload " + uri, ex);
+            PlayerPool.getInstance().release(entry);
+            return;
+        } catch (RuntimeException ex) {
+            // IllegalStateException, SecurityException and the like must not
+            // take the playback thread down with them.
+            Log.w(TAG, "Unable to preload " + uri, ex);
+            PlayerPool.getInstance().release(entry);
+            return;
+        }
+        synchronized (this) {
+            mEntries.put(uri, entry);
+        }
+        trim();
+    }
+
+    private synchronized void doRemove(Uri uri) {
+        Entry entry = mEntries.remove(uri);
+        if (entry != null) {
+            PlayerPool.getInstance().release(entry);
+        }
+    }
+
+    private synchronized void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mEntries.size() > mCapacity && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            PlayerPool.getInstance().release(eldest);
+        }
+    }
+
+    static class Entry implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener,
+            MediaPlayer.OnBufferingUpdateListener, PlayerPool.Owner {
+        final Uri mUri;
+        final Map<String, String> mHeaders;
+        MediaPlayer mPlayer;
+        volatile boolean mPrepared;
+        volatile boolean mFailed;
+        volatile int mBufferPercentage;
+
+        Entry(Uri uri, Map<String, String> headers) {
+            mUri = uri;
+            mHeaders = headers;
+        }
+
+        public void onPlayerEvicted() {
+            getInstance().doRemove(mUri);
+        }
+
+        public void onPrepared(MediaPlayer mp) {
+            mPrepared = true;
+        }
+
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.d(TAG, "Preload error: " + what + "," + extra + " for " + mUri);
+            mFailed = true;
+            return true;
+        }
+
+        public void onBufferingUpdate(MediaPlayer mp, int percent) {
+            mBufferPercentage = percent;
+        }
+    }
+}
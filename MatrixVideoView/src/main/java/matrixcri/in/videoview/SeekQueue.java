@@ -0,0 +1,101 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+/**
+ * Seek bookkeeping of a {@link PlaybackEngine}: at most one seek is in flight
+ * on the player, and requests made meanwhile replace each other so only the
+ * last one is issued after it. Used on the playback thread only, except for
+ * the coalesced count.
+ */
+class SeekQueue {
+    private boolean mInFlight;
+    private int mInFlightMode;
+    private long mIssuedAt;
+    private int mSerial;
+    private int mPending = -1;
+    private int mPendingMode;
+    private volatile int mCoalesced;
+
+    /**
+     * Returns true if the seek should be issued now; otherwise it waits
+     * behind the one in flight, replacing any that was already waiting.
+     */
+    boolean request(int msec, int mode) {
+        if (!mInFlight) {
+            return true;
+        }
+        if (mPending >= 0) {
+            mCoalesced++;
+        }
+        mPending = msec;
+        mPendingMode = mode;
+        return false;
+    }
+
+    /** Records a seek issued at {@code now}; returns the serial its timeout carries. */
+    int issued(int mode, long now) {
+        mInFlight = true;
+        mInFlightMode = mode;
+        mIssuedAt = now;
+        return ++mSerial;
+    }
+
+    /** Whether a timeout carrying {@code serial} is for the seek still in flight. */
+    boolean isTimedOut(int serial) {
+        return mInFlight && serial == mSerial;
+    }
+
+    /**
+     * The seek in flight completed or timed out. Returns the position of the
+     * seek waiting behind it, to be issued with {@link #getPendingMode}, or -1.
+     */
+    int finish() {
+        int next = mPending;
+        mPending = -1;
+        mInFlight = false;
+        return next;
+    }
+
+    /** After an error, a stop or a reset no completion will come for the seek. */
+    void clear() {
+        mInFlight = false;
+        mPending = -1;
+    }
+
+    boolean isInFlight() {
+        return mInFlight;
+    }
+
+    int getInFlightMode() {
+        return mInFlightMode;
+    }
+
+    long getIssuedAt() {
+        return mIssuedAt;
+    }
+
+    int getPendingMode() {
+        return mPendingMode;
+    }
+
+    /** Requests replaced by a newer one before they were issued. */
+    int getCoalescedCount() {
+        return mCoalesced;
+    }
+}
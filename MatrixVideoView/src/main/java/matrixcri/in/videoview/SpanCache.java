@@ -0,0 +1,718 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk store for partially downloaded videos. Each URI gets a sparse data file
+ * and the byte ranges present in it are tracked in a fixed-layout index that is
+ * memory mapped, so a lookup is a hash probe plus a binary search and never
+ * touches per-file metadata.
+ *
+ * <p>Eviction is GreedyDual-Size-Frequency: an entry's priority is the current
+ * inflation value plus its hit count divided by its size, so small, popular
+ * and recently used entries survive. New entries that would force an eviction
+ * are only admitted when a frequency sketch says they have been asked for at
+ * least as often as the victim.</p>
+ */
+public class SpanCache {
+    private static final String TAG = "SpanCache";
+    private static final String INDEX_FILE = "spans.idx";
+
+    private static final int MAGIC = 0x4d565343;
+    private static final int VERSION = 2;
+    private static final int MAX_SPANS = 16;
+    private static final int MAX_OPEN_FILES = 8;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SLOTS = 8;
+    private static final int H_INFLATION = 16;
+
+    private static final int S_KEY = 0;
+    private static final int S_TOTAL = 8;
+    private static final int S_PRIORITY = 16;
+    private static final int S_HITS = 24;
+    private static final int S_COUNT = 28;
+    /** Bytes of spans dropped from the index that are still in the data file. */
+    private static final int S_DROPPED = 32;
+    private static final int S_SPANS = 40;
+    private static final int SLOT_SIZE = S_SPANS + MAX_SPANS * 16;
+
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    private final File mDir;
+    private final long mQuota;
+    private final int mSlots;
+    private final MappedByteBuffer mIndex;
+    private final FrequencySketch mSketch;
+    private final Map<Long, OpenFile> mOpenFiles =
+            new LinkedHashMap<Long, OpenFile>(MAX_OPEN_FILES, 0.75f, true);
+    private long mUsedBytes;
+    private int mEntries;
+    private int mTombstones;
+
+    public SpanCache(File dir, long quotaBytes) throws IOException {
+        this(dir, quotaBytes, 4096);
+    }
+
+    public SpanCache(File dir, long quotaBytes, int maxEntries) throws IOException {
+        mDir = dir;
+        mQuota = quotaBytes;
+        int slots = Integer.highestOneBit(Math.max(16, maxEntries * 2 - 1));
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, INDEX_FILE), "rw");
+        try {
+            long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+            boolean fresh = raf.length() != size;
+            raf.setLength(size);
+            mIndex = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (fresh || mIndex.getInt(H_MAGIC) != MAGIC || mIndex.getInt(H_VERSION) != VERSION
+                    || mIndex.getInt(H_SLOTS) != slots) {
+                resetIndex(slots);
+            }
+        } finally {
+            raf.close();
+        }
+        mSlots = slots;
+        mSketch = new FrequencySketch(slots);
+        for (int i = 0; i < mSlots; i++) {
+            int base = slotOffset(i);
+            long key = mIndex.getLong(base + S_KEY);
+            if (key == DELETED) {
+                mTombstones++;
+            } else if (key != EMPTY) {
+                mUsedBytes += storedBytes(base);
+                mEntries++;
+            }
+        }
+    }
+
+    /** Returns how many bytes of {@code url} are cached starting exactly at {@code position}. */
+    public synchronized long contiguousLength(String url, long position) {
+        int base = find(hash(url));
+        if (base < 0) {
+            return 0;
+        }
+        int span = spanAt(base, position);
+        if (span < 0) {
+            return 0;
+        }
+        return spanEnd(base, span) - position;
+    }
+
+    /**
+     * Returns the first cached offset of {@code url} after {@code position},
+     * or -1 when nothing further is cached.
+     */
+    public synchronized long nextCachedOffset(String url, long position) {
+        int base = find(hash(url));
+        if (base < 0) {
+            return -1;
+        }
+        int count = mIndex.getInt(base + S_COUNT);
+        for (int i = 0; i < count; i++) {
+            long start = spanStart(base, i);
+            if (start > position) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized long totalLength(String url) {
+        int base = find(hash(url));
+        return base < 0 ? -1 : mIndex.getLong(base + S_TOTAL);
+    }
+
+    public synchronized boolean isComplete(String url) {
+        int base = find(hash(url));
+        if (base < 0) {
+            return false;
+        }
+        long total = mIndex.getLong(base + S_TOTAL);
+        return total > 0 && mIndex.getInt(base + S_COUNT) == 1
+                && spanStart(base, 0) == 0 && spanEnd(base, 0) >= total;
+    }
+
+    /**
+     * Returns the data file of {@code url} if the whole video is cached, so it
+     * can be played as a local file, or null. Counts as a hit.
+     */
+    public synchronized File getCompleteFile(String url) {
+        if (!isComplete(url)) {
+            return null;
+        }
+        touch(url);
+        return dataFile(hash(url));
+    }
+
+    public synchronized long usedBytes() {
+        return mUsedBytes;
+    }
+
+    public synchronized void setTotalLength(String url, long total) {
+        long key = hash(url);
+        int base = find(key);
+        if (base < 0) {
+            base = insert(key);
+        }
+        if (base >= 0) {
+            mIndex.putLong(base + S_TOTAL, total);
+        }
+    }
+
+    /**
+     * Records a request for {@code url}; call this once per playback so the
+     * admission filter and the eviction priority see it.
+     */
+    public synchronized void touch(String url) {
+        long key = hash(url);
+        mSketch.increment(key);
+        int base = find(key);
+        if (base >= 0) {
+            int hits = mIndex.getInt(base + S_HITS) + 1;
+            mIndex.putInt(base + S_HITS, hits);
+            updatePriority(base);
+        }
+    }
+
+    /**
+     * Stores {@code data} at {@code position}. Returns the number of bytes
+     * written, or -1 when the entry was not admitted or the quota cannot be met.
+     */
+    public synchronized int write(String url, long position, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        long key = hash(url);
+        int base = find(key);
+        if (base < 0) {
+            if (!admit(key, length)) {
+                return -1;
+            }
+            base = insert(key);
+            if (base < 0) {
+                return -1;
+            }
+        }
+        long added = length - overlap(base, position, position + length);
+        if (mUsedBytes + added > mQuota && !evict(mUsedBytes + added - mQuota, key)) {
+            return -1;
+        }
+        FileChannel channel = channelFor(key);
+        int written = 0;
+        while (data.hasRemaining()) {
+            written += channel.write(data, position + written);
+        }
+        addSpan(base, position, position + written);
+        return written;
+    }
+
+    /** Sends cached bytes of {@code url} to {@code target} without copying them through the heap. */
+    public long transferTo(String url, long position, long count, WritableByteChannel target)
+            throws IOException {
+        OpenFile file;
+        long available;
+        synchronized (this) {
+            available = Math.min(count, contiguousLength(url, position));
+            if (available <= 0) {
+                return 0;
+            }
+            file = acquire(hash(url));
+        }
+        long sent = 0;
+        try {
+            while (sent < available) {
+                long n = file.channel.transferTo(position + sent, available - sent, target);
+                if (n <= 0) {
+                    break;
+                }
+                sent += n;
+            }
+        } finally {
+            release(file);
+        }
+        return sent;
+    }
+
+    /** Copies cached bytes of {@code url} at {@code position} into {@code dst}; returns the count. */
+    public int read(String url, long position, ByteBuffer dst) throws IOException {
+        OpenFile file;
+        synchronized (this) {
+            long available = Math.min(dst.remaining(), contiguousLength(url, position));
+            if (available <= 0) {
+                return 0;
+            }
+            dst.limit(dst.position() + (int) available);
+            file = acquire(hash(url));
+        }
+        int read = 0;
+        try {
+            while (dst.hasRemaining()) {
+                int n = file.channel.read(dst, position + read);
+                if (n <= 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            release(file);
+        }
+        return read;
+    }
+
+    public synchronized void remove(String url) {
+        int base = find(hash(url));
+        if (base >= 0) {
+            removeEntry(base);
+            compactIfNeeded();
+        }
+    }
+
+    public synchronized void close() {
+        for (OpenFile file : mOpenFiles.values()) {
+            retire(file);
+        }
+        mOpenFiles.clear();
+        mIndex.force();
+    }
+
+    private boolean admit(long key, int length) {
+        if (mUsedBytes + length <= mQuota && mEntries < mSlots / 2) {
+            return true;
+        }
+        int victim = lowestPriority(key);
+        return victim >= 0
+                && mSketch.frequency(key) >= mSketch.frequency(mIndex.getLong(victim + S_KEY));
+    }
+
+    private boolean evict(long bytes, long keep) {
+        long freed = 0;
+        while (freed < bytes) {
+            int victim = lowestPriority(keep);
+            if (victim < 0) {
+                return false;
+            }
+            mIndex.putLong(H_INFLATION, mIndex.getLong(victim + S_PRIORITY));
+            freed += storedBytes(victim);
+            removeEntry(victim);
+        }
+        return true;
+    }
+
+    private int lowestPriority(long keep) {
+        int victim = -1;
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < mSlots; i++) {
+            int base = slotOffset(i);
+            long key = mIndex.getLong(base + S_KEY);
+            if (key == EMPTY || key == DELETED || key == keep) {
+                continue;
+            }
+            long priority = mIndex.getLong(base + S_PRIORITY);
+            if (priority < lowest) {
+                lowest = priority;
+                victim = base;
+            }
+        }
+        return victim;
+    }
+
+    private void updatePriority(int base) {
+        long kb = Math.max(1, storedBytes(base) >> 10);
+        long hits = mIndex.getInt(base + S_HITS);
+        mIndex.putLong(base + S_PRIORITY, mIndex.getLong(H_INFLATION) + (hits << 20) / kb);
+    }
+
+    // Slots stay where they are, so callers may hold a slot offset across this.
+    private void removeEntry(int base) {
+        long key = mIndex.getLong(base + S_KEY);
+        mUsedBytes -= storedBytes(base);
+        mEntries--;
+        mTombstones++;
+        retire(mOpenFiles.remove(key));
+        if (!dataFile(key).delete()) {
+            Log.w(TAG, "Unable to delete " + dataFile(key));
+        }
+        mIndex.putLong(base + S_KEY, DELETED);
+        mIndex.putInt(base + S_COUNT, 0);
+        mIndex.putLong(base + S_DROPPED, 0);
+    }
+
+    /**
+     * Misses probe until an empty slot, so tombstones left by removals make
+     * them slower; once there are many, the live entries are reinserted into
+     * a cleared table. Moves slots, so only call it where no offset is held.
+     */
+    private void compactIfNeeded() {
+        if (mTombstones <= mSlots / 4) {
+            return;
+        }
+        List<byte[]> live = new ArrayList<byte[]>(mEntries);
+        for (int i = 0; i < mSlots; i++) {
+            int base = slotOffset(i);
+            long key = mIndex.getLong(base + S_KEY);
+            if (key != EMPTY && key != DELETED) {
+                byte[] slot = new byte[SLOT_SIZE];
+                ByteBuffer src = mIndex.duplicate();
+                src.position(base);
+                src.get(slot);
+                live.add(slot);
+            }
+            mIndex.putLong(base + S_KEY, EMPTY);
+        }
+        int mask = mSlots - 1;
+        for (byte[] slot : live) {
+            long key = ByteBuffer.wrap(slot).getLong(S_KEY);
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (mIndex.getLong(slotOffset(i) + S_KEY) != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            ByteBuffer dst = mIndex.duplicate();
+            dst.position(slotOffset(i));
+            dst.put(slot);
+        }
+        mTombstones = 0;
+    }
+
+    private int find(long key) {
+        int mask = mSlots - 1;
+        int i = (int) (key ^ (key >>> 32)) & mask;
+        for (int probes = 0; probes < mSlots; probes++) {
+            int base = slotOffset(i);
+            long k = mIndex.getLong(base + S_KEY);
+            if (k == key) {
+                return base;
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int insert(long key) {
+        if (mEntries >= mSlots / 2 && !evictOneEntry(key)) {
+            return -1;
+        }
+        compactIfNeeded();
+        int mask = mSlots - 1;
+        int i = (int) (key ^ (key >>> 32)) & mask;
+        for (int probes = 0; probes < mSlots; probes++) {
+            int base = slotOffset(i);
+            long k = mIndex.getLong(base + S_KEY);
+            if (k == EMPTY || k == DELETED) {
+                if (k == DELETED) {
+                    mTombstones--;
+                }
+                mIndex.putLong(base + S_KEY, key);
+                mIndex.putLong(base + S_TOTAL, -1);
+                mIndex.putInt(base + S_HITS, 1);
+                mIndex.putInt(base + S_COUNT, 0);
+                mIndex.putLong(base + S_DROPPED, 0);
+                updatePriority(base);
+                mEntries++;
+                return base;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean evictOneEntry(long keep) {
+        int victim = lowestPriority(keep);
+        if (victim < 0) {
+            return false;
+        }
+        mIndex.putLong(H_INFLATION, mIndex.getLong(victim + S_PRIORITY));
+        removeEntry(victim);
+        return true;
+    }
+
+    private int spanAt(int base, long position) {
+        int lo = 0;
+        int hi = mIndex.getInt(base + S_COUNT) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (spanStart(base, mid) > position) {
+                hi = mid - 1;
+            } else if (spanEnd(base, mid) <= position) {
+                lo = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private long overlap(int base, long start, long end) {
+        long covered = 0;
+        int count = mIndex.getInt(base + S_COUNT);
+        for (int i = 0; i < count; i++) {
+            long s = Math.max(start, spanStart(base, i));
+            long e = Math.min(end, spanEnd(base, i));
+            if (e > s) {
+                covered += e - s;
+            }
+        }
+        return covered;
+    }
+
+    private void addSpan(int base, long start, long end) {
+        int count = mIndex.getInt(base + S_COUNT);
+        long before = cachedBytes(base);
+        long[] spans = new long[(count + 1) * 2];
+        int n = 0;
+        boolean placed = false;
+        for (int i = 0; i < count; i++) {
+            long s = spanStart(base, i);
+            long e = spanEnd(base, i);
+            if (e < start) {
+                spans[n++] = s;
+                spans[n++] = e;
+            } else if (s > end) {
+                if (!placed) {
+                    spans[n++] = start;
+                    spans[n++] = end;
+                    placed = true;
+                }
+                spans[n++] = s;
+                spans[n++] = e;
+            } else {
+                start = Math.min(start, s);
+                end = Math.max(end, e);
+            }
+        }
+        if (!placed) {
+            spans[n++] = start;
+            spans[n++] = end;
+        }
+        count = n / 2;
+        long dropped = 0;
+        while (count > MAX_SPANS) {
+            dropped += dropSmallestSpan(spans, count--);
+        }
+        mIndex.putInt(base + S_COUNT, count);
+        for (int i = 0; i < count; i++) {
+            mIndex.putLong(base + S_SPANS + i * 16, spans[i * 2]);
+            mIndex.putLong(base + S_SPANS + i * 16 + 8, spans[i * 2 + 1]);
+        }
+        // A dropped span's bytes stay on disk until the entry goes, so they still count.
+        mIndex.putLong(base + S_DROPPED, mIndex.getLong(base + S_DROPPED) + dropped);
+        mUsedBytes += cachedBytes(base) + dropped - before;
+        updatePriority(base);
+    }
+
+    /** Removes the smallest of {@code count} spans and returns its length. */
+    private static long dropSmallestSpan(long[] spans, int count) {
+        int smallest = 0;
+        for (int i = 1; i < count; i++) {
+            if (spans[i * 2 + 1] - spans[i * 2] < spans[smallest * 2 + 1] - spans[smallest * 2]) {
+                smallest = i;
+            }
+        }
+        long length = spans[smallest * 2 + 1] - spans[smallest * 2];
+        System.arraycopy(spans, (smallest + 1) * 2, spans, smallest * 2, (count - smallest - 1) * 2);
+        return length;
+    }
+
+    private long cachedBytes(int base) {
+        long bytes = 0;
+        int count = mIndex.getInt(base + S_COUNT);
+        for (int i = 0; i < count; i++) {
+            bytes += spanEnd(base, i) - spanStart(base, i);
+        }
+        return bytes;
+    }
+
+    /** Disk space the entry takes: its indexed spans plus dropped ones. */
+    private long storedBytes(int base) {
+        return cachedBytes(base) + mIndex.getLong(base + S_DROPPED);
+    }
+
+    private long spanStart(int base, int i) {
+        return mIndex.getLong(base + S_SPANS + i * 16);
+    }
+
+    private long spanEnd(int base, int i) {
+        return mIndex.getLong(base + S_SPANS + i * 16 + 8);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private FileChannel channelFor(long key) throws IOException {
+        OpenFile file = mOpenFiles.get(key);
+        if (file == null) {
+            file = new OpenFile(new RandomAccessFile(dataFile(key), "rw").getChannel());
+            mOpenFiles.put(key, file);
+            if (mOpenFiles.size() > MAX_OPEN_FILES) {
+                Iterator<OpenFile> eldest = mOpenFiles.values().iterator();
+                retire(eldest.next());
+                eldest.remove();
+            }
+        }
+        return file.channel;
+    }
+
+    /** Opens the data file for use outside the lock; pair with {@link #release}. */
+    private OpenFile acquire(long key) throws IOException {
+        channelFor(key);
+        OpenFile file = mOpenFiles.get(key);
+        file.users++;
+        return file;
+    }
+
+    private synchronized void release(OpenFile file) {
+        if (--file.users == 0 && file.retired) {
+            closeQuietly(file.channel);
+        }
+    }
+
+    // Closed now, or by the last reader still transferring from it.
+    private static void retire(OpenFile file) {
+        if (file != null) {
+            file.retired = true;
+            if (file.users == 0) {
+                closeQuietly(file.channel);
+            }
+        }
+    }
+
+    private File dataFile(long key) {
+        return new File(mDir, Long.toHexString(key) + ".v");
+    }
+
+    private void resetIndex(int slots) {
+        for (int i = 0; i < mIndex.capacity(); i += 8) {
+            if (i + 8 <= mIndex.capacity()) {
+                mIndex.putLong(i, 0);
+            }
+        }
+        mIndex.putInt(H_MAGIC, MAGIC);
+        mIndex.putInt(H_VERSION, VERSION);
+        mIndex.putInt(H_SLOTS, slots);
+        File[] stale = mDir.listFiles();
+        if (stale != null) {
+            for (File f : stale) {
+                if (f.getName().endsWith(".v")) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static class OpenFile {
+        final FileChannel channel;
+        int users;
+        boolean retired;
+
+        OpenFile(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /** 64-bit FNV-1a over the URL characters; never returns a reserved slot marker. */
+    static long hash(String url) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = url.length(); i < n; i++) {
+            h ^= url.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == EMPTY || h == DELETED ? 1 : h;
+    }
+
+    /** Count-min sketch with 4-bit-style saturation, halved periodically so old popularity fades. */
+    static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private final int[] mTable;
+        private final int mMask;
+        private final int mResetAt;
+        private int mAdditions;
+
+        FrequencySketch(int width) {
+            int w = Integer.highestOneBit(Math.max(64, width * 2 - 1));
+            mTable = new int[w * DEPTH];
+            mMask = w - 1;
+            mResetAt = w * 10;
+        }
+
+        void increment(long key) {
+            boolean added = false;
+            for (int d = 0; d < DEPTH; d++) {
+                int i = index(key, d);
+                if (mTable[i] < MAX_COUNT) {
+                    mTable[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++mAdditions >= mResetAt) {
+                for (int i = 0; i < mTable.length; i++) {
+                    mTable[i] >>= 1;
+                }
+                mAdditions >>= 1;
+            }
+        }
+
+        int frequency(long key) {
+            int min = MAX_COUNT;
+            for (int d = 0; d < DEPTH; d++) {
+                min = Math.min(min, mTable[index(key, d)]);
+            }
+            return min;
+        }
+
+        private int index(long key, int depth) {
+            long h = (key + depth) * 0x9e3779b97f4a7c15L;
+            h ^= h >>> 29;
+            return depth * (mMask + 1) + ((int) h & mMask);
+        }
+    }
+}
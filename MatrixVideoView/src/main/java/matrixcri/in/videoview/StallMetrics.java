@@ -0,0 +1,188 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+/**
+ * Rebuffering accounting for one {@link MatrixVideoView}, fed from the
+ * buffering start/end callbacks. A stall that begins shortly after a seek is
+ * counted as a seek stall, anything else as an organic stall. Watch time is
+ * the time spent in the playing state, stalls included, so the rebuffer
+ * ratio is stall time / watch time.
+ *
+ * <p>A session runs from {@code setVideoURI} to the next one or to
+ * {@code stopPlayback}; finished sessions are added to a process-wide total.
+ * Both can be copied into a {@link Snapshot} without allocating.</p>
+ */
+public class StallMetrics {
+    private static final long SEEK_STALL_WINDOW_NS = 2000 * 1000000L;
+
+    private static final Snapshot sTotal = new Snapshot();
+
+    private final Snapshot mSession = new Snapshot();
+    private boolean mActive;
+    private long mPlayStartNanos;
+    private long mStallStartNanos;
+    private long mLastSeekNanos;
+    private boolean mSeekStall;
+
+    /** Copies the current session, including the stall in progress, into {@code target}. */
+    public void snapshot(Snapshot target) {
+        mSession.copyTo(target);
+        long now = System.nanoTime();
+        if (mPlayStartNanos != 0) {
+            target.watchTimeMs += (now - mPlayStartNanos) / 1000000L;
+        }
+        if (mStallStartNanos != 0) {
+            target.stallTimeMs += (now - mStallStartNanos) / 1000000L;
+        }
+    }
+
+    /** Copies the totals of all finished sessions in this process into {@code target}. */
+    public static void snapshotTotal(Snapshot target) {
+        synchronized (sTotal) {
+            sTotal.copyTo(target);
+        }
+    }
+
+    public static void resetTotal() {
+        synchronized (sTotal) {
+            sTotal.reset();
+        }
+    }
+
+    void beginSession() {
+        endSession();
+        mSession.reset();
+        mSession.sessions = 1;
+        mActive = true;
+    }
+
+    void endSession() {
+        if (!mActive) {
+            return;
+        }
+        onPause();
+        mActive = false;
+        if (mSession.watchTimeMs > 0 || mSession.stallCount > 0 || mSession.seekStallCount > 0) {
+            synchronized (sTotal) {
+                sTotal.add(mSession);
+            }
+        }
+    }
+
+    void onPlay() {
+        if (mActive && mPlayStartNanos == 0) {
+            mPlayStartNanos = System.nanoTime();
+        }
+    }
+
+    void onPause() {
+        long now = System.nanoTime();
+        closeStall(now);
+        if (mPlayStartNanos != 0) {
+            mSession.watchTimeMs += (now - mPlayStartNanos) / 1000000L;
+            mPlayStartNanos = 0;
+        }
+    }
+
+    void onSeek() {
+        mLastSeekNanos = System.nanoTime();
+    }
+
+    void onBufferingStart() {
+        if (mPlayStartNanos == 0 || mStallStartNanos != 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        mStallStartNanos = now;
+        mSeekStall = mLastSeekNanos != 0 && now - mLastSeekNanos <= SEEK_STALL_WINDOW_NS;
+    }
+
+    void onBufferingEnd() {
+        closeStall(System.nanoTime());
+    }
+
+    private void closeStall(long now) {
+        if (mStallStartNanos == 0) {
+            return;
+        }
+        long millis = (now - mStallStartNanos) / 1000000L;
+        mStallStartNanos = 0;
+        mSession.stallTimeMs += millis;
+        if (mSeekStall) {
+            mSession.seekStallCount++;
+            mSession.seekStalls.record(millis);
+        } else {
+            mSession.stallCount++;
+            mSession.stalls.record(millis);
+        }
+    }
+
+    public static class Snapshot {
+        /** Organic stall durations in milliseconds. */
+        public final LatencyHistogram stalls = new LatencyHistogram();
+        /** Durations of stalls that followed a seek, in milliseconds. */
+        public final LatencyHistogram seekStalls = new LatencyHistogram();
+        public int stallCount;
+        public int seekStallCount;
+        public long stallTimeMs;
+        public long watchTimeMs;
+        public int sessions;
+
+        public float getRebufferRatio() {
+            return watchTimeMs == 0 ? 0f : (float) stallTimeMs / watchTimeMs;
+        }
+
+        void reset() {
+            stalls.reset();
+            seekStalls.reset();
+            stallCount = 0;
+            seekStallCount = 0;
+            stallTimeMs = 0;
+            watchTimeMs = 0;
+            sessions = 0;
+        }
+
+        void add(Snapshot other) {
+            stalls.add(other.stalls);
+            seekStalls.add(other.seekStalls);
+            stallCount += other.stallCount;
+            seekStallCount += other.seekStallCount;
+            stallTimeMs += other.stallTimeMs;
+            watchTimeMs += other.watchTimeMs;
+            sessions += other.sessions;
+        }
+
+        void copyTo(Snapshot target) {
+            stalls.copyTo(target.stalls);
+            seekStalls.copyTo(target.seekStalls);
+            target.stallCount = stallCount;
+            target.seekStallCount = seekStallCount;
+            target.stallTimeMs = stallTimeMs;
+            target.watchTimeMs = watchTimeMs;
+            target.sessions = sessions;
+        }
+
+        @Override
+        public String toString() {
+            return "stalls=" + stallCount + " seekStalls=" + seekStallCount + " stallMs=" + stallTimeMs
+                    + " watchMs=" + watchTimeMs + " ratio=" + getRebufferRatio()
+                    + " p95=" + stalls.percentile(0.95);
+        }
+    }
+}
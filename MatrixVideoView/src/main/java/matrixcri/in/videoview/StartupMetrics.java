@@ -0,0 +1,133 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+/**
+ * Time-to-first-frame breakdown for one {@link MatrixVideoView}. Each startup
+ * session runs from {@code setVideoURI} to the first rendered frame, and every
+ * phase is stamped with {@link System#nanoTime()}. Finished sessions are also
+ * folded into process-wide histograms, one per phase, measured from
+ * {@code setVideoURI}.
+ */
+public class StartupMetrics {
+    public static final int PHASE_SET_URI = 0;
+    public static final int PHASE_SURFACE_READY = 1;
+    public static final int PHASE_PREPARE_ISSUED = 2;
+    public static final int PHASE_PREPARED = 3;
+    public static final int PHASE_START = 4;
+    public static final int PHASE_FIRST_FRAME = 5;
+    public static final int PHASE_COUNT = 6;
+
+    private static final LatencyHistogram[] sAggregate = new LatencyHistogram[PHASE_COUNT];
+
+    static {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sAggregate[i] = new LatencyHistogram();
+        }
+    }
+
+    private final long[] mMarks = new long[PHASE_COUNT];
+    private final long[] mLastSession = new long[PHASE_COUNT];
+    private boolean mActive;
+    private boolean mHasSession;
+    private Listener mListener;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Milliseconds from {@code setVideoURI} to {@code phase} in the last
+     * finished session, or -1 if there is none.
+     */
+    public long getPhaseMillis(int phase) {
+        return mHasSession ? mLastSession[phase] : -1;
+    }
+
+    /** Process-wide histogram of milliseconds from {@code setVideoURI} to {@code phase}. */
+    public static LatencyHistogram getAggregate(int phase) {
+        return sAggregate[phase];
+    }
+
+    /** Shortcut for {@code getAggregate(phase).percentile(fraction)}, e.g. 0.5, 0.95, 0.99. */
+    public static long percentile(int phase, double fraction) {
+        return sAggregate[phase].percentile(fraction);
+    }
+
+    public static void resetAggregate() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sAggregate[i].reset();
+        }
+    }
+
+    void begin() {
+        begin(System.nanoTime());
+    }
+
+    void begin(long nanos) {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mMarks[i] = 0;
+        }
+        mMarks[PHASE_SET_URI] = nanos;
+        mActive = true;
+    }
+
+    void cancel() {
+        mActive = false;
+    }
+
+    void mark(int phase) {
+        mark(phase, System.nanoTime());
+    }
+
+    void mark(int phase, long nanos) {
+        if (!mActive || mMarks[phase] != 0) {
+            return;
+        }
+        mMarks[phase] = Math.max(nanos, mMarks[PHASE_SET_URI]);
+        if (phase == PHASE_FIRST_FRAME) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        mActive = false;
+        long origin = mMarks[PHASE_SET_URI];
+        long previous = origin;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            // A phase that was never stamped (e.g. the surface existed before
+            // setVideoURI) is counted as finished when the previous one was.
+            long mark = mMarks[i] != 0 ? mMarks[i] : previous;
+            previous = mark;
+            long millis = (mark - origin) / 1000000L;
+            mLastSession[i] = millis;
+            if (i != PHASE_SET_URI) {
+                sAggregate[i].record(millis);
+            }
+        }
+        mHasSession = true;
+        if (mListener != null) {
+            mListener.onStartupComplete(this);
+        }
+    }
+
+    public interface Listener {
+        /** Called on the UI thread when the first frame of a session is rendered. */
+        void onStartupComplete(StartupMetrics metrics);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+/**
+ * Network throughput estimate from timed downloads. Two exponentially
+ * weighted moving averages, weighted by download time, follow the samples:
+ * a fast one with a half-life of a few seconds and a slow one with a longer
+ * half-life. The estimate is the lower of the two, so it drops quickly when
+ * the network gets worse and rises only once it has stayed better. Takes no
+ * clock readings of its own, so a simulation replays exactly.
+ */
+public class ThroughputEstimator {
+    private static final double FAST_HALF_LIFE_S = 2;
+    private static final double SLOW_HALF_LIFE_S = 8;
+    /** Downloads smaller than this mostly measure latency, not throughput. */
+    private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+    /** Download time that has to be seen before the averages are trusted. */
+    private static final double MIN_TOTAL_S = 0.5;
+
+    private final long mDefaultBitsPerSecond;
+    private final Ewma mFast = new Ewma(FAST_HALF_LIFE_S);
+    private final Ewma mSlow = new Ewma(SLOW_HALF_LIFE_S);
+    private double mTotalSeconds;
+    private int mSamples;
+
+    /** {@code defaultBitsPerSecond} is returned until there are enough samples. */
+    public ThroughputEstimator(long defaultBitsPerSecond) {
+        mDefaultBitsPerSecond = defaultBitsPerSecond;
+    }
+
+    /** Records that {@code bytes} took {@code elapsedMs} to download. */
+    public synchronized void addSample(long bytes, long elapsedMs) {
+        if (bytes < MIN_SAMPLE_BYTES) {
+            return;
+        }
+        double seconds = Math.max(elapsedMs, 1) / 1000.0;
+        double bitsPerSecond = bytes * 8 / seconds;
+        mFast.add(seconds, bitsPerSecond);
+        mSlow.add(seconds, bitsPerSecond);
+        mTotalSeconds += seconds;
+        mSamples++;
+    }
+
+    /** Estimated throughput in bits per second. */
+    public synchronized long getEstimate() {
+        if (mTotalSeconds < MIN_TOTAL_S) {
+            return mDefaultBitsPerSecond;
+        }
+        return (long) Math.min(mFast.get(), mSlow.get());
+    }
+
+    public synchronized int getSampleCount() {
+        return mSamples;
+    }
+
+    public synchronized void reset() {
+        mFast.reset();
+        mSlow.reset();
+        mTotalSeconds = 0;
+        mSamples = 0;
+    }
+
+    // Starts at zero, so the value is divided by the weight seen so far.
+    private static class Ewma {
+        private final double mAlpha;
+        private double mEstimate;
+        private double mSeconds;
+
+        Ewma(double halfLifeSeconds) {
+            mAlpha = Math.exp(Math.log(0.5) / halfLifeSeconds);
+        }
+
+        void add(double seconds, double value) {
+            double keep = Math.pow(mAlpha, seconds);
+            mEstimate = value * (1 - keep) + keep * mEstimate;
+            mSeconds += seconds;
+        }
+
+        double get() {
+            double weight = 1 - Math.pow(mAlpha, mSeconds);
+            return weight == 0 ? 0 : mEstimate / weight;
+        }
+
+        void reset() {
+            mEstimate = 0;
+            mSeconds = 0;
+        }
+    }
+}
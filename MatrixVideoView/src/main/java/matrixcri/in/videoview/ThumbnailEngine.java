@@ -0,0 +1,602 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Seek bar preview frames for one video. Frames come from the video itself
+ * through {@link MediaMetadataRetriever} or from a WebVTT thumbnail track
+ * that points into sprite sheets. They are decoded one at a time on a
+ * background thread shared by all engines, nearest to the current drag
+ * position first, and drawn into bitmaps from a {@link BitmapPool} that are
+ * kept in a size bounded LRU cache. Public methods are for the UI thread.
+ */
+public class ThumbnailEngine {
+    private static final String TAG = "ThumbnailEngine";
+    private static final int DEFAULT_INTERVAL = 2000;
+    private static final int DEFAULT_CACHE_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_PENDING = 6;
+    private static final int POOL_SIZE = 4;
+
+    private static ExecutorService sExecutor;
+
+    private final Source mSource;
+    private final BitmapPool mPool;
+    private final LruCache<Integer, Bitmap> mCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Canvas mCanvas = new Canvas();
+    private final int[] mPending = new int[MAX_PENDING];
+    private int mPendingCount;
+    private boolean mDrainQueued;
+    private volatile int mFocus = -1;
+    private volatile Bitmap mShown;
+    private volatile boolean mReady;
+    private volatile boolean mReleased;
+    private volatile Mp4Index mKeyframes;
+    private volatile int mInterval = DEFAULT_INTERVAL;
+    private int mWaitingTime = -1;
+    private Listener mListener;
+
+    /** Previews decoded from the video at {@code uri}, scaled to {@code width} x {@code height}. */
+    public static ThumbnailEngine forVideo(Context context, Uri uri, Map<String, String> headers,
+                                           int width, int height) {
+        return forVideo(context, uri, headers, width, height, null);
+    }
+
+    /**
+     * Like {@link #forVideo(Context, Uri, Map, int, int)}, but a remote video
+     * is read through {@code proxy}, so frames come from its cache and bytes
+     * fetched for them are cached for playback. {@code proxy} may be null.
+     */
+    public static ThumbnailEngine forVideo(Context context, Uri uri, Map<String, String> headers,
+                                           int width, int height, VideoCacheProxy proxy) {
+        return new ThumbnailEngine(new RetrieverSource(context.getApplicationContext(), uri, headers, proxy),
+                width, height, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Previews from a WebVTT thumbnail track whose cues reference sprite
+     * sheet regions ({@code sheet.jpg#xywh=x,y,w,h}). HTTP(S) and file URLs.
+     */
+    public static ThumbnailEngine forSpriteTrack(Uri track, int width, int height) {
+        return new ThumbnailEngine(new SpriteSource(track.toString()), width, height, DEFAULT_CACHE_BYTES);
+    }
+
+    ThumbnailEngine(Source source, int width, int height, int cacheBytes) {
+        mSource = source;
+        mPool = new BitmapPool(width, height, Bitmap.Config.RGB_565, POOL_SIZE);
+        mCache = new LruCache<Integer, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer key, Bitmap oldValue, Bitmap newValue) {
+                // The bitmap on screen is left to the GC rather than drawn over.
+                if (oldValue != mShown) {
+                    mPool.release(oldValue);
+                }
+            }
+        };
+        executor().execute(new Runnable() {
+            public void run() {
+                try {
+                    mSource.prepare();
+                    mReady = true;
+                } catch (IOException e) {
+                    Log.w(TAG, "No thumbnails: " + e.getMessage());
+                }
+                mHandler.post(mReadyRunnable);
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Groups requests into buckets of {@code intervalMs} when frames come
+     * from the video and no keyframe index is set.
+     */
+    public void setInterval(int intervalMs) {
+        mInterval = Math.max(intervalMs, 1);
+    }
+
+    /**
+     * Uses keyframe times as buckets. A frame extracted near a time is the
+     * closest keyframe anyway, so this decodes each distinct frame once.
+     */
+    public void setKeyframeIndex(Mp4Index index) {
+        mKeyframes = index;
+    }
+
+    /**
+     * Returns the cached preview for {@code timeMs}, or null and schedules it;
+     * the listener is called when it is ready, as long as it is still the
+     * last one asked for.
+     */
+    public Bitmap request(int timeMs) {
+        if (mReleased) {
+            return null;
+        }
+        if (!mReady) {
+            mWaitingTime = timeMs;
+            return null;
+        }
+        int key = keyFor(timeMs);
+        mFocus = key;
+        Bitmap cached = mCache.get(key);
+        if (cached != null) {
+            mShown = cached;
+            return cached;
+        }
+        enqueue(key);
+        return null;
+    }
+
+    /** Drops previews not started yet; call when the drag ends. */
+    public void cancel() {
+        synchronized (this) {
+            mPendingCount = 0;
+        }
+        mWaitingTime = -1;
+        mFocus = -1;
+    }
+
+    public void release() {
+        mReleased = true;
+        cancel();
+        executor().execute(new Runnable() {
+            public void run() {
+                mSource.close();
+                mCache.evictAll();
+                mPool.clear();
+            }
+        });
+    }
+
+    /** Number of bitmaps allocated so far; stays flat once the pool is warm. */
+    public int getBitmapAllocationCount() {
+        return mPool.getAllocationCount();
+    }
+
+    private int keyFor(int timeMs) {
+        int key = mSource.keyFor(timeMs);
+        if (key >= 0) {
+            return key;
+        }
+        Mp4Index keyframes = mKeyframes;
+        if (keyframes != null && keyframes.getKeyframeCount() > 0) {
+            return keyframes.snap(timeMs, Mp4Index.SNAP_NEAREST);
+        }
+        int interval = mInterval;
+        return Math.max(timeMs, 0) / interval * interval;
+    }
+
+    private void enqueue(int key) {
+        synchronized (this) {
+            int farthest = 0;
+            for (int i = 0; i < mPendingCount; i++) {
+                if (mPending[i] == key) {
+                    return;
+                }
+                if (Math.abs(mPending[i] - key) > Math.abs(mPending[farthest] - key)) {
+                    farthest = i;
+                }
+            }
+            if (mPendingCount < MAX_PENDING) {
+                mPending[mPendingCount++] = key;
+            } else {
+                mPending[farthest] = key;
+            }
+            if (mDrainQueued) {
+                return;
+            }
+            mDrainQueued = true;
+        }
+        executor().execute(mDrainOne);
+    }
+
+    // Decodes the pending preview nearest to the drag position, then queues
+    // itself again, so engines sharing the thread take turns.
+    private final Runnable mDrainOne = new Runnable() {
+        public void run() {
+            int key;
+            synchronized (ThumbnailEngine.this) {
+                if (mPendingCount == 0 || mReleased) {
+                    mDrainQueued = false;
+                    return;
+                }
+                int focus = mFocus;
+                int best = 0;
+                for (int i = 1; i < mPendingCount; i++) {
+                    if (Math.abs(mPending[i] - focus) < Math.abs(mPending[best] - focus)) {
+                        best = i;
+                    }
+                }
+                key = mPending[best];
+                mPending[best] = mPending[--mPendingCount];
+            }
+            if (mCache.get(key) == null) {
+                decode(key);
+            }
+            synchronized (ThumbnailEngine.this) {
+                if (mPendingCount == 0 || mReleased) {
+                    mDrainQueued = false;
+                    return;
+                }
+            }
+            executor().execute(this);
+        }
+    };
+
+    private void decode(final int key) {
+        final Bitmap target = mPool.acquire();
+        boolean drawn = false;
+        try {
+            mCanvas.setBitmap(target);
+            drawn = mSource.draw(key, mCanvas, target.getWidth(), target.getHeight());
+        } catch (IOException e) {
+            Log.d(TAG, "Thumbnail at " + key + " failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Thumbnail at " + key + " failed", e);
+        } finally {
+            mCanvas.setBitmap(null);
+        }
+        if (!drawn) {
+            mPool.release(target);
+            return;
+        }
+        mCache.put(key, target);
+        mHandler.post(new Runnable() {
+            public void run() {
+                // Skipped if the bitmap was already evicted and reused.
+                if (mReleased || key != mFocus || mListener == null || mCache.get(key) != target) {
+                    return;
+                }
+                mShown = target;
+                mListener.onThumbnailReady(key, target);
+            }
+        });
+    }
+
+    private final Runnable mReadyRunnable = new Runnable() {
+        public void run() {
+            int time = mWaitingTime;
+            mWaitingTime = -1;
+            if (time < 0 || !mReady) {
+                return;
+            }
+            Bitmap bitmap = request(time);
+            if (bitmap != null && mListener != null) {
+                mListener.onThumbnailReady(mFocus, bitmap);
+            }
+        }
+    };
+
+    private static synchronized ExecutorService executor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Thumbnails");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /** Draws {@code src} of {@code frame} centred in a {@code width} x {@code height} canvas, letterboxed. */
+    static void drawFit(Canvas canvas, Bitmap frame, Rect src, int width, int height, Paint paint, Rect dst) {
+        int srcWidth = src.right - src.left;
+        int srcHeight = src.bottom - src.top;
+        if (srcWidth * height > width * srcHeight) {
+            int h = srcHeight * width / srcWidth;
+            dst.set(0, (height - h) / 2, width, (height + h) / 2);
+        } else {
+            int w = srcWidth * height / Math.max(srcHeight, 1);
+            dst.set((width - w) / 2, 0, (width + w) / 2, height);
+        }
+        canvas.drawColor(0xff000000);
+        canvas.drawBitmap(frame, src, dst, paint);
+    }
+
+    public interface Listener {
+        /** {@code timeMs} is the start of the bucket the preview stands for. */
+        void onThumbnailReady(int timeMs, Bitmap thumbnail);
+    }
+
+    interface Source {
+        /** Opens the source; called once on the worker thread. */
+        void prepare() throws IOException;
+
+        /** The bucket for {@code timeMs}, or -1 to let the engine choose. Any thread, after prepare(). */
+        int keyFor(int timeMs);
+
+        /** Draws the preview for bucket {@code key}; false if there is none. Worker thread. */
+        boolean draw(int key, Canvas canvas, int width, int height) throws IOException;
+
+        void close();
+    }
+
+    static class RetrieverSource implements Source {
+        private final Context mContext;
+        private final Uri mUri;
+        private final Map<String, String> mHeaders;
+        private final VideoCacheProxy mProxy;
+        private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final Rect mSrc = new Rect();
+        private final Rect mDst = new Rect();
+        private MediaMetadataRetriever mRetriever;
+
+        RetrieverSource(Context context, Uri uri, Map<String, String> headers, VideoCacheProxy proxy) {
+            mContext = context;
+            mUri = uri;
+            mHeaders = headers;
+            mProxy = proxy;
+        }
+
+        public void prepare() throws IOException {
+            Uri uri = sourceUri();
+            mRetriever = new MediaMetadataRetriever();
+            try {
+                if (VideoCacheProxy.isRemote(uri)) {
+                    mRetriever.setDataSource(uri.toString(),
+                            mHeaders != null ? mHeaders : new HashMap<String, String>());
+                } else {
+                    mRetriever.setDataSource(mContext, uri);
+                }
+            } catch (RuntimeException e) {
+                mRetriever.release();
+                mRetriever = null;
+                throw new IOException("Unable to open " + mUri, e);
+            }
+        }
+
+        // Chosen the way MatrixVideoView picks what the player opens.
+        private Uri sourceUri() {
+            if (mProxy == null || !VideoCacheProxy.isRemote(mUri)) {
+                return mUri;
+            }
+            File cached = mProxy.getCache().getCompleteFile(mUri.toString());
+            return cached != null ? Uri.fromFile(cached) : mProxy.getProxyUri(mUri);
+        }
+
+        public int keyFor(int timeMs) {
+            return -1;
+        }
+
+        public boolean draw(int key, Canvas canvas, int width, int height) {
+            long timeUs = key * 1000L;
+            Bitmap frame;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                frame = scaledFrame(timeUs, width, height);
+            } else {
+                frame = mRetriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            }
+            if (frame == null) {
+                return false;
+            }
+            try {
+                mSrc.set(0, 0, frame.getWidth(), frame.getHeight());
+                drawFit(canvas, frame, mSrc, width, height, mPaint, mDst);
+            } finally {
+                frame.recycle();
+            }
+            return true;
+        }
+
+        @TargetApi(Build.VERSION_CODES.O_MR1)
+        private Bitmap scaledFrame(long timeUs, int width, int height) {
+            return mRetriever.getScaledFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                    width, height);
+        }
+
+        public void close() {
+            if (mRetriever != null) {
+                mRetriever.release();
+                mRetriever = null;
+            }
+        }
+    }
+
+    /** Cues of a WebVTT thumbnail track; each tile is decoded into one reused bitmap. */
+    static class SpriteSource implements Source {
+        private final String mTrackUrl;
+        private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final Rect mRegion = new Rect();
+        private final Rect mSrc = new Rect();
+        private final Rect mDst = new Rect();
+        private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+        private int mCount;
+        private int[] mStarts = new int[64];
+        private int[] mRegions = new int[64 * 4];
+        private String[] mSheets = new String[64];
+        private String mSheetUrl;
+        private BitmapRegionDecoder mDecoder;
+        private Bitmap mTile;
+
+        SpriteSource(String trackUrl) {
+            mTrackUrl = trackUrl;
+            mOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+            mOptions.inMutable = true;
+        }
+
+        public void prepare() throws IOException {
+            URL base = new URL(mTrackUrl);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(base.openStream(), "UTF-8"));
+            try {
+                int start = -1;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    int arrow = line.indexOf("-->");
+                    if (arrow > 0) {
+                        start = parseTime(line.substring(0, arrow).trim());
+                    } else if (start >= 0 && line.length() > 0) {
+                        addCue(base, start, line);
+                        start = -1;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (mCount == 0) {
+                throw new IOException("No thumbnail cues in " + mTrackUrl);
+            }
+        }
+
+        private void addCue(URL base, int start, String reference) throws IOException {
+            int hash = reference.indexOf("#xywh=");
+            if (hash < 0) {
+                return;
+            }
+            String[] xywh = reference.substring(hash + 6).split(",");
+            if (xywh.length != 4) {
+                return;
+            }
+            if (mCount == mStarts.length) {
+                mStarts = Arrays.copyOf(mStarts, mCount * 2);
+                mRegions = Arrays.copyOf(mRegions, mCount * 8);
+                mSheets = Arrays.copyOf(mSheets, mCount * 2);
+            }
+            try {
+                for (int i = 0; i < 4; i++) {
+                    mRegions[mCount * 4 + i] = Integer.parseInt(xywh[i].trim());
+                }
+            } catch (NumberFormatException e) {
+                return;
+            }
+            mStarts[mCount] = start;
+            mSheets[mCount] = new URL(base, reference.substring(0, hash)).toString();
+            mCount++;
+        }
+
+        /** Parses "hh:mm:ss.ttt" or "mm:ss.ttt". */
+        private static int parseTime(String text) {
+            String[] parts = text.split(":");
+            try {
+                int ms = (int) Math.round(Double.parseDouble(parts[parts.length - 1]) * 1000);
+                int multiplier = 60000;
+                for (int i = parts.length - 2; i >= 0; i--) {
+                    ms += Integer.parseInt(parts[i]) * multiplier;
+                    multiplier *= 60;
+                }
+                return ms;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        public int keyFor(int timeMs) {
+            int i = Arrays.binarySearch(mStarts, 0, mCount, timeMs);
+            if (i < 0) {
+                i = Math.max(-i - 2, 0);
+            }
+            return mStarts[i];
+        }
+
+        public boolean draw(int key, Canvas canvas, int width, int height) throws IOException {
+            int cue = Arrays.binarySearch(mStarts, 0, mCount, key);
+            if (cue < 0) {
+                return false;
+            }
+            String sheet = mSheets[cue];
+            if (!sheet.equals(mSheetUrl)) {
+                if (mDecoder != null) {
+                    mDecoder.recycle();
+                    mDecoder = null;
+                }
+                byte[] data = download(sheet);
+                mDecoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+                mSheetUrl = sheet;
+            }
+            int x = mRegions[cue * 4];
+            int y = mRegions[cue * 4 + 1];
+            int w = mRegions[cue * 4 + 2];
+            int h = mRegions[cue * 4 + 3];
+            mRegion.set(x, y, x + w, y + h);
+            // Tiles of a track share a size, so one bitmap is decoded into over and over.
+            mOptions.inBitmap = mTile != null && mTile.getWidth() == w && mTile.getHeight() == h ? mTile : null;
+            Bitmap tile = mDecoder.decodeRegion(mRegion, mOptions);
+            if (tile == null) {
+                return false;
+            }
+            mTile = tile;
+            mSrc.set(0, 0, w, h);
+            drawFit(canvas, tile, mSrc, width, height, mPaint, mDst);
+            return true;
+        }
+
+        private static byte[] download(String url) throws IOException {
+            InputStream in = new URL(url).openStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        }
+
+        public void close() {
+            if (mDecoder != null) {
+                mDecoder.recycle();
+                mDecoder = null;
+            }
+            mTile = null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.widget.TextView;
+
+/**
+ * "mm:ss" / "h:mm:ss" text for a {@link TextView} that is rewritten in place.
+ * Digits go into a reused {@code char[]} and the view is only touched when
+ * the displayed second changes, so a progress tick allocates nothing.
+ */
+class TimeText {
+    private final char[] mChars = new char[16];
+    private int mLength;
+    private int mSeconds = -1;
+
+    /** Formats {@code timeMs} into {@link #getChars()}; returns false if the second is unchanged. */
+    boolean set(int timeMs) {
+        int seconds = Math.max(timeMs, 0) / 1000;
+        if (seconds == mSeconds) {
+            return false;
+        }
+        mSeconds = seconds;
+        mLength = format(seconds, mChars);
+        return true;
+    }
+
+    /** Shows {@code timeMs} in {@code view} unless it already shows that second. */
+    void update(TextView view, int timeMs) {
+        if (set(timeMs)) {
+            // TextView keeps a reference to the array, which is fine as it is
+            // only changed right before the next setText().
+            view.setText(mChars, 0, mLength);
+        }
+    }
+
+    /** Forgets the shown value, so the next {@link #update} always writes. */
+    void invalidate() {
+        mSeconds = -1;
+    }
+
+    char[] getChars() {
+        return mChars;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+
+    /** Writes {@code totalSeconds} into {@code out} and returns the number of chars written. */
+    static int format(int totalSeconds, char[] out) {
+        int seconds = totalSeconds % 60;
+        int minutes = (totalSeconds / 60) % 60;
+        int hours = totalSeconds / 3600;
+        int pos = 0;
+        if (hours > 0) {
+            pos = writeInt(hours, out, pos);
+            out[pos++] = ':';
+        }
+        out[pos++] = (char) ('0' + minutes / 10);
+        out[pos++] = (char) ('0' + minutes % 10);
+        out[pos++] = ':';
+        out[pos++] = (char) ('0' + seconds / 10);
+        out[pos++] = (char) ('0' + seconds % 10);
+        return pos;
+    }
+
+    private static int writeInt(int value, char[] out, int pos) {
+        int digits = 1;
+        for (int v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+}
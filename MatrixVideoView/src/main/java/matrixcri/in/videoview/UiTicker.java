@@ -0,0 +1,184 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * One frame-aligned timer shared by every controller on the UI thread. Each
+ * client asks for a tick at some uptime; all clients that are due run in the
+ * same pass, at the start of a frame, and the ticker sleeps until the next
+ * deadline instead of posting a message per timer. Uses {@link Choreographer}
+ * on API 16+ and a main thread {@link Handler} below that. UI thread only.
+ */
+class UiTicker {
+    private static final long FRAME_MS = 16;
+
+    private static UiTicker sInstance;
+
+    private final ArrayList<Client> mClients = new ArrayList<Client>();
+    private final ArrayList<Client> mDue = new ArrayList<Client>();
+    private long[] mDeadlines = new long[8];
+    private final Driver mDriver;
+    private long mScheduledFor;
+    private boolean mDispatching;
+
+    static UiTicker getInstance() {
+        if (sInstance == null) {
+            sInstance = new UiTicker();
+        }
+        return sInstance;
+    }
+
+    private UiTicker() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mDriver = new ChoreographerDriver();
+        } else {
+            mDriver = new HandlerDriver();
+        }
+    }
+
+    /** Runs {@code client} on the first frame at or after {@code uptimeMs}, replacing any earlier request. */
+    void schedule(Client client, long uptimeMs) {
+        int index = mClients.indexOf(client);
+        if (index < 0) {
+            index = mClients.size();
+            mClients.add(client);
+            if (index == mDeadlines.length) {
+                long[] grown = new long[index * 2];
+                System.arraycopy(mDeadlines, 0, grown, 0, index);
+                mDeadlines = grown;
+            }
+        }
+        mDeadlines[index] = uptimeMs;
+        if (!mDispatching) {
+            reschedule(SystemClock.uptimeMillis());
+        }
+    }
+
+    void cancel(Client client) {
+        int index = mClients.indexOf(client);
+        if (index < 0) {
+            return;
+        }
+        int last = mClients.size() - 1;
+        mClients.set(index, mClients.get(last));
+        mDeadlines[index] = mDeadlines[last];
+        mClients.remove(last);
+        if (!mDispatching) {
+            reschedule(SystemClock.uptimeMillis());
+        }
+    }
+
+    private void onFrame() {
+        mScheduledFor = 0;
+        long now = SystemClock.uptimeMillis();
+        mDispatching = true;
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            if (mDeadlines[i] <= now) {
+                Client client = mClients.get(i);
+                mDue.add(client);
+                cancel(client);
+            }
+        }
+        // Anything a client schedules for now from inside onTick() runs on
+        // the next frame, so a pass always ends.
+        for (int i = 0; i < mDue.size(); i++) {
+            mDue.get(i).onTick(now);
+        }
+        mDue.clear();
+        mDispatching = false;
+        reschedule(SystemClock.uptimeMillis());
+    }
+
+    private void reschedule(long now) {
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < mClients.size(); i++) {
+            next = Math.min(next, mDeadlines[i]);
+        }
+        if (next == Long.MAX_VALUE) {
+            if (mScheduledFor != 0) {
+                mDriver.cancel();
+                mScheduledFor = 0;
+            }
+            return;
+        }
+        if (mScheduledFor != 0 && mScheduledFor <= next) {
+            return;
+        }
+        mDriver.cancel();
+        mScheduledFor = Math.max(next, now);
+        mDriver.post(Math.max(0, next - now));
+    }
+
+    interface Client {
+        /** Called on the UI thread once the requested time has been reached. */
+        void onTick(long uptimeMs);
+    }
+
+    private interface Driver {
+        void post(long delayMs);
+
+        void cancel();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerDriver implements Driver, Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        public void post(long delayMs) {
+            // Delays under a frame would land on the next vsync anyway.
+            if (delayMs < FRAME_MS) {
+                mChoreographer.postFrameCallback(this);
+            } else {
+                mChoreographer.postFrameCallbackDelayed(this, delayMs);
+            }
+        }
+
+        public void cancel() {
+            mChoreographer.removeFrameCallback(this);
+        }
+
+        public void doFrame(long frameTimeNanos) {
+            onFrame();
+        }
+    }
+
+    private class HandlerDriver implements Driver, Runnable {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        public void post(long delayMs) {
+            mHandler.postDelayed(this, Math.max(delayMs, FRAME_MS));
+        }
+
+        public void cancel() {
+            mHandler.removeCallbacks(this);
+        }
+
+        public void run() {
+            onFrame();
+        }
+    }
+}
@@ -0,0 +1,1117 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loopback HTTP server that sits between {@link MatrixVideoView} and the
+ * origin. Cached bytes are served with {@code FileChannel.transferTo}; bytes
+ * that have to come from the network are written to the cache while they are
+ * streamed to the player.
+ *
+ * <p>HLS masters are answered with a single variant whose segments come back
+ * through the proxy, which picks the variant of each one from the measured
+ * throughput and the buffer ahead of the player.</p>
+ */
+public class VideoCacheProxy {
+    private static final String TAG = "VideoCacheProxy";
+    private static final String CACHE_DIR = "matrix_video_cache";
+    private static final String PROXY_HOST = "127.0.0.1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+    private static final long DEFAULT_QUOTA = 512L * 1024 * 1024;
+    private static final int LAYOUT_CACHE_SIZE = 4;
+    /** How much of the media data is fetched alongside the moov of a relocated MP4. */
+    private static final long FAST_START_HEAD = 1024 * 1024;
+    private static final String HLS_MIME = "application/vnd.apple.mpegurl";
+    private static final int SESSION_CACHE_SIZE = 4;
+    private static final int MAX_PLAYLIST_SIZE = 1024 * 1024;
+    /** Throughput assumed before the first segments have been timed. */
+    private static final long DEFAULT_THROUGHPUT = 1500000;
+
+    private static VideoCacheProxy sInstance;
+
+    private final SpanCache mCache;
+    /** Required on every request, so other apps on the device cannot use the proxy. */
+    private final String mToken = newToken();
+    private ExecutorService mExecutor;
+    private ServerSocketChannel mServer;
+    private Thread mAcceptThread;
+    private int mPort;
+    private boolean mClosed;
+
+    private final Object mPrefetchLock = new Object();
+    private ExecutorService mPrefetchExecutor;
+    private String mPrefetchUrl;
+    private long mPrefetchStart;
+    private long mPrefetchEnd;
+    private int mPrefetchGeneration;
+
+    /** Fast-start layouts by URL; null values mark files that are served as they are. */
+    private final Map<String, FastStartLayout> mLayouts =
+            new LinkedHashMap<String, FastStartLayout>(LAYOUT_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FastStartLayout> eldest) {
+                    return size() > LAYOUT_CACHE_SIZE;
+                }
+            };
+
+    private final ThroughputEstimator mThroughput = new ThroughputEstimator(DEFAULT_THROUGHPUT);
+    private volatile AbrPolicy mAbrPolicy = new AbrPolicy();
+    private final Map<String, PlaybackPosition> mPositions = new HashMap<String, PlaybackPosition>();
+    private final Map<String, HlsSession> mHlsSessions =
+            new LinkedHashMap<String, HlsSession>(SESSION_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HlsSession> eldest) {
+                    return size() > SESSION_CACHE_SIZE;
+                }
+            };
+
+    /** Where playback of a source is, for the buffer level variant selection looks at. */
+    public interface PlaybackPosition {
+        /** Milliseconds; called from proxy threads. */
+        int getCurrentPosition();
+    }
+
+    public static synchronized VideoCacheProxy getInstance(Context context) {
+        if (sInstance == null) {
+            File root = context.getApplicationContext().getCacheDir();
+            try {
+                sInstance = new VideoCacheProxy(new SpanCache(new File(root, CACHE_DIR), DEFAULT_QUOTA));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open video cache", e);
+            }
+        }
+        return sInstance;
+    }
+
+    public VideoCacheProxy(SpanCache cache) {
+        mCache = cache;
+    }
+
+    public SpanCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Returns the loopback URI the player should open instead of {@code uri}.
+     * Non-HTTP URIs are returned unchanged, as is {@code uri} itself when the
+     * proxy cannot be started.
+     */
+    public Uri getProxyUri(Uri uri) {
+        if (uri == null || !isRemote(uri)) {
+            return uri;
+        }
+        if (!ensureStarted()) {
+            return uri;
+        }
+        return Uri.parse(localUrl(uri.toString()));
+    }
+
+    private String localUrl(String url) {
+        return "http://" + PROXY_HOST + ":" + mPort + "/?t=" + mToken + "&url=" + Uri.encode(url);
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private boolean isAuthorized(Request request) {
+        return request.token != null
+                && MessageDigest.isEqual(request.token.getBytes(), mToken.getBytes());
+    }
+
+    public boolean isCached(Uri uri) {
+        return mCache.isComplete(uri.toString());
+    }
+
+    public void setAbrPolicy(AbrPolicy policy) {
+        mAbrPolicy = policy;
+    }
+
+    /** Throughput measured on HLS segment downloads, shared by all streams. */
+    public ThroughputEstimator getThroughputEstimator() {
+        return mThroughput;
+    }
+
+    /** Registers the playback position of {@code uri}; null removes it. */
+    public void setPlaybackPosition(Uri uri, PlaybackPosition position) {
+        synchronized (mPositions) {
+            if (position != null) {
+                mPositions.put(uri.toString(), position);
+            } else {
+                mPositions.remove(uri.toString());
+            }
+        }
+    }
+
+    /** Bandwidth of the HLS variant last picked for {@code uri}, or -1. */
+    public long getSelectedBandwidth(Uri uri) {
+        HlsSession session;
+        synchronized (mHlsSessions) {
+            session = mHlsSessions.get(uri.toString());
+        }
+        return session != null ? session.getSelectedBandwidth() : -1;
+    }
+
+    /**
+     * Fetches bytes {@code start} to {@code start + length} of {@code uri}
+     * into the cache ahead of a seek there, skipping what is already cached.
+     * One prefetch runs at a time: a new range replaces the previous one,
+     * which stops at its next read, unless that one already covers it.
+     */
+    public void prefetch(Uri uri, final long start, long length) {
+        if (uri == null || !isRemote(uri) || length <= 0) {
+            return;
+        }
+        final String url = uri.toString();
+        final long end = start + length;
+        final int generation;
+        synchronized (mPrefetchLock) {
+            if (url.equals(mPrefetchUrl) && start >= mPrefetchStart && end <= mPrefetchEnd) {
+                return;
+            }
+            mPrefetchUrl = url;
+            mPrefetchStart = start;
+            mPrefetchEnd = end;
+            generation = ++mPrefetchGeneration;
+            if (mPrefetchExecutor == null) {
+                mPrefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MatrixVideoProxy-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            mPrefetchExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        download(url, start, end, new DownloadControl() {
+                            public boolean proceed(int bytes) {
+                                return isCurrentPrefetch(generation);
+                            }
+                        });
+                    } catch (IOException e) {
+                        Log.d(TAG, "prefetch stopped: " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /** Stops the running prefetch if it is for {@code uri}. */
+    public void cancelPrefetch(Uri uri) {
+        synchronized (mPrefetchLock) {
+            if (uri != null && uri.toString().equals(mPrefetchUrl)) {
+                mPrefetchUrl = null;
+                mPrefetchGeneration++;
+            }
+        }
+    }
+
+    /**
+     * Maps an offset in the stream the proxy serves for {@code uri} back to
+     * the original file, which differs when its moov was moved to the front.
+     * Returns -1 while the proxy has no layout for {@code uri} at hand.
+     */
+    long toSourceOffset(Uri uri, long offset) {
+        FastStartLayout layout;
+        synchronized (mLayouts) {
+            String url = uri.toString();
+            if (!mLayouts.containsKey(url)) {
+                return -1;
+            }
+            layout = mLayouts.get(url);
+        }
+        if (layout == null) {
+            return offset;
+        }
+        long original = layout.toOriginal(offset, new long[1]);
+        return original >= 0 ? original : layout.moovOffset + offset - layout.mdatOffset;
+    }
+
+    private boolean isCurrentPrefetch(int generation) {
+        synchronized (mPrefetchLock) {
+            return generation == mPrefetchGeneration;
+        }
+    }
+
+    /**
+     * Copies bytes {@code start} to {@code end} of {@code url} into the cache
+     * on the calling thread, skipping what is already cached. {@code control}
+     * is asked before the first request and after every chunk read from the
+     * origin; it may block to pace the download and returns false to stop it.
+     * Returns the number of bytes fetched from the origin.
+     */
+    long download(String url, long start, long end, DownloadControl control) throws IOException {
+        long position = start;
+        long fetched = 0;
+        long total = mCache.totalLength(url);
+        byte[] buffer = null;
+        while (control.proceed(0)) {
+            if (total > 0) {
+                end = Math.min(end, total);
+            }
+            if (position >= end) {
+                break;
+            }
+            long cached = mCache.contiguousLength(url, position);
+            if (cached > 0) {
+                position += cached;
+                continue;
+            }
+            long next = mCache.nextCachedOffset(url, position);
+            long segmentEnd = next > 0 && next < end ? next : end;
+            HttpURLConnection origin = openOrigin(url, position, segmentEnd - 1);
+            try {
+                if (total <= 0) {
+                    total = totalLengthOf(origin, position);
+                    if (total > 0) {
+                        mCache.setTotalLength(url, total);
+                    }
+                }
+                if (buffer == null) {
+                    buffer = new byte[BUFFER_SIZE];
+                }
+                long reached = fill(origin.getInputStream(), buffer, url, position, segmentEnd, control);
+                fetched += reached - position;
+                if (reached < segmentEnd) {
+                    break;
+                }
+                position = reached;
+            } finally {
+                origin.disconnect();
+            }
+        }
+        return fetched;
+    }
+
+    /** Copies origin bytes up to {@code end} into the cache; returns the position reached. */
+    private long fill(InputStream in, byte[] bytes, String url, long position, long end, DownloadControl control)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            int n;
+            while (position < end && (n = in.read(bytes, 0, (int) Math.min(bytes.length, end - position))) != -1) {
+                buffer.clear();
+                buffer.limit(n);
+                if (mCache.write(url, position, buffer) < 0) {
+                    break;
+                }
+                position += n;
+                if (!control.proceed(n)) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return position;
+    }
+
+    /**
+     * Stops the proxy and closes its cache. The instance cannot be restarted;
+     * {@link #getInstance} opens a new one afterwards.
+     */
+    public synchronized void shutdown() {
+        synchronized (VideoCacheProxy.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        synchronized (mPrefetchLock) {
+            mPrefetchUrl = null;
+            mPrefetchGeneration++;
+            if (mPrefetchExecutor != null) {
+                mPrefetchExecutor.shutdownNow();
+                mPrefetchExecutor = null;
+            }
+        }
+        if (mServer != null) {
+            try {
+                mServer.close();
+            } catch (IOException ignored) {
+            }
+            mServer = null;
+            mAcceptThread.interrupt();
+            mAcceptThread = null;
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mCache.close();
+    }
+
+    static boolean isRemote(Uri uri) {
+        String scheme = uri.getScheme();
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    private synchronized boolean ensureStarted() {
+        if (mServer != null) {
+            return true;
+        }
+        if (mClosed) {
+            return false;
+        }
+        try {
+            mServer = ServerSocketChannel.open();
+            mServer.socket().bind(new InetSocketAddress(InetAddress.getByName(PROXY_HOST), 0));
+            mPort = mServer.socket().getLocalPort();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to start proxy", e);
+            mServer = null;
+            return false;
+        }
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MatrixVideoProxy-client");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final ServerSocketChannel server = mServer;
+        final ExecutorService executor = mExecutor;
+        mAcceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop(server, executor);
+            }
+        }, "MatrixVideoProxy-accept");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+        return true;
+    }
+
+    private void acceptLoop(ServerSocketChannel server, ExecutorService executor) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                final SocketChannel client = server.accept();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (IOException e) {
+                if (server.isOpen()) {
+                    Log.w(TAG, "accept failed", e);
+                }
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try {
+            Request request = Request.read(client.socket().getInputStream());
+            if (request != null && !isAuthorized(request)) {
+                writeStatus(client, "403 Forbidden");
+                return;
+            }
+            if (request == null || request.url == null || !isRemote(Uri.parse(request.url))) {
+                writeStatus(client, "400 Bad Request");
+                return;
+            }
+            respond(client, request);
+        } catch (IOException e) {
+            Log.d(TAG, "client closed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // A malformed playlist or origin reply must not take the app down
+            // with this thread.
+            Log.w(TAG, "Unable to serve request", e);
+            try {
+                writeStatus(client, "502 Bad Gateway");
+            } catch (IOException ignored) {
+            }
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void respond(SocketChannel client, Request request) throws IOException {
+        String url = request.url;
+        if (request.hls != null) {
+            respondHls(client, request);
+            return;
+        }
+        if (request.suffixLength >= 0 && !resolveSuffix(request)) {
+            writeStatus(client, "416 Range Not Satisfiable");
+            return;
+        }
+        long start = request.rangeStart;
+        if (start == 0 && HLS_MIME.equals(mimeFor(url))) {
+            respondPlaylist(client, url);
+            return;
+        }
+        if (start == 0) {
+            mCache.touch(url);
+        }
+        FastStartLayout layout = layoutFor(url, start);
+        if (layout != null) {
+            respondFastStart(client, request, layout);
+            return;
+        }
+        long total = mCache.totalLength(url);
+        HttpURLConnection origin = null;
+        if (total <= 0) {
+            origin = openOrigin(url, start, request.rangeEnd);
+            total = totalLengthOf(origin, start);
+            if (total > 0) {
+                mCache.setTotalLength(url, total);
+            }
+        }
+        long end = request.rangeEnd >= 0 && (total < 0 || request.rangeEnd < total)
+                ? request.rangeEnd : total - 1;
+        try {
+            writeHeaders(client, request.hasRange, start, end, total, mimeFor(url));
+            if (origin != null) {
+                pipe(origin.getInputStream(), client, request, start, end);
+                return;
+            }
+        } finally {
+            if (origin != null) {
+                origin.disconnect();
+            }
+        }
+        sendRange(client, request, start, end);
+    }
+
+    /**
+     * Playlists are not cached: the master becomes a single variant served by
+     * the proxy, and a media playlist is passed on with proxied segments.
+     */
+    private void respondPlaylist(SocketChannel client, String url) throws IOException {
+        String text = fetchText(url);
+        if (!HlsPlaylist.isMaster(text)) {
+            writeText(client, HlsSession.render(HlsPlaylist.parseMedia(text, url), mapperFor(url), false));
+        } else if (HlsPlaylist.hasRenditions(text)) {
+            // Dropping the renditions would lose their audio, so the player is left to choose.
+            writeText(client, HlsPlaylist.absolutize(text, url));
+        } else {
+            HlsSession session = openSession(url, text);
+            writeText(client, session.masterPlaylist(localUrl(url) + "&hls=media"));
+        }
+    }
+
+    private void respondHls(SocketChannel client, Request request) throws IOException {
+        String master = request.url;
+        HlsSession session;
+        synchronized (mHlsSessions) {
+            session = mHlsSessions.get(master);
+        }
+        if (session == null) {
+            session = openSession(master, fetchText(master));
+        }
+        HlsSession.UrlMapper mapper = mapperFor(master);
+        if ("media".equals(request.hls)) {
+            if (session.isSwitchable()) {
+                writeText(client, session.mediaPlaylist(mapper));
+            } else {
+                String variant = session.pinnedVariant(mAbrPolicy, mThroughput.getEstimate());
+                HlsPlaylist.Media media = session.pinnedMedia();
+                if (!media.endList) {
+                    // Fetched every time, so a live playlist stays current.
+                    media = HlsPlaylist.parseMedia(fetchText(variant), variant);
+                }
+                writeText(client, HlsSession.render(media, mapper, false));
+            }
+            return;
+        }
+        String url = session.isSwitchable()
+                ? session.selectSegment(request.segment, positionOf(master), mAbrPolicy, mThroughput.getEstimate())
+                : null;
+        if (url == null) {
+            writeStatus(client, "404 Not Found");
+            return;
+        }
+        // Only bytes read from the origin are timed: cached ones and the time
+        // the player takes to consume them say nothing about the network.
+        Request segment = request.forUrl(url);
+        respond(client, segment);
+        if (segment.networkBytes > 0) {
+            mThroughput.addSample(segment.networkBytes, segment.networkNanos / 1000000L);
+        }
+    }
+
+    private HlsSession openSession(String url, String text) throws IOException {
+        List<HlsPlaylist.Variant> variants = HlsPlaylist.parseMaster(text, url);
+        if (variants.isEmpty()) {
+            throw new IOException("No variants in " + url);
+        }
+        HlsPlaylist.Media[] media = fetchMedia(variants);
+        HlsSession session = new HlsSession(variants, media, text.contains(HlsSession.INDEPENDENT_SEGMENTS));
+        synchronized (mHlsSessions) {
+            mHlsSessions.put(url, session);
+        }
+        return session;
+    }
+
+    // The variants are fetched together, so the master waits for the slowest
+    // of them rather than for all of them in turn.
+    private HlsPlaylist.Media[] fetchMedia(List<HlsPlaylist.Variant> variants) throws IOException {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = mExecutor;
+        }
+        if (executor == null) {
+            throw new IOException("Proxy is shut down");
+        }
+        List<Future<String>> texts = new ArrayList<Future<String>>();
+        try {
+            for (final HlsPlaylist.Variant variant : variants) {
+                texts.add(executor.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        return fetchText(variant.uri);
+                    }
+                }));
+            }
+            HlsPlaylist.Media[] media = new HlsPlaylist.Media[variants.size()];
+            for (int i = 0; i < media.length; i++) {
+                String variant = variants.get(i).uri;
+                media[i] = HlsPlaylist.parseMedia(texts.get(i).get(), variant);
+            }
+            return media;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<String> text : texts) {
+                text.cancel(true);
+            }
+        }
+    }
+
+    private HlsSession.UrlMapper mapperFor(final String master) {
+        return new HlsSession.UrlMapper() {
+            public String segmentUrl(int index) {
+                return localUrl(master) + "&hls=seg&n=" + index;
+            }
+
+            public String proxied(String url) {
+                return localUrl(url);
+            }
+        };
+    }
+
+    private long positionOf(String url) {
+        PlaybackPosition position;
+        synchronized (mPositions) {
+            position = mPositions.get(url);
+        }
+        return position != null ? position.getCurrentPosition() : -1;
+    }
+
+    private String fetchText(String url) throws IOException {
+        HttpURLConnection origin = openOrigin(url, 0, -1);
+        try {
+            InputStream in = origin.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    if (out.size() > MAX_PLAYLIST_SIZE) {
+                        throw new IOException("Playlist too large: " + url);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return out.toString("UTF-8");
+        } finally {
+            origin.disconnect();
+        }
+    }
+
+    private static void writeText(SocketChannel client, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes("UTF-8"));
+        writeHeaders(client, false, 0, buffer.remaining() - 1, buffer.remaining(), HLS_MIME);
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    /**
+     * Returns the fast-start layout of {@code url}, probing for one when an
+     * MP4 has not been looked at yet. A layout dropped from the cache while
+     * the player is still reading is probed again whatever range it asks
+     * for, so later ranges are not served in the original order.
+     */
+    private FastStartLayout layoutFor(final String url, long start) {
+        synchronized (mLayouts) {
+            if (mLayouts.containsKey(url)) {
+                return mLayouts.get(url);
+            }
+        }
+        if (!"video/mp4".equals(mimeFor(url))) {
+            return null;
+        }
+        // Mid-stream the media data head was fetched the first time round.
+        FastStartLayout.OnMediaDataListener listener = start != 0 ? null : new FastStartLayout.OnMediaDataListener() {
+            public void onMediaData(long offset, long size) {
+                prefetch(Uri.parse(url), offset, Math.min(size, FAST_START_HEAD));
+            }
+        };
+        FastStartLayout layout = null;
+        try {
+            layout = FastStartLayout.probe(new CacheSource(url), listener);
+        } catch (IOException e) {
+            Log.d(TAG, "fast-start probe failed: " + e.getMessage());
+        }
+        synchronized (mLayouts) {
+            mLayouts.put(url, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * Serves {@code url} in the order given by {@code layout}: the relocated
+     * moov from memory and every other range from the cache or the origin.
+     */
+    private void respondFastStart(SocketChannel client, Request request, FastStartLayout layout)
+            throws IOException {
+        long start = request.rangeStart;
+        long end = request.rangeEnd >= 0 && request.rangeEnd < layout.total
+                ? request.rangeEnd : layout.total - 1;
+        writeHeaders(client, request.hasRange, start, end, layout.total, mimeFor(request.url));
+        long[] segmentEnd = new long[1];
+        long position = start;
+        while (position <= end) {
+            long original = layout.toOriginal(position, segmentEnd);
+            long last = Math.min(segmentEnd[0] - 1, end);
+            if (original < 0) {
+                ByteBuffer moov = ByteBuffer.wrap(layout.moov, (int) (position - layout.mdatOffset),
+                        (int) (last + 1 - position));
+                while (moov.hasRemaining()) {
+                    client.write(moov);
+                }
+            } else if (!sendRange(client, request, original, original + last - position)) {
+                return;
+            }
+            position = last + 1;
+        }
+    }
+
+    /**
+     * Sends bytes {@code start} to {@code end} of {@code url}, from the cache
+     * where it has them and from the origin in between. Returns false if the
+     * origin ran out early.
+     */
+    private boolean sendRange(SocketChannel client, Request request, long start, long end) throws IOException {
+        String url = request.url;
+        long position = start;
+        while (position <= end) {
+            long sent = mCache.transferTo(url, position, end + 1 - position, client);
+            if (sent > 0) {
+                position += sent;
+                continue;
+            }
+            long next = mCache.nextCachedOffset(url, position);
+            long segmentEnd = next > 0 && next - 1 < end ? next - 1 : end;
+            HttpURLConnection origin = openOrigin(url, position, segmentEnd);
+            long reached;
+            try {
+                reached = pipe(origin.getInputStream(), client, request, position, segmentEnd);
+            } finally {
+                origin.disconnect();
+            }
+            if (reached == position) {
+                return false;
+            }
+            position = reached;
+        }
+        return true;
+    }
+
+    /**
+     * Streams origin bytes to the player, storing them in the cache on the way.
+     * Returns the position after the last byte sent. Only the reads from the
+     * origin count toward {@code request}'s network time, not the writes that
+     * wait for the player.
+     */
+    private long pipe(InputStream in, SocketChannel client, Request request, long position, long end)
+            throws IOException {
+        String url = request.url;
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        boolean caching = true;
+        try {
+            int n;
+            long readStarted = System.nanoTime();
+            while ((n = in.read(bytes)) != -1) {
+                request.networkNanos += System.nanoTime() - readStarted;
+                if (end >= 0 && position + n > end + 1) {
+                    n = (int) (end + 1 - position);
+                }
+                request.networkBytes += n;
+                if (caching) {
+                    buffer.clear();
+                    buffer.limit(n);
+                    caching = mCache.write(url, position, buffer) >= 0;
+                }
+                buffer.clear();
+                buffer.limit(n);
+                while (buffer.hasRemaining()) {
+                    client.write(buffer);
+                }
+                position += n;
+                if (end >= 0 && position > end) {
+                    break;
+                }
+                readStarted = System.nanoTime();
+            }
+        } finally {
+            in.close();
+        }
+        return position;
+    }
+
+    private HttpURLConnection openOrigin(String url, long start, long end) throws IOException {
+        URL origin = new URL(url);
+        if (!"http".equalsIgnoreCase(origin.getProtocol()) && !"https".equalsIgnoreCase(origin.getProtocol())) {
+            throw new IOException("Not an http(s) URL: " + url);
+        }
+        HttpURLConnection connection = (HttpURLConnection) origin.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setInstanceFollowRedirects(true);
+        if (start > 0 || end >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? end : ""));
+        }
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("Origin returned " + code + " for " + url);
+        }
+        if (start > 0 && code == HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Origin ignored range request for " + url);
+        }
+        return connection;
+    }
+
+    /** Turns a "bytes=-N" request into the last N bytes; false if the length cannot be known. */
+    private boolean resolveSuffix(Request request) throws IOException {
+        long total = mCache.totalLength(request.url);
+        if (total <= 0) {
+            HttpURLConnection origin = openOrigin(request.url, 0, 0);
+            try {
+                total = totalLengthOf(origin, 0);
+            } finally {
+                origin.disconnect();
+            }
+            if (total <= 0) {
+                return false;
+            }
+            mCache.setTotalLength(request.url, total);
+        }
+        if (request.suffixLength == 0) {
+            return false;
+        }
+        request.rangeStart = Math.max(0, total - request.suffixLength);
+        request.rangeEnd = total - 1;
+        request.suffixLength = -1;
+        return true;
+    }
+
+    private static long totalLengthOf(HttpURLConnection connection, long start) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength != null) {
+            try {
+                return start + Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    private static void writeHeaders(SocketChannel client, boolean partial, long start, long end,
+                                     long total, String mime) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("Content-Type: ").append(mime).append("\r\n");
+        if (end >= start) {
+            sb.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        }
+        if (partial && total > 0) {
+            sb.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(total).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        writeAscii(client, sb.toString());
+    }
+
+    private static void writeStatus(SocketChannel client, String status) throws IOException {
+        writeAscii(client, "HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+    }
+
+    private static void writeAscii(SocketChannel client, String s) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(s.getBytes("US-ASCII"));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    static String mimeFor(String url) {
+        String path = url.toLowerCase(Locale.US);
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        if (path.endsWith(".m3u8")) {
+            return HLS_MIME;
+        } else if (path.endsWith(".ts")) {
+            return "video/mp2t";
+        } else if (path.endsWith(".webm")) {
+            return "video/webm";
+        } else if (path.endsWith(".3gp")) {
+            return "video/3gpp";
+        }
+        return "video/mp4";
+    }
+
+    /** Reads a remote file through the cache, filling it from the origin as needed. */
+    private class CacheSource implements ByteSource {
+        private final String mUrl;
+
+        CacheSource(String url) {
+            mUrl = url;
+        }
+
+        public long length() {
+            return mCache.totalLength(mUrl);
+        }
+
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            int cached = mCache.read(mUrl, position, ByteBuffer.wrap(buffer, offset, length));
+            if (cached > 0) {
+                return cached;
+            }
+            long total = mCache.totalLength(mUrl);
+            if (total > 0 && position >= total) {
+                return -1;
+            }
+            long end = position + Math.max(length, BUFFER_SIZE);
+            if (total > 0) {
+                end = Math.min(end, total);
+            }
+            HttpURLConnection origin = openOrigin(mUrl, position, end - 1);
+            try {
+                if (total <= 0) {
+                    total = totalLengthOf(origin, position);
+                    if (total > 0) {
+                        mCache.setTotalLength(mUrl, total);
+                    }
+                }
+                InputStream in = origin.getInputStream();
+                byte[] bytes = new byte[BUFFER_SIZE];
+                ByteBuffer chunk = ByteBuffer.wrap(bytes);
+                long at = position;
+                int copied = 0;
+                try {
+                    int n;
+                    while (at < end && (n = in.read(bytes, 0, (int) Math.min(bytes.length, end - at))) != -1) {
+                        chunk.clear();
+                        chunk.limit(n);
+                        mCache.write(mUrl, at, chunk);
+                        if (copied < length) {
+                            int count = Math.min(n, length - copied);
+                            System.arraycopy(bytes, 0, buffer, offset + copied, count);
+                            copied += count;
+                        }
+                        at += n;
+                    }
+                } finally {
+                    in.close();
+                }
+                return copied > 0 ? copied : -1;
+            } finally {
+                origin.disconnect();
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    /** Paces and stops a {@link #download}. */
+    interface DownloadControl {
+        /**
+         * Called with the number of bytes just fetched, or 0 before a request.
+         * Returns false to stop the download.
+         */
+        boolean proceed(int bytes);
+    }
+
+    static class Request {
+        String token;
+        String url;
+        /** "media" or "seg" for the playlist and segments of an HLS session. */
+        String hls;
+        int segment = -1;
+        boolean hasRange;
+        long rangeStart;
+        long rangeEnd = -1;
+        /** N of a "bytes=-N" suffix range until the length is known, otherwise -1. */
+        long suffixLength = -1;
+        /** Bytes read from the origin while answering, and the time spent reading them. */
+        long networkBytes;
+        long networkNanos;
+
+        static Request read(InputStream in) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            Request request = new Request();
+            String[] parts = line.split(" ");
+            int query = parts.length >= 2 ? parts[1].indexOf('?') : -1;
+            if (query >= 0) {
+                for (String param : parts[1].substring(query + 1).split("&")) {
+                    int eq = param.indexOf('=');
+                    if (eq < 0) {
+                        continue;
+                    }
+                    String name = param.substring(0, eq);
+                    String value;
+                    try {
+                        value = URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                    if ("t".equals(name)) {
+                        request.token = value;
+                    } else if ("url".equals(name)) {
+                        request.url = value;
+                    } else if ("hls".equals(name)) {
+                        request.hls = value;
+                    } else if ("n".equals(name)) {
+                        try {
+                            request.segment = Integer.parseInt(value);
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                }
+            }
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase(Locale.US).startsWith("range:")) {
+                    request.parseRange(line.substring(6).trim());
+                }
+            }
+            return request;
+        }
+
+        Request forUrl(String url) {
+            Request request = new Request();
+            request.url = url;
+            request.hasRange = hasRange;
+            request.rangeStart = rangeStart;
+            request.rangeEnd = rangeEnd;
+            request.suffixLength = suffixLength;
+            return request;
+        }
+
+        private void parseRange(String value) {
+            if (!value.startsWith("bytes=")) {
+                return;
+            }
+            String spec = value.substring(6);
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return;
+            }
+            try {
+                String from = spec.substring(0, dash).trim();
+                String to = spec.substring(dash + 1).trim();
+                if (from.length() == 0) {
+                    suffixLength = Long.parseLong(to);
+                } else {
+                    rangeStart = Long.parseLong(from);
+                    rangeEnd = to.length() > 0 ? Long.parseLong(to) : -1;
+                }
+                hasRange = true;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+}
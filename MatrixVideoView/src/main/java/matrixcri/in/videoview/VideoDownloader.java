@@ -0,0 +1,739 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Downloads videos for offline playback. A file is split into fixed-size
+ * byte ranges that are fetched over several connections from one bounded
+ * worker pool shared by all downloads, and written in place with positioned
+ * {@link FileChannel} writes. Progress per range is saved next to the data,
+ * so a download interrupted by a killed process continues where it stopped
+ * after {@link #resumeAll()} or another {@link #start}.
+ *
+ * <p>A finished download is checked against the length the server reported
+ * and, when one was given, a SHA-256 digest, before it is moved to its final
+ * name. {@link MatrixVideoView} plays it from there when given this
+ * downloader with {@code setDownloader}.</p>
+ */
+public class VideoDownloader {
+    private static final String TAG = "VideoDownloader";
+    private static final String DOWNLOAD_DIR = "matrix_video_downloads";
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".state";
+    private static final int STATE_MAGIC = 0x4d564446;
+    private static final int STATE_VERSION = 1;
+    private static final int CHUNK_SIZE = 2 * 1024 * 1024;
+    /** 2 TiB in ranges; a saved state with more is corrupt. */
+    private static final int MAX_CHUNKS = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long SAVE_INTERVAL = 1024 * 1024;
+    private static final int MAX_RETRIES = 3;
+    private static final int DEFAULT_CONNECTIONS = 3;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+
+    public static final int STATE_NONE = 0;
+    public static final int STATE_DOWNLOADING = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_COMPLETE = 3;
+    public static final int STATE_FAILED = 4;
+
+    private static VideoDownloader sInstance;
+
+    private final File mDir;
+    private final ExecutorService mWorkers;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Task> mTasks = new HashMap<String, Task>();
+    private final Map<String, Integer> mFinished = new HashMap<String, Integer>();
+    private volatile Listener mListener;
+
+    public static synchronized VideoDownloader getInstance(Context context) {
+        if (sInstance == null) {
+            File root = context.getApplicationContext().getFilesDir();
+            sInstance = new VideoDownloader(new File(root, DOWNLOAD_DIR), DEFAULT_CONNECTIONS);
+        }
+        return sInstance;
+    }
+
+    /** {@code connections} is the number of ranges fetched at once over all downloads. */
+    public VideoDownloader(File dir, int connections) {
+        mDir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + dir);
+        }
+        mWorkers = Executors.newFixedThreadPool(Math.max(1, connections), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MatrixVideoDownload");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Callbacks arrive on the UI thread. */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void start(Uri uri) {
+        start(uri, null);
+    }
+
+    /**
+     * Starts or continues downloading {@code uri}, which has to be http or
+     * https. If {@code sha256} is not null the finished file must have that
+     * digest (hex), or it is discarded.
+     */
+    public void start(Uri uri, String sha256) {
+        if (uri == null || !VideoCacheProxy.isRemote(uri)) {
+            throw new IllegalArgumentException("Not an http(s) URI: " + uri);
+        }
+        String url = uri.toString();
+        final Task task;
+        synchronized (mTasks) {
+            if (mTasks.containsKey(url) || finalFile(url).exists()) {
+                return;
+            }
+            task = new Task(uri, sha256);
+            mTasks.put(url, task);
+            mFinished.remove(url);
+        }
+        mWorkers.execute(new Runnable() {
+            public void run() {
+                task.begin();
+            }
+        });
+    }
+
+    /** Continues every download that was left unfinished, e.g. by a killed process. */
+    public void resumeAll() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(STATE_SUFFIX)) {
+                continue;
+            }
+            try {
+                State state = State.read(file);
+                start(Uri.parse(state.url), state.sha256);
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping unreadable " + file, e);
+                file.delete();
+            }
+        }
+    }
+
+    /** Stops downloading {@code uri} after the ranges in flight; the progress is kept. */
+    public void pause(Uri uri) {
+        Task task;
+        synchronized (mTasks) {
+            task = mTasks.get(uri.toString());
+        }
+        if (task != null) {
+            task.stop();
+        }
+    }
+
+    /** Stops downloading {@code uri} and deletes whatever was downloaded of it. */
+    public void remove(Uri uri) {
+        String url = uri.toString();
+        Task task;
+        synchronized (mTasks) {
+            task = mTasks.get(url);
+            mFinished.remove(url);
+        }
+        if (task != null) {
+            task.discard();
+        } else {
+            deleteFiles(url);
+        }
+    }
+
+    public int getState(Uri uri) {
+        String url = uri.toString();
+        synchronized (mTasks) {
+            if (mTasks.containsKey(url)) {
+                return STATE_DOWNLOADING;
+            }
+            Integer finished = mFinished.get(url);
+            if (finished != null) {
+                return finished;
+            }
+        }
+        if (finalFile(url).exists()) {
+            return STATE_COMPLETE;
+        }
+        return stateFile(url).exists() ? STATE_PAUSED : STATE_NONE;
+    }
+
+    /** The downloaded file of {@code uri} as a {@code file://} URI, or null until it is complete. */
+    public Uri getLocalUri(Uri uri) {
+        if (uri == null || !VideoCacheProxy.isRemote(uri)) {
+            return null;
+        }
+        File file = finalFile(uri.toString());
+        return file.exists() ? Uri.fromFile(file) : null;
+    }
+
+    private File finalFile(String url) {
+        String path = Uri.parse(url).getLastPathSegment();
+        String extension = "";
+        if (path != null) {
+            int dot = path.lastIndexOf('.');
+            if (dot >= 0 && path.length() - dot <= 6) {
+                extension = path.substring(dot).toLowerCase(Locale.US);
+            }
+        }
+        return new File(mDir, key(url) + extension);
+    }
+
+    private File partFile(String url) {
+        return new File(mDir, key(url) + PART_SUFFIX);
+    }
+
+    private File stateFile(String url) {
+        return new File(mDir, key(url) + STATE_SUFFIX);
+    }
+
+    private void deleteFiles(String url) {
+        partFile(url).delete();
+        stateFile(url).delete();
+        finalFile(url).delete();
+    }
+
+    private static String key(String url) {
+        try {
+            return hex(MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private void finished(final Task task, final int state, final IOException error) {
+        synchronized (mTasks) {
+            mTasks.remove(task.mUrl);
+            if (state != STATE_NONE) {
+                mFinished.put(task.mUrl, state);
+            }
+        }
+        final Listener listener = mListener;
+        if (listener == null || state == STATE_NONE || state == STATE_PAUSED) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                if (state == STATE_COMPLETE) {
+                    listener.onComplete(task.mUri, Uri.fromFile(finalFile(task.mUrl)));
+                } else {
+                    listener.onError(task.mUri, error);
+                }
+            }
+        });
+    }
+
+    private void progress(final Task task, final long downloaded, final long total) {
+        final Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                listener.onProgress(task.mUri, downloaded, total);
+            }
+        });
+    }
+
+    /** One download: its ranges, their progress and the open data file. */
+    private class Task {
+        final Uri mUri;
+        final String mUrl;
+        private State mState;
+        private FileChannel mChannel;
+        private int mRunning;
+        private long mDownloaded;
+        private long mSavedAt;
+        private boolean mStopped;
+        private boolean mDiscard;
+        private IOException mFailure;
+
+        Task(Uri uri, String sha256) {
+            mUri = uri;
+            mUrl = uri.toString();
+            mState = new State();
+            mState.url = mUrl;
+            mState.sha256 = sha256;
+        }
+
+        // Loads the saved progress or asks the server for the length, then
+        // queues one job per unfinished range.
+        void begin() {
+            try {
+                File stateFile = stateFile(mUrl);
+                if (stateFile.exists() && partFile(mUrl).exists()) {
+                    State saved = State.read(stateFile);
+                    if (saved.url.equals(mUrl)) {
+                        if (mState.sha256 != null) {
+                            saved.sha256 = mState.sha256;
+                        }
+                        mState = saved;
+                    }
+                }
+                if (mState.total <= 0) {
+                    probe();
+                }
+                RandomAccessFile file = new RandomAccessFile(partFile(mUrl), "rw");
+                if (file.length() != mState.total) {
+                    file.setLength(mState.total);
+                }
+                synchronized (this) {
+                    mChannel = file.getChannel();
+                    for (long done : mState.done) {
+                        mDownloaded += done;
+                    }
+                    mSavedAt = mDownloaded;
+                    save();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    mFailure = e;
+                }
+                end();
+                return;
+            }
+            int chunks = mState.done.length;
+            synchronized (this) {
+                mRunning = chunks;
+            }
+            for (int i = 0; i < chunks; i++) {
+                final int chunk = i;
+                mWorkers.execute(new Runnable() {
+                    public void run() {
+                        runChunk(chunk);
+                    }
+                });
+            }
+        }
+
+        private void probe() throws IOException {
+            HttpURLConnection connection = openRange(0, 0);
+            try {
+                boolean ranges = connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+                String contentRange = connection.getHeaderField("Content-Range");
+                long total = ranges && contentRange != null
+                        ? parseTotal(contentRange.substring(contentRange.lastIndexOf('/') + 1))
+                        : parseTotal(connection.getHeaderField("Content-Length"));
+                if (total <= 0) {
+                    throw new IOException("Unknown length for " + mUrl);
+                }
+                mState.total = total;
+                // If-Range only takes a strong ETag; servers answer a weak one
+                // with the whole file, so the modification date is used instead.
+                String etag = connection.getHeaderField("ETag");
+                mState.validator = isStrong(etag) ? etag : connection.getHeaderField("Last-Modified");
+                // Without range support the whole file is one range that
+                // always starts over.
+                mState.chunkSize = ranges ? CHUNK_SIZE : total;
+                mState.ranges = ranges;
+                mState.done = new long[(int) ((total + mState.chunkSize - 1) / mState.chunkSize)];
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private void runChunk(int chunk) {
+            IOException error = null;
+            for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+                try {
+                    fetchChunk(chunk);
+                    error = null;
+                    break;
+                } catch (IOException e) {
+                    error = e;
+                    Log.d(TAG, "range " + chunk + " of " + mUrl + " failed: " + e.getMessage());
+                    if (isStopped() || isDiscarded()) {
+                        break;
+                    }
+                }
+            }
+            synchronized (this) {
+                if (error != null && mFailure == null && !mStopped) {
+                    mFailure = error;
+                    mStopped = true;
+                }
+                if (--mRunning > 0) {
+                    return;
+                }
+            }
+            end();
+        }
+
+        private void fetchChunk(int chunk) throws IOException {
+            long chunkStart = chunk * mState.chunkSize;
+            long end = Math.min(mState.total, chunkStart + mState.chunkSize);
+            long position;
+            synchronized (this) {
+                if (!mState.ranges) {
+                    mDownloaded -= mState.done[chunk];
+                    mState.done[chunk] = 0;
+                }
+                position = chunkStart + mState.done[chunk];
+            }
+            if (position >= end || isStopped()) {
+                return;
+            }
+            HttpURLConnection connection = mState.ranges ? openRange(position, end - 1) : openRange(-1, -1);
+            try {
+                if (mState.ranges) {
+                    checkRange(connection, position, end);
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    byte[] bytes = new byte[BUFFER_SIZE];
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    int n;
+                    while (position < end && (n = in.read(bytes, 0, (int) Math.min(bytes.length, end - position))) != -1) {
+                        buffer.clear();
+                        buffer.limit(n);
+                        long at = position;
+                        while (buffer.hasRemaining()) {
+                            at += mChannel.write(buffer, at);
+                        }
+                        position += n;
+                        if (!advance(chunk, n)) {
+                            return;
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+            if (position < end) {
+                throw new IOException("Range " + chunk + " ended at " + position + " of " + end);
+            }
+        }
+
+        // With a validator the range is only served if the file is unchanged;
+        // a 200 instead of a 206 means it was replaced and the progress is void.
+        private void checkRange(HttpURLConnection connection, long start, long end) throws IOException {
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                synchronized (this) {
+                    mDiscard = true;
+                }
+                throw new IOException(mUrl + " changed on the server");
+            }
+            String contentRange = connection.getHeaderField("Content-Range");
+            String expected = "bytes " + start + "-" + (end - 1) + "/" + mState.total;
+            if (contentRange == null || !contentRange.trim().equals(expected)) {
+                throw new IOException("Expected " + expected + " but got " + contentRange);
+            }
+        }
+
+        // Records written bytes and saves progress now and then; false once stopped.
+        private boolean advance(int chunk, int bytes) throws IOException {
+            boolean report = false;
+            long downloaded;
+            synchronized (this) {
+                mState.done[chunk] += bytes;
+                mDownloaded += bytes;
+                downloaded = mDownloaded;
+                if (mDownloaded - mSavedAt >= SAVE_INTERVAL) {
+                    save();
+                    report = true;
+                }
+                if (mStopped) {
+                    return false;
+                }
+            }
+            if (report) {
+                progress(this, downloaded, mState.total);
+            }
+            return true;
+        }
+
+        // The data goes to disk before the progress that claims it.
+        private void save() throws IOException {
+            mChannel.force(false);
+            mState.write(stateFile(mUrl));
+            mSavedAt = mDownloaded;
+        }
+
+        synchronized boolean isStopped() {
+            return mStopped;
+        }
+
+        synchronized boolean isDiscarded() {
+            return mDiscard;
+        }
+
+        synchronized void stop() {
+            mStopped = true;
+        }
+
+        synchronized void discard() {
+            mStopped = true;
+            mDiscard = true;
+        }
+
+        private void end() {
+            int state;
+            IOException error;
+            synchronized (this) {
+                error = mFailure;
+                state = mFailure != null ? STATE_FAILED : mStopped ? STATE_PAUSED : STATE_COMPLETE;
+                try {
+                    if (state == STATE_COMPLETE) {
+                        verify();
+                    } else if (mChannel != null && !mDiscard) {
+                        save();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                    state = STATE_FAILED;
+                    mDiscard = true;
+                }
+                closeChannel();
+            }
+            if (mDiscard) {
+                deleteFiles(mUrl);
+                finished(this, error != null ? STATE_FAILED : STATE_NONE, error);
+                return;
+            }
+            if (state == STATE_COMPLETE) {
+                File part = partFile(mUrl);
+                if (!part.renameTo(finalFile(mUrl))) {
+                    error = new IOException("Unable to move " + part);
+                    state = STATE_FAILED;
+                } else {
+                    stateFile(mUrl).delete();
+                }
+            }
+            finished(this, state, error);
+        }
+
+        private void verify() throws IOException {
+            if (mChannel.size() != mState.total || mDownloaded != mState.total) {
+                throw new IOException("Downloaded " + mDownloaded + " of " + mState.total + " bytes");
+            }
+            if (mState.sha256 == null) {
+                return;
+            }
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 unavailable");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = 0;
+            int n;
+            while ((n = mChannel.read(buffer, position)) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+                position += n;
+            }
+            String actual = hex(digest.digest());
+            if (!actual.equalsIgnoreCase(mState.sha256)) {
+                throw new IOException("SHA-256 mismatch for " + mUrl + ": " + actual);
+            }
+        }
+
+        private void closeChannel() {
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException ignored) {
+                }
+                mChannel = null;
+            }
+        }
+
+        private HttpURLConnection openRange(long start, long end) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setInstanceFollowRedirects(true);
+            if (start >= 0) {
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+                if (isStrong(mState.validator)) {
+                    connection.setRequestProperty("If-Range", mState.validator);
+                }
+            }
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                connection.disconnect();
+                throw new IOException("Server returned " + code + " for " + mUrl);
+            }
+            return connection;
+        }
+    }
+
+    /** False for a weak ETag, which older saved states may hold; a date counts as strong. */
+    private static boolean isStrong(String validator) {
+        return validator != null && !validator.startsWith("W/");
+    }
+
+    private static long parseTotal(String value) {
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /** What is saved of a download between runs. */
+    private static class State {
+        String url;
+        /** Strong ETag or Last-Modified date of the file, sent as If-Range. */
+        String validator;
+        String sha256;
+        boolean ranges;
+        long total;
+        long chunkSize;
+        long[] done;
+
+        static State read(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION) {
+                    throw new IOException("Not a download state: " + file);
+                }
+                State state = new State();
+                state.url = in.readUTF();
+                if (!VideoCacheProxy.isRemote(Uri.parse(state.url))) {
+                    throw new IOException("Corrupt download state: " + file);
+                }
+                state.validator = readOptional(in);
+                state.sha256 = readOptional(in);
+                state.ranges = in.readBoolean();
+                state.total = in.readLong();
+                state.chunkSize = in.readLong();
+                // The layout has to be the one probe() picks before the count
+                // is trusted with an allocation.
+                int chunks = in.readInt();
+                if (state.total <= 0 || state.chunkSize != (state.ranges ? CHUNK_SIZE : state.total)
+                        || chunks != (state.total + state.chunkSize - 1) / state.chunkSize
+                        || chunks > MAX_CHUNKS) {
+                    throw new IOException("Corrupt download state: " + file);
+                }
+                state.done = new long[chunks];
+                for (int i = 0; i < chunks; i++) {
+                    state.done[i] = in.readLong();
+                    if (state.done[i] < 0 || state.done[i] > state.chunkSize) {
+                        throw new IOException("Corrupt download state: " + file);
+                    }
+                }
+                return state;
+            } finally {
+                in.close();
+            }
+        }
+
+        // Written beside the old state and renamed over it, so a crash leaves one or the other.
+        void write(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(fos);
+            try {
+                out.writeInt(STATE_MAGIC);
+                out.writeInt(STATE_VERSION);
+                out.writeUTF(url);
+                writeOptional(out, validator);
+                writeOptional(out, sha256);
+                out.writeBoolean(ranges);
+                out.writeLong(total);
+                out.writeLong(chunkSize);
+                out.writeInt(done.length);
+                for (long d : done) {
+                    out.writeLong(d);
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to save " + file);
+            }
+        }
+
+        private static String readOptional(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        private static void writeOptional(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+    }
+
+    public interface Listener {
+        void onProgress(Uri uri, long downloadedBytes, long totalBytes);
+
+        /** {@code localUri} is the downloaded file; it also plays when {@code uri} is opened. */
+        void onComplete(Uri uri, Uri localUri);
+
+        void onError(Uri uri, IOException error);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AbrPolicyTest {
+    static final long[] BANDWIDTHS = {400000, 1200000, 3000000};
+
+    private final AbrPolicy mPolicy = new AbrPolicy();
+
+    @Test
+    public void firstChoiceUsesShareOfThroughput() {
+        // Half of 5 Mbit/s while the buffer is low, three quarters after.
+        assertEquals(1, mPolicy.select(BANDWIDTHS, -1, 5000000, 0));
+        assertEquals(2, mPolicy.select(BANDWIDTHS, -1, 5000000, 6000));
+    }
+
+    @Test
+    public void lowestVariantWhenNothingFits() {
+        assertEquals(0, mPolicy.select(BANDWIDTHS, -1, 100000, 20000));
+        assertEquals(0, mPolicy.select(BANDWIDTHS, 2, 100000, 0));
+    }
+
+    @Test
+    public void switchesUpOnlyWithEnoughBuffer() {
+        assertEquals(0, mPolicy.select(BANDWIDTHS, 0, 5000000, 9999));
+        assertEquals(2, mPolicy.select(BANDWIDTHS, 0, 5000000, 10000));
+    }
+
+    @Test
+    public void switchesDownOnlyBelowComfortableBuffer() {
+        assertEquals(2, mPolicy.select(BANDWIDTHS, 2, 1000000, 25000));
+        assertEquals(0, mPolicy.select(BANDWIDTHS, 2, 1000000, 24999));
+    }
+
+    @Test
+    public void keepsVariantThatStillFits() {
+        assertEquals(1, mPolicy.select(BANDWIDTHS, 1, 2000000, 6000));
+        assertEquals(1, mPolicy.select(BANDWIDTHS, 1, 2000000, 30000));
+    }
+
+    @Test
+    public void outOfRangeCurrentIsTreatedAsNone() {
+        assertEquals(2, mPolicy.select(BANDWIDTHS, 5, 5000000, 6000));
+    }
+
+    @Test
+    public void honoursConfiguredBuffers() {
+        mPolicy.setSwitchBuffers(2000, 4000);
+        mPolicy.setLowBuffer(0, 0.5f);
+
+        assertEquals(2, mPolicy.select(BANDWIDTHS, 0, 5000000, 2000));
+        assertEquals(2, mPolicy.select(BANDWIDTHS, 2, 1000000, 4000));
+        assertEquals(0, mPolicy.select(BANDWIDTHS, 2, 1000000, 3999));
+    }
+}
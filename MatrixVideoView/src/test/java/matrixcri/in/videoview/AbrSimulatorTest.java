@@ -0,0 +1,144 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AbrSimulatorTest {
+    static final long[] BANDWIDTHS = {400000, 1200000, 3000000};
+    static final long SEGMENT_MS = 4000;
+
+    @Test
+    public void fastNetworkClimbsOnceAndNeverStalls() {
+        AbrSimulator.Result result = run(constant(10000000), 20);
+
+        assertEquals(0, result.variants[0]);
+        assertEquals(2, result.variants[19]);
+        assertEquals(1, result.switches);
+        assertEquals(0, result.stallCount);
+        assertEquals(0, result.stallMs);
+    }
+
+    @Test
+    public void slowNetworkStaysOnLowestVariant() {
+        AbrSimulator.Result result = run(constant(700000), 20);
+
+        for (int variant : result.variants) {
+            assertEquals(0, variant);
+        }
+        assertEquals(0, result.switches);
+        assertEquals(0, result.stallCount);
+        assertEquals(400000, result.averageBitrate);
+    }
+
+    @Test
+    public void bandwidthDropSwitchesDown() {
+        AbrSimulator.Trace trace = new AbrSimulator.Trace(
+                new long[]{60000, 600000}, new long[]{10000000, 600000});
+        AbrSimulator.Result result = run(trace, 40);
+
+        assertTrue(result.switches >= 2);
+        assertEquals(0, result.variants[39]);
+        int highest = 0;
+        for (int variant : result.variants) {
+            highest = Math.max(highest, variant);
+        }
+        assertEquals(2, highest);
+    }
+
+    @Test
+    public void outageStalls() {
+        AbrSimulator.Trace trace = new AbrSimulator.Trace(
+                new long[]{20000, 30000, 600000}, new long[]{2000000, 0, 2000000});
+        AbrSimulator.Result result = run(trace, 20);
+
+        assertEquals(1, result.stallCount);
+        assertTrue(result.stallMs > 0 && result.stallMs < 30000);
+    }
+
+    @Test
+    public void sameInputsGiveSameResult() {
+        AbrSimulator.Trace trace = new AbrSimulator.Trace(
+                new long[]{5000, 3000, 8000}, new long[]{4000000, 500000, 2000000});
+        AbrSimulator.Result first = run(trace, 30);
+        AbrSimulator.Result second = run(trace, 30);
+
+        assertArrayEquals(first.variants, second.variants);
+        assertEquals(first.switches, second.switches);
+        assertEquals(first.stallMs, second.stallMs);
+        assertEquals(first.startupMs, second.startupMs);
+    }
+
+    @Test
+    public void startupIncludesRequestLatency() {
+        AbrSimulator simulator = new AbrSimulator(BANDWIDTHS, SEGMENT_MS, 1);
+        simulator.setRequestLatencyMs(300);
+        AbrSimulator.Result result = simulator.run(constant(1600000), new AbrPolicy(),
+                new ThroughputEstimator(1000000));
+
+        // 200000 bytes of the lowest variant at 1.6 Mbit/s.
+        assertEquals(0, result.variants[0]);
+        assertEquals(1300, result.startupMs);
+    }
+
+    @Test
+    public void transferSpansAndWrapsPeriods() {
+        AbrSimulator.Trace trace = new AbrSimulator.Trace(
+                new long[]{1000, 1000}, new long[]{1000000, 0});
+
+        assertEquals(1000, trace.transferMs(0, 125000), 0.001);
+        // Half a second of data, the idle second, then the rest after wrapping.
+        assertEquals(2000, trace.transferMs(500, 125000), 0.001);
+    }
+
+    @Test
+    public void deadTraceNeverFinishes() {
+        AbrSimulator.Trace trace = new AbrSimulator.Trace(new long[]{1000}, new long[]{0});
+
+        assertTrue(Double.isInfinite(trace.transferMs(0, 1)));
+    }
+
+    @Test
+    public void parsesTrace() throws IOException {
+        AbrSimulator.Trace trace = AbrSimulator.Trace.parse(new StringReader(
+                "# duration rate\n\n1000 1000000\n1000\t2000000\n"));
+
+        assertEquals(1500, trace.transferMs(0, 250000), 0.001);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadTraceLine() throws IOException {
+        AbrSimulator.Trace.parse(new StringReader("1000 fast\n"));
+    }
+
+    private static AbrSimulator.Trace constant(long bitsPerSecond) {
+        return new AbrSimulator.Trace(new long[]{1000}, new long[]{bitsPerSecond});
+    }
+
+    private static AbrSimulator.Result run(AbrSimulator.Trace trace, int segments) {
+        AbrSimulator simulator = new AbrSimulator(BANDWIDTHS, SEGMENT_MS, segments);
+        return simulator.run(trace, new AbrPolicy(), new ThroughputEstimator(1000000));
+    }
+}
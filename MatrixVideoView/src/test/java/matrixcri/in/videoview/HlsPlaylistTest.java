@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HlsPlaylistTest {
+    static final String BASE = "http://example.com/video/master.m3u8";
+
+    @Test
+    public void parsesMasterLowestBandwidthFirst() throws IOException {
+        String text = "#EXTM3U\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=3000000,RESOLUTION=1280x720\n"
+                + "hi/index.m3u8\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=400000\n"
+                + "http://cdn.example.com/lo/index.m3u8\n";
+        assertTrue(HlsPlaylist.isMaster(text));
+        assertFalse(HlsPlaylist.hasRenditions(text));
+
+        List<HlsPlaylist.Variant> variants = HlsPlaylist.parseMaster(text, BASE);
+        assertEquals(2, variants.size());
+        assertEquals(400000, variants.get(0).bandwidth);
+        assertEquals("http://cdn.example.com/lo/index.m3u8", variants.get(0).uri);
+        assertEquals(0, variants.get(0).width);
+        assertEquals(3000000, variants.get(1).bandwidth);
+        assertEquals("http://example.com/video/hi/index.m3u8", variants.get(1).uri);
+        assertEquals(1280, variants.get(1).width);
+        assertEquals(720, variants.get(1).height);
+    }
+
+    @Test
+    public void parsesMediaSegmentsAndHeader() throws IOException {
+        String text = "#EXTM3U\n"
+                + "#EXT-X-TARGETDURATION:4\n"
+                + "#EXT-X-MEDIA-SEQUENCE:7\n"
+                + "#EXTINF:4.0,\n"
+                + "seg0.ts\n"
+                + "#EXT-X-DISCONTINUITY\n"
+                + "#EXTINF:2.5,\n"
+                + "seg1.ts\n"
+                + "#EXT-X-ENDLIST\n";
+        assertFalse(HlsPlaylist.isMaster(text));
+
+        HlsPlaylist.Media media = HlsPlaylist.parseMedia(text, BASE);
+        assertEquals(2, media.header.size());
+        assertEquals("#EXT-X-MEDIA-SEQUENCE:7", media.header.get(1));
+        assertEquals(2, media.segments.size());
+        assertEquals(4000000, media.segments.get(0).durationUs);
+        assertEquals("http://example.com/video/seg0.ts", media.segments.get(0).uri);
+        assertEquals(2500000, media.segments.get(1).durationUs);
+        assertEquals("#EXT-X-DISCONTINUITY", media.segments.get(1).tags.get(0));
+        assertEquals(6500000, media.durationUs());
+        assertTrue(media.endList);
+        assertFalse(media.variantSpecific);
+    }
+
+    @Test
+    public void liveWithoutEndList() throws IOException {
+        HlsPlaylist.Media media = HlsPlaylist.parseMedia("#EXTM3U\n#EXTINF:4,\nseg0.ts\n", BASE);
+        assertFalse(media.endList);
+        assertEquals(1, media.segments.size());
+    }
+
+    @Test
+    public void keysMarkVariantSpecificAndResolveUri() throws IOException {
+        String text = "#EXTM3U\n"
+                + "#EXT-X-KEY:METHOD=AES-128,URI=\"key.bin\"\n"
+                + "#EXTINF:4,\n"
+                + "seg0.ts\n";
+        HlsPlaylist.Media media = HlsPlaylist.parseMedia(text, BASE);
+        assertTrue(media.variantSpecific);
+        assertEquals("#EXT-X-KEY:METHOD=AES-128,URI=\"http://example.com/video/key.bin\"", media.header.get(0));
+    }
+
+    @Test
+    public void byteRangesMarkVariantSpecific() throws IOException {
+        String text = "#EXTM3U\n#EXTINF:4,\n#EXT-X-BYTERANGE:1000@0\nall.ts\n";
+        assertTrue(HlsPlaylist.parseMedia(text, BASE).variantSpecific);
+    }
+
+    @Test
+    public void absolutizeRewritesEveryUri() throws IOException {
+        String text = "#EXTM3U\n"
+                + "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"a\",URI=\"audio/index.m3u8\"\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=400000,AUDIO=\"a\"\n"
+                + "lo/index.m3u8\n";
+        assertTrue(HlsPlaylist.hasRenditions(text));
+        assertEquals("#EXTM3U\n"
+                + "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"a\",URI=\"http://example.com/video/audio/index.m3u8\"\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=400000,AUDIO=\"a\"\n"
+                + "http://example.com/video/lo/index.m3u8\n", HlsPlaylist.absolutize(text, BASE));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadUri() throws IOException {
+        HlsPlaylist.resolve("not a url", "seg0.ts");
+    }
+}
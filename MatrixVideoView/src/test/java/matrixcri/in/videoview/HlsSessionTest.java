@@ -0,0 +1,139 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HlsSessionTest {
+    static final String BASE = "http://example.com/video/";
+    static final String INDEPENDENT = HlsSession.INDEPENDENT_SEGMENTS + "\n";
+
+    @Test
+    public void alignedVariantsAreSwitchable() throws IOException {
+        HlsSession session = session(master("avc1.4d401f", "avc1.4d401f"), true,
+                media("", 4, 4, 4), media("", 4, 4, 4));
+        assertTrue(session.isSwitchable());
+    }
+
+    @Test
+    public void smallDurationDifferencesStillAlign() throws IOException {
+        HlsSession session = session(master(null, null), true,
+                media("", 4, 4, 4), media("", 4.2, 3.8, 4));
+        assertTrue(session.isSwitchable());
+    }
+
+    @Test
+    public void misalignedSegmentsAreNotSwitchable() throws IOException {
+        assertFalse(session(master(null, null), true,
+                media("", 4, 4, 4), media("", 6, 2, 4)).isSwitchable());
+        assertFalse(session(master(null, null), true,
+                media("", 4, 4, 4), media("", 4, 4)).isSwitchable());
+    }
+
+    @Test
+    public void differentCodecsAreNotSwitchable() throws IOException {
+        assertFalse(session(master("avc1.4d401f", "hvc1.1.6.L93.B0"), true,
+                media("", 4, 4), media("", 4, 4)).isSwitchable());
+        assertFalse(session(master("avc1.4d401f", null), true,
+                media("", 4, 4), media("", 4, 4)).isSwitchable());
+    }
+
+    @Test
+    public void discontinuitiesHaveToLineUp() throws IOException {
+        String discontinuous = "#EXTINF:4,\na.ts\n#EXT-X-DISCONTINUITY\n#EXTINF:4,\nb.ts\n#EXT-X-ENDLIST\n";
+        String other = "#EXTINF:4,\na.ts\n#EXTINF:4,\nb.ts\n#EXT-X-DISCONTINUITY\n#EXT-X-ENDLIST\n";
+        assertTrue(session(master(null, null), true,
+                "#EXTM3U\n" + discontinuous, "#EXTM3U\n" + discontinuous).isSwitchable());
+        assertFalse(session(master(null, null), true,
+                "#EXTM3U\n" + discontinuous, "#EXTM3U\n" + media("", 4, 4).substring(8)).isSwitchable());
+        assertFalse(session(master(null, null), true,
+                "#EXTM3U\n" + discontinuous, "#EXTM3U\n" + other).isSwitchable());
+    }
+
+    @Test
+    public void needsIndependentSegments() throws IOException {
+        assertFalse(session(master(null, null), false,
+                media("", 4, 4), media("", 4, 4)).isSwitchable());
+        assertFalse(session(master(null, null), false,
+                media(INDEPENDENT, 4, 4), media("", 4, 4)).isSwitchable());
+        assertTrue(session(master(null, null), false,
+                media(INDEPENDENT, 4, 4), media(INDEPENDENT, 4, 4)).isSwitchable());
+    }
+
+    @Test
+    public void liveAndVariantSpecificAreNotSwitchable() throws IOException {
+        String live = "#EXTM3U\n#EXTINF:4,\na.ts\n#EXTINF:4,\nb.ts\n";
+        assertFalse(session(master(null, null), true, live, live).isSwitchable());
+        String keyed = "#EXTM3U\n#EXT-X-KEY:METHOD=AES-128,URI=\"k\"\n#EXTINF:4,\na.ts\n#EXT-X-ENDLIST\n";
+        assertFalse(session(master(null, null), true, keyed, keyed).isSwitchable());
+    }
+
+    @Test
+    public void differentMediaSequencesAreNotSwitchable() throws IOException {
+        assertFalse(session(master(null, null), true,
+                media("#EXT-X-MEDIA-SEQUENCE:1\n", 4, 4), media("#EXT-X-MEDIA-SEQUENCE:2\n", 4, 4)).isSwitchable());
+    }
+
+    @Test
+    public void pinnedSessionKeepsItsVariant() throws IOException {
+        HlsSession session = session(master(null, "mp4a.40.2"), true,
+                media("", 4, 4), media("", 4, 4));
+        assertFalse(session.isSwitchable());
+
+        AbrPolicy policy = new AbrPolicy();
+        assertEquals(BASE + "v1.m3u8", session.pinnedVariant(policy, 10000000));
+        assertEquals(BASE + "v1.m3u8", session.pinnedVariant(policy, 100000));
+        assertEquals(2, session.pinnedMedia().segments.size());
+    }
+
+    // Two variants, 400 kbit/s and 3 Mbit/s; a null codec leaves CODECS out.
+    private static String master(String lowCodecs, String highCodecs) {
+        return "#EXTM3U\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=400000" + codecs(lowCodecs) + "\nv0.m3u8\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=3000000" + codecs(highCodecs) + "\nv1.m3u8\n";
+    }
+
+    private static String codecs(String codecs) {
+        return codecs == null ? "" : ",CODECS=\"" + codecs + "\"";
+    }
+
+    private static String media(String header, double... durations) {
+        StringBuilder sb = new StringBuilder("#EXTM3U\n").append(header);
+        for (int i = 0; i < durations.length; i++) {
+            sb.append("#EXTINF:").append(durations[i]).append(",\nseg").append(i).append(".ts\n");
+        }
+        return sb.append("#EXT-X-ENDLIST\n").toString();
+    }
+
+    private static HlsSession session(String master, boolean independent, String... playlists)
+            throws IOException {
+        List<HlsPlaylist.Variant> variants = HlsPlaylist.parseMaster(master, BASE + "master.m3u8");
+        HlsPlaylist.Media[] media = new HlsPlaylist.Media[playlists.length];
+        for (int i = 0; i < media.length; i++) {
+            media[i] = HlsPlaylist.parseMedia(playlists[i], variants.get(i).uri);
+        }
+        return new HlsSession(variants, media, independent);
+    }
+}
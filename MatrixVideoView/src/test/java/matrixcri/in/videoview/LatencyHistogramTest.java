@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        assertEquals(0, mHistogram.getCount());
+        assertEquals(0, mHistogram.getMin());
+        assertEquals(0, mHistogram.getMean());
+        assertEquals(0, mHistogram.percentile(0.5));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (int i = 0; i < 10; i++) {
+            mHistogram.record(i);
+        }
+        assertEquals(4, mHistogram.percentile(0.5));
+        assertEquals(8, mHistogram.percentile(0.9));
+        assertEquals(9, mHistogram.percentile(0.99));
+        assertEquals(0, mHistogram.percentile(0));
+        assertEquals(45, mHistogram.getSum());
+    }
+
+    @Test
+    public void percentilesAreWithinBucketError() {
+        for (int i = 1; i <= 10000; i++) {
+            mHistogram.record(i);
+        }
+        assertClose(5000, mHistogram.percentile(0.5));
+        assertClose(9500, mHistogram.percentile(0.95));
+        assertClose(9900, mHistogram.percentile(0.99));
+        assertClose(10000, mHistogram.percentile(1.0));
+        assertEquals(1, mHistogram.getMin());
+        assertEquals(10000, mHistogram.getMax());
+        assertEquals(5000, mHistogram.getMean());
+    }
+
+    @Test
+    public void percentileIsClampedToRecordedRange() {
+        mHistogram.record(300);
+        assertEquals(300, mHistogram.percentile(0.01));
+        assertEquals(300, mHistogram.percentile(0.99));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        mHistogram.record(-5);
+        assertEquals(0, mHistogram.getMax());
+        assertEquals(0, mHistogram.percentile(0.5));
+    }
+
+    @Test
+    public void bucketMidpointsStayInTheirBucket() {
+        for (long value = 0; value < 1000000; value = value * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.valueOf(bucket)));
+        }
+    }
+
+    @Test
+    public void addMergesAndCopyReplaces() {
+        LatencyHistogram other = new LatencyHistogram();
+        mHistogram.record(10);
+        other.record(2000);
+        other.record(3000);
+
+        mHistogram.add(other);
+        assertEquals(3, mHistogram.getCount());
+        assertEquals(10, mHistogram.getMin());
+        assertEquals(3000, mHistogram.getMax());
+        assertEquals(5010, mHistogram.getSum());
+        assertEquals(2, other.getCount());
+
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.record(1);
+        other.copyTo(copy);
+        assertEquals(2, copy.getCount());
+        assertEquals(2000, copy.getMin());
+    }
+
+    @Test
+    public void addingBothWaysDoesNotDeadlock() throws InterruptedException {
+        final LatencyHistogram a = new LatencyHistogram();
+        final LatencyHistogram b = new LatencyHistogram();
+        Thread forward = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 20000; i++) {
+                    a.add(b);
+                    a.reset();
+                }
+            }
+        });
+        Thread backward = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 20000; i++) {
+                    b.record(i);
+                    b.add(a);
+                    b.reset();
+                }
+            }
+        });
+        forward.setDaemon(true);
+        backward.setDaemon(true);
+        forward.start();
+        backward.start();
+        forward.join(10000);
+        backward.join(10000);
+        assertFalse(forward.isAlive() || backward.isAlive());
+    }
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue("expected about " + expected + " got " + actual,
+                Math.abs(actual - expected) <= expected * 0.07);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times building the keyframe index of an hour of 25 fps video with a
+ * keyframe every two seconds, and snapping seeks onto it. Prints the
+ * figures; ignored in the normal test run, so run it by hand.
+ */
+@Ignore("Benchmark")
+public class Mp4IndexBenchmark {
+    private static final int SAMPLES = 90000;
+    private static final int KEY_INTERVAL = 50;
+    private static final int BUILDS = 20;
+    private static final int SNAPS = 1000000;
+
+    private Mp4IndexTest.ArraySource mSource;
+
+    @Before
+    public void setUp() throws IOException {
+        mSource = new Mp4IndexTest.Movie(SAMPLES, KEY_INTERVAL, true).source();
+    }
+
+    @Test
+    public void build() throws IOException {
+        Mp4Index index = null;
+        for (int i = 0; i < BUILDS / 4; i++) {
+            index = Mp4Index.build(mSource);
+        }
+        mSource.reads = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < BUILDS; i++) {
+            index = Mp4Index.build(mSource);
+        }
+        long perBuild = (System.nanoTime() - start) / BUILDS / 1000000L;
+        int reads = mSource.reads / BUILDS;
+        System.out.println("Mp4Index build: " + perBuild + " ms, " + reads + " reads, "
+                + index.getKeyframeCount() + " keyframes");
+        assertEquals(SAMPLES / KEY_INTERVAL, index.getKeyframeCount());
+    }
+
+    @Test
+    public void snap() throws IOException {
+        Mp4Index index = Mp4Index.build(mSource);
+        int duration = index.getDurationMs();
+        long sink = 0;
+        for (int i = 0; i < SNAPS / 10; i++) {
+            sink += index.snap((int) (i * 7919L % duration), i % 3);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < SNAPS; i++) {
+            sink += index.snap((int) (i * 7919L % duration), i % 3);
+        }
+        long perSnap = (System.nanoTime() - start) / SNAPS;
+        System.out.println("Mp4Index snap: " + perSnap + " ns (" + (sink & 1) + ")");
+    }
+}
@@ -0,0 +1,328 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4IndexTest {
+    static final int SAMPLE_MS = 40;
+
+    @Test
+    public void indexesKeyframesFromSampleTables() throws IOException {
+        Movie movie = new Movie(100, 25, false);
+        Mp4Index index = Mp4Index.build(movie.source());
+
+        assertNotNull(index);
+        assertEquals(4, index.getKeyframeCount());
+        for (int i = 0; i < 4; i++) {
+            int sample = 1 + i * 25;
+            assertEquals(i * 25 * SAMPLE_MS, index.getKeyframeTime(i));
+            assertEquals(movie.offsetOf(sample), index.getKeyframeOffset(i));
+        }
+        assertEquals(100 * SAMPLE_MS, index.getDurationMs());
+        assertTrue(index.isFastStart());
+    }
+
+    @Test
+    public void readsSixtyFourBitChunkOffsets() throws IOException {
+        Movie movie = new Movie(100, 10, true);
+        Mp4Index index = Mp4Index.build(movie.source());
+
+        assertEquals(10, index.getKeyframeCount());
+        for (int i = 0; i < 10; i++) {
+            long offset = index.getKeyframeOffset(i);
+            assertTrue(offset > 0xffffffffL);
+            assertEquals(movie.offsetOf(1 + i * 10), offset);
+        }
+    }
+
+    @Test
+    public void reportsTrailingMoov() throws IOException {
+        Movie movie = new Movie(60, 30, false);
+        movie.moovLast = true;
+        Mp4Index index = Mp4Index.build(movie.source());
+
+        assertFalse(index.isFastStart());
+        assertEquals(movie.moovOffset(), index.getMoovOffset());
+        assertEquals(movie.offsetOf(31), index.getKeyframeOffset(1));
+    }
+
+    @Test
+    public void everySampleIsKeyframeWithoutStss() throws IOException {
+        Movie movie = new Movie(12, 0, false);
+        Mp4Index index = Mp4Index.build(movie.source());
+
+        assertEquals(12, index.getKeyframeCount());
+        assertEquals(11 * SAMPLE_MS, index.getKeyframeTime(11));
+        assertEquals(movie.offsetOf(12), index.getKeyframeOffset(11));
+    }
+
+    @Test
+    public void uniformSampleSizes() throws IOException {
+        Movie movie = new Movie(50, 7, false);
+        movie.uniformSize = 500;
+        Mp4Index index = Mp4Index.build(movie.source());
+
+        assertEquals(8, index.getKeyframeCount());
+        assertEquals(movie.offsetOf(50), index.getKeyframeOffset(7));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        assertNull(Mp4Index.build(new ArraySource("#EXTM3U\n#EXT-X-ENDLIST\n".getBytes("UTF-8"))));
+        Movie audio = new Movie(10, 0, false);
+        audio.handler = "soun";
+        assertNull(Mp4Index.build(audio.source()));
+    }
+
+    @Test
+    public void snapModes() {
+        Mp4Index index = index(1000, 2000, 4000);
+
+        assertEquals(2000, index.snap(2900, Mp4Index.SNAP_PREVIOUS));
+        assertEquals(4000, index.snap(2100, Mp4Index.SNAP_NEXT));
+        assertEquals(2000, index.snap(2900, Mp4Index.SNAP_NEAREST));
+        assertEquals(4000, index.snap(3100, Mp4Index.SNAP_NEAREST));
+        assertEquals(2900, index.snap(2900, Mp4Index.SNAP_OFF));
+    }
+
+    @Test
+    public void snapOnKeyframeAndAtTies() {
+        Mp4Index index = index(1000, 2000, 4000);
+
+        assertEquals(2000, index.snap(2000, Mp4Index.SNAP_PREVIOUS));
+        assertEquals(2000, index.snap(2000, Mp4Index.SNAP_NEXT));
+        assertEquals(2000, index.snap(2000, Mp4Index.SNAP_NEAREST));
+        // Halfway between two keyframes goes back.
+        assertEquals(2000, index.snap(3000, Mp4Index.SNAP_NEAREST));
+    }
+
+    @Test
+    public void snapOutsideKeyframes() {
+        Mp4Index index = index(1000, 2000, 4000);
+
+        for (int mode = Mp4Index.SNAP_NEAREST; mode <= Mp4Index.SNAP_NEXT; mode++) {
+            assertEquals(1000, index.snap(0, mode));
+            assertEquals(1000, index.snap(-5, mode));
+        }
+        assertEquals(4000, index.snap(9000, Mp4Index.SNAP_PREVIOUS));
+        assertEquals(4000, index.snap(9000, Mp4Index.SNAP_NEAREST));
+        // Nothing to move forward to past the last keyframe.
+        assertEquals(9000, index.snap(9000, Mp4Index.SNAP_NEXT));
+    }
+
+    @Test
+    public void snapWithoutKeyframes() {
+        Mp4Index empty = index();
+
+        assertEquals(1234, empty.snap(1234, Mp4Index.SNAP_NEAREST));
+        assertEquals(1234, empty.snap(1234, Mp4Index.SNAP_NEXT));
+        assertEquals(0, empty.floorKeyframe(1234));
+    }
+
+    @Test
+    public void floorKeyframeTakesLastOfEqualTimes() {
+        Mp4Index index = index(0, 1000, 1000, 1000, 3000);
+
+        assertEquals(3, index.floorKeyframe(1000));
+        assertEquals(3, index.floorKeyframe(2999));
+        assertEquals(0, index.floorKeyframe(999));
+        assertEquals(4, index.floorKeyframe(3000));
+    }
+
+    private static Mp4Index index(int... timesMs) {
+        long[] offsets = new long[timesMs.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = 1000L * i;
+        }
+        return new Mp4Index(timesMs, offsets, 10000, 0, 0, -1);
+    }
+
+    /**
+     * A video-only MP4 with one sample every {@link #SAMPLE_MS} and a keyframe
+     * every {@code keyInterval} samples (no stss if 0). Chunks hold three
+     * samples, then seven from the fifth chunk on, so stsc has two runs. The
+     * media data itself is left out; the index only reads the tables.
+     */
+    static class Movie {
+        final int samples;
+        final int keyInterval;
+        final boolean co64;
+        int uniformSize;
+        boolean moovLast;
+        String handler = "vide";
+
+        Movie(int samples, int keyInterval, boolean co64) {
+            this.samples = samples;
+            this.keyInterval = keyInterval;
+            this.co64 = co64;
+        }
+
+        int sizeOf(int sample) {
+            return uniformSize != 0 ? uniformSize : 200 + sample * 37 % 300;
+        }
+
+        long mediaStart() {
+            return co64 ? (5L << 30) : 1 << 20;
+        }
+
+        long offsetOf(int sample) {
+            long offset = mediaStart();
+            for (int s = 1; s < sample; s++) {
+                offset += sizeOf(s);
+            }
+            return offset;
+        }
+
+        long moovOffset() throws IOException {
+            return moovLast ? ftyp().length + 8 : ftyp().length;
+        }
+
+        ArraySource source() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(ftyp());
+            byte[] mdat = box("mdat");
+            if (moovLast) {
+                out.write(mdat);
+            }
+            out.write(moov());
+            if (!moovLast) {
+                out.write(mdat);
+            }
+            return new ArraySource(out.toByteArray());
+        }
+
+        private byte[] ftyp() throws IOException {
+            Table t = new Table();
+            t.out.writeBytes("isom");
+            t.out.writeInt(512);
+            t.out.writeBytes("isommp41");
+            return box("ftyp", t.bytes());
+        }
+
+        private byte[] moov() throws IOException {
+            Table mvhd = new Table(0, 0, 0, 1000, samples * SAMPLE_MS);
+            Table mdhd = new Table(0, 0, 0, 1000, samples * SAMPLE_MS, 0);
+            Table hdlr = new Table(0, 0);
+            hdlr.out.writeBytes(handler);
+            hdlr.out.write(new byte[13]);
+            Table stts = new Table(0, 1, samples, SAMPLE_MS);
+            Table stsc = new Table(0, 2, 1, 3, 1, 5, 7, 1);
+            Table stsz = new Table(0, uniformSize, samples);
+            if (uniformSize == 0) {
+                for (int s = 1; s <= samples; s++) {
+                    stsz.out.writeInt(sizeOf(s));
+                }
+            }
+            int chunks = 0;
+            for (int sample = 1; sample <= samples; sample += chunks < 5 ? 3 : 7) {
+                chunks++;
+            }
+            Table stco = new Table(0, chunks);
+            for (int chunk = 1, sample = 1; chunk <= chunks; sample += chunk < 5 ? 3 : 7, chunk++) {
+                if (co64) {
+                    stco.out.writeLong(offsetOf(sample));
+                } else {
+                    stco.out.writeInt((int) offsetOf(sample));
+                }
+            }
+            byte[] offsets = stco.bytes();
+
+            byte[] stbl;
+            if (keyInterval > 0) {
+                Table stss = new Table(0, (samples + keyInterval - 1) / keyInterval);
+                for (int s = 1; s <= samples; s += keyInterval) {
+                    stss.out.writeInt(s);
+                }
+                stbl = box("stbl", box("stts", stts.bytes()), box("stss", stss.bytes()),
+                        box("stsc", stsc.bytes()), box("stsz", stsz.bytes()), box(co64 ? "co64" : "stco", offsets));
+            } else {
+                stbl = box("stbl", box("stts", stts.bytes()), box("stsc", stsc.bytes()),
+                        box("stsz", stsz.bytes()), box(co64 ? "co64" : "stco", offsets));
+            }
+            byte[] mdia = box("mdia", box("mdhd", mdhd.bytes()), box("hdlr", hdlr.bytes()), box("minf", stbl));
+            return box("moov", box("mvhd", mvhd.bytes()), box("trak", mdia));
+        }
+    }
+
+    static byte[] box(String type, byte[]... children) throws IOException {
+        int size = 8;
+        for (byte[] child : children) {
+            size += child.length;
+        }
+        Table t = new Table(size);
+        t.out.writeBytes(type);
+        for (byte[] child : children) {
+            t.out.write(child);
+        }
+        return t.bytes();
+    }
+
+    /** Big-endian words, with room to append more. */
+    static class Table {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        Table(int... words) throws IOException {
+            for (int word : words) {
+                out.writeInt(word);
+            }
+        }
+
+        byte[] bytes() throws IOException {
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    static class ArraySource implements ByteSource {
+        private final byte[] mData;
+        int reads;
+
+        ArraySource(byte[] data) {
+            mData = data;
+        }
+
+        public long length() {
+            return mData.length;
+        }
+
+        public int read(long position, byte[] buffer, int offset, int length) {
+            reads++;
+            if (position >= mData.length) {
+                return -1;
+            }
+            int n = (int) Math.min(length, mData.length - position);
+            System.arraycopy(mData, (int) position, buffer, offset, n);
+            return n;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeekQueueTest {
+    private final SeekQueue mSeeks = new SeekQueue();
+
+    @Test
+    public void idleSeekIsIssuedAtOnce() {
+        assertTrue(mSeeks.request(1000, PlaybackEngine.SEEK_PRECISE));
+        mSeeks.issued(PlaybackEngine.SEEK_PRECISE, 50);
+
+        assertTrue(mSeeks.isInFlight());
+        assertEquals(50, mSeeks.getIssuedAt());
+        assertEquals(PlaybackEngine.SEEK_PRECISE, mSeeks.getInFlightMode());
+    }
+
+    @Test
+    public void seeksInFlightCoalesceToTheLast() {
+        mSeeks.issued(PlaybackEngine.SEEK_PRECISE, 0);
+
+        assertFalse(mSeeks.request(2000, PlaybackEngine.SEEK_PRECISE));
+        assertFalse(mSeeks.request(3000, PlaybackEngine.SEEK_PRECISE));
+        assertFalse(mSeeks.request(4000, PlaybackEngine.SEEK_FAST));
+        assertEquals(2, mSeeks.getCoalescedCount());
+
+        assertEquals(4000, mSeeks.finish());
+        assertEquals(PlaybackEngine.SEEK_FAST, mSeeks.getPendingMode());
+        assertFalse(mSeeks.isInFlight());
+        assertEquals(-1, mSeeks.finish());
+    }
+
+    @Test
+    public void finishWithoutPendingSeekGoesIdle() {
+        mSeeks.issued(PlaybackEngine.SEEK_FAST, 0);
+
+        assertEquals(-1, mSeeks.finish());
+        assertFalse(mSeeks.isInFlight());
+        assertTrue(mSeeks.request(500, PlaybackEngine.SEEK_FAST));
+        assertEquals(0, mSeeks.getCoalescedCount());
+    }
+
+    @Test
+    public void timeoutOnlyAppliesToTheSeekInFlight() {
+        int first = mSeeks.issued(PlaybackEngine.SEEK_PRECISE, 0);
+        assertTrue(mSeeks.isTimedOut(first));
+
+        mSeeks.request(2000, PlaybackEngine.SEEK_PRECISE);
+        assertEquals(2000, mSeeks.finish());
+        int second = mSeeks.issued(PlaybackEngine.SEEK_PRECISE, 100);
+        assertFalse(mSeeks.isTimedOut(first));
+        assertTrue(mSeeks.isTimedOut(second));
+
+        mSeeks.finish();
+        assertFalse(mSeeks.isTimedOut(second));
+    }
+
+    @Test
+    public void timedOutSeekReleasesTheQueuedOne() {
+        int serial = mSeeks.issued(PlaybackEngine.SEEK_PRECISE, 0);
+        mSeeks.request(7000, PlaybackEngine.SEEK_PRECISE);
+
+        assertTrue(mSeeks.isTimedOut(serial));
+        assertEquals(7000, mSeeks.finish());
+    }
+
+    @Test
+    public void clearDropsPendingSeek() {
+        mSeeks.issued(PlaybackEngine.SEEK_PRECISE, 0);
+        mSeeks.request(2000, PlaybackEngine.SEEK_PRECISE);
+        mSeeks.clear();
+
+        assertFalse(mSeeks.isInFlight());
+        assertEquals(-1, mSeeks.finish());
+        assertTrue(mSeeks.request(3000, PlaybackEngine.SEEK_PRECISE));
+    }
+}
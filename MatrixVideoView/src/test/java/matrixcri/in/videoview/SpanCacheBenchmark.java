@@ -0,0 +1,107 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Times the lookup path the proxy takes per request: hits with a full span
+ * list, and misses after the table has seen a lot of removals. Prints the
+ * figures; ignored in the normal test run, so run it by hand.
+ */
+@Ignore("Benchmark")
+public class SpanCacheBenchmark {
+    private static final int ENTRIES = 512;
+    private static final int MAX_ENTRIES = 2048;
+    private static final int LOOKUPS = 200000;
+
+    private File mDir;
+    private SpanCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("spanbench", "");
+        mDir.delete();
+        mCache = new SpanCache(mDir, 64L << 30, MAX_ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            mCache.setTotalLength(url(i), 1L << 30);
+        }
+        for (int i = 0; i < 64; i++) {
+            for (int span = 0; span < 16; span++) {
+                mCache.write(url(i), span * (64L << 20), ByteBuffer.wrap(new byte[16]));
+            }
+        }
+        // Churn the rest of the table the way eviction does.
+        for (int round = 0; round < 8; round++) {
+            for (int i = 0; i < MAX_ENTRIES - ENTRIES; i++) {
+                mCache.setTotalLength("http://churn/" + round + "/" + i, 1);
+            }
+            for (int i = 0; i < MAX_ENTRIES - ENTRIES; i++) {
+                mCache.remove("http://churn/" + round + "/" + i);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mCache.close();
+        SpanCacheTest.deleteAll(mDir);
+    }
+
+    @Test
+    public void hitLookup() {
+        long sink = 0;
+        for (int i = 0; i < LOOKUPS / 10; i++) {
+            sink += mCache.contiguousLength(url(i & 63), (i & 15) * (64L << 20) + 4);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            sink += mCache.contiguousLength(url(i & 63), (i & 15) * (64L << 20) + 4);
+        }
+        report("hit", start, sink);
+    }
+
+    @Test
+    public void missLookup() {
+        long sink = 0;
+        for (int i = 0; i < LOOKUPS / 10; i++) {
+            sink += mCache.totalLength("http://absent/" + (i & 1023));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            sink += mCache.totalLength("http://absent/" + (i & 1023));
+        }
+        report("miss", start, sink);
+    }
+
+    private static void report(String name, long start, long sink) {
+        long perLookup = (System.nanoTime() - start) / LOOKUPS;
+        System.out.println("SpanCache " + name + " lookup: " + perLookup + " ns (" + (sink & 1) + ")");
+    }
+
+    private static String url(int i) {
+        return "http://cdn.example.com/videos/" + i + ".mp4";
+    }
+}
@@ -0,0 +1,157 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpanCacheTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("spancache", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(mDir);
+    }
+
+    @Test
+    public void readsBackWrittenSpans() throws IOException {
+        SpanCache cache = new SpanCache(mDir, 1 << 20);
+        cache.write("http://a/v.mp4", 100, ByteBuffer.wrap(bytes(50, 1)));
+        cache.write("http://a/v.mp4", 150, ByteBuffer.wrap(bytes(50, 51)));
+
+        assertEquals(100, cache.contiguousLength("http://a/v.mp4", 100));
+        assertEquals(0, cache.contiguousLength("http://a/v.mp4", 0));
+        assertEquals(100, cache.nextCachedOffset("http://a/v.mp4", 0));
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(100, cache.read("http://a/v.mp4", 100, dst));
+        assertArrayEquals(bytes(100, 1), dst.array());
+        cache.close();
+    }
+
+    @Test
+    public void droppedSpansStillCountTowardQuota() throws IOException {
+        SpanCache cache = new SpanCache(mDir, 1 << 20);
+        long written = 0;
+        // More disjoint spans than an entry can index, so some are dropped.
+        for (int i = 0; i < 24; i++) {
+            written += cache.write("http://a/v.mp4", i * 1000, ByteBuffer.wrap(bytes(10 + i, 0)));
+        }
+        assertEquals(written, cache.usedBytes());
+
+        cache.close();
+        SpanCache reopened = new SpanCache(mDir, 1 << 20);
+        assertEquals(written, reopened.usedBytes());
+        reopened.remove("http://a/v.mp4");
+        assertEquals(0, reopened.usedBytes());
+        reopened.close();
+    }
+
+    @Test
+    public void lookupsSurviveChurn() throws IOException {
+        SpanCache cache = new SpanCache(mDir, 1 << 20, 64);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 30; i++) {
+                cache.setTotalLength("http://a/" + round + "/" + i, i + 1);
+            }
+            for (int i = 0; i < 30; i++) {
+                if (round == 19 && i % 2 == 0) {
+                    continue;
+                }
+                cache.remove("http://a/" + round + "/" + i);
+            }
+        }
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i % 2 == 0 ? i + 1 : -1, cache.totalLength("http://a/19/" + i));
+        }
+        assertEquals(-1, cache.totalLength("http://a/missing"));
+        cache.close();
+    }
+
+    @Test
+    public void transferOutlivesChannelEviction() throws IOException {
+        final SpanCache cache = new SpanCache(mDir, 8 << 20);
+        final byte[] data = bytes(512 * 1024, 7);
+        cache.write("http://a/v.mp4", 0, ByteBuffer.wrap(data));
+        final ByteBuffer received = ByteBuffer.allocate(data.length);
+        long sent = cache.transferTo("http://a/v.mp4", 0, data.length, new WritableByteChannel() {
+            boolean mChurned;
+
+            public int write(ByteBuffer src) throws IOException {
+                if (!mChurned) {
+                    mChurned = true;
+                    // Opens more files than the cache keeps open, then drops the entry.
+                    for (int i = 0; i < 12; i++) {
+                        cache.write("http://b/" + i, 0, ByteBuffer.wrap(bytes(16, i)));
+                    }
+                    cache.remove("http://a/v.mp4");
+                }
+                int n = Math.min(src.remaining(), 8192);
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + n);
+                received.put(slice);
+                src.position(src.position() + n);
+                return n;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        });
+        assertEquals(data.length, sent);
+        assertArrayEquals(data, received.array());
+        assertTrue(cache.totalLength("http://a/v.mp4") < 0);
+        cache.close();
+    }
+
+    static byte[] bytes(int length, int seed) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (seed + i);
+        }
+        return b;
+    }
+
+    static void deleteAll(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        f.delete();
+    }
+}
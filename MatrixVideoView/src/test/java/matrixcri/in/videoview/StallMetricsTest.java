@@ -0,0 +1,133 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StallMetricsTest {
+    private final StallMetrics mMetrics = new StallMetrics();
+    private final StallMetrics.Snapshot mSnapshot = new StallMetrics.Snapshot();
+
+    @Before
+    public void setUp() {
+        StallMetrics.resetTotal();
+        mMetrics.beginSession();
+    }
+
+    @Test
+    public void stallAfterSeekIsASeekStall() {
+        mMetrics.onPlay();
+        mMetrics.onSeek();
+        mMetrics.onBufferingStart();
+        mMetrics.onBufferingEnd();
+        mMetrics.snapshot(mSnapshot);
+
+        assertEquals(1, mSnapshot.seekStallCount);
+        assertEquals(0, mSnapshot.stallCount);
+        assertEquals(1, mSnapshot.seekStalls.getCount());
+        assertEquals(0, mSnapshot.stalls.getCount());
+    }
+
+    @Test
+    public void stallWithoutSeekIsOrganic() throws InterruptedException {
+        mMetrics.onPlay();
+        mMetrics.onBufferingStart();
+        Thread.sleep(30);
+        mMetrics.onBufferingEnd();
+        mMetrics.onPause();
+        mMetrics.snapshot(mSnapshot);
+
+        assertEquals(1, mSnapshot.stallCount);
+        assertEquals(0, mSnapshot.seekStallCount);
+        assertTrue(mSnapshot.stallTimeMs >= 30);
+        assertTrue(mSnapshot.watchTimeMs >= mSnapshot.stallTimeMs);
+        assertEquals(mSnapshot.stallTimeMs, mSnapshot.stalls.getMax());
+    }
+
+    @Test
+    public void bufferingWhileNotPlayingIsNotAStall() {
+        mMetrics.onBufferingStart();
+        mMetrics.onBufferingEnd();
+        mMetrics.snapshot(mSnapshot);
+
+        assertEquals(0, mSnapshot.stallCount);
+        assertEquals(0, mSnapshot.seekStallCount);
+    }
+
+    @Test
+    public void repeatedBufferingStartIsOneStall() {
+        mMetrics.onPlay();
+        mMetrics.onBufferingStart();
+        mMetrics.onBufferingStart();
+        mMetrics.onBufferingEnd();
+        mMetrics.onBufferingEnd();
+        mMetrics.snapshot(mSnapshot);
+
+        assertEquals(1, mSnapshot.stallCount);
+    }
+
+    @Test
+    public void snapshotIncludesStallInProgress() throws InterruptedException {
+        mMetrics.onPlay();
+        mMetrics.onBufferingStart();
+        Thread.sleep(20);
+        mMetrics.snapshot(mSnapshot);
+
+        assertEquals(0, mSnapshot.stallCount);
+        assertTrue(mSnapshot.stallTimeMs >= 20);
+        assertTrue(mSnapshot.watchTimeMs >= 20);
+    }
+
+    @Test
+    public void finishedSessionsAreTotalled() {
+        mMetrics.onPlay();
+        mMetrics.onBufferingStart();
+        mMetrics.onBufferingEnd();
+        mMetrics.beginSession();
+        mMetrics.onPlay();
+        mMetrics.onSeek();
+        mMetrics.onBufferingStart();
+        mMetrics.endSession();
+        mMetrics.endSession();
+
+        StallMetrics.snapshotTotal(mSnapshot);
+        assertEquals(2, mSnapshot.sessions);
+        assertEquals(1, mSnapshot.stallCount);
+        assertEquals(1, mSnapshot.seekStallCount);
+    }
+
+    @Test
+    public void emptySessionIsNotTotalled() {
+        mMetrics.endSession();
+
+        StallMetrics.snapshotTotal(mSnapshot);
+        assertEquals(0, mSnapshot.sessions);
+    }
+
+    @Test
+    public void rebufferRatio() {
+        assertEquals(0f, mSnapshot.getRebufferRatio(), 0);
+        mSnapshot.stallTimeMs = 500;
+        mSnapshot.watchTimeMs = 10000;
+        assertEquals(0.05f, mSnapshot.getRebufferRatio(), 0.0001);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StartupMetricsTest {
+    static final long ORIGIN = 5000L * 1000000L;
+
+    private final StartupMetrics mMetrics = new StartupMetrics();
+    private int mCompleted;
+
+    @Before
+    public void setUp() {
+        StartupMetrics.resetAggregate();
+        mMetrics.setListener(new StartupMetrics.Listener() {
+            public void onStartupComplete(StartupMetrics metrics) {
+                mCompleted++;
+            }
+        });
+    }
+
+    @Test
+    public void noPhasesBeforeFirstSession() {
+        assertEquals(-1, mMetrics.getPhaseMillis(StartupMetrics.PHASE_SET_URI));
+        assertEquals(-1, mMetrics.getPhaseMillis(StartupMetrics.PHASE_FIRST_FRAME));
+
+        mMetrics.begin(ORIGIN);
+        mMetrics.mark(StartupMetrics.PHASE_PREPARED, at(100));
+        assertEquals(-1, mMetrics.getPhaseMillis(StartupMetrics.PHASE_PREPARED));
+    }
+
+    @Test
+    public void phasesAreMeasuredFromSetVideoUri() {
+        mMetrics.begin(ORIGIN);
+        mMetrics.mark(StartupMetrics.PHASE_SURFACE_READY, at(10));
+        mMetrics.mark(StartupMetrics.PHASE_PREPARE_ISSUED, at(12));
+        mMetrics.mark(StartupMetrics.PHASE_PREPARED, at(150));
+        mMetrics.mark(StartupMetrics.PHASE_START, at(151));
+        mMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME, at(300));
+
+        assertEquals(0, mMetrics.getPhaseMillis(StartupMetrics.PHASE_SET_URI));
+        assertEquals(10, mMetrics.getPhaseMillis(StartupMetrics.PHASE_SURFACE_READY));
+        assertEquals(12, mMetrics.getPhaseMillis(StartupMetrics.PHASE_PREPARE_ISSUED));
+        assertEquals(150, mMetrics.getPhaseMillis(StartupMetrics.PHASE_PREPARED));
+        assertEquals(151, mMetrics.getPhaseMillis(StartupMetrics.PHASE_START));
+        assertEquals(300, mMetrics.getPhaseMillis(StartupMetrics.PHASE_FIRST_FRAME));
+        assertEquals(1, mCompleted);
+    }
+
+    @Test
+    public void missingPhaseEndsWithThePreviousOne() {
+        mMetrics.begin(ORIGIN);
+        mMetrics.mark(StartupMetrics.PHASE_PREPARE_ISSUED, at(5));
+        mMetrics.mark(StartupMetrics.PHASE_PREPARED, at(80));
+        mMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME, at(120));
+
+        assertEquals(0, mMetrics.getPhaseMillis(StartupMetrics.PHASE_SURFACE_READY));
+        assertEquals(80, mMetrics.getPhaseMillis(StartupMetrics.PHASE_START));
+        assertEquals(120, mMetrics.getPhaseMillis(StartupMetrics.PHASE_FIRST_FRAME));
+    }
+
+    @Test
+    public void firstMarkOfAPhaseWins() {
+        mMetrics.begin(ORIGIN);
+        mMetrics.mark(StartupMetrics.PHASE_PREPARED, at(40));
+        mMetrics.mark(StartupMetrics.PHASE_PREPARED, at(90));
+        mMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME, at(100));
+        mMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME, at(200));
+
+        assertEquals(40, mMetrics.getPhaseMillis(StartupMetrics.PHASE_PREPARED));
+        assertEquals(100, mMetrics.getPhaseMillis(StartupMetrics.PHASE_FIRST_FRAME));
+        assertEquals(1, mCompleted);
+    }
+
+    @Test
+    public void marksBeforeSetVideoUriCountAsZero() {
+        mMetrics.begin(ORIGIN);
+        mMetrics.mark(StartupMetrics.PHASE_SURFACE_READY, at(-50));
+        mMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME, at(60));
+
+        assertEquals(0, mMetrics.getPhaseMillis(StartupMetrics.PHASE_SURFACE_READY));
+    }
+
+    @Test
+    public void cancelledSessionIsNotReported() {
+        mMetrics.begin(ORIGIN);
+        mMetrics.mark(StartupMetrics.PHASE_PREPARED, at(40));
+        mMetrics.cancel();
+        mMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME, at(100));
+
+        assertEquals(-1, mMetrics.getPhaseMillis(StartupMetrics.PHASE_FIRST_FRAME));
+        assertEquals(0, mCompleted);
+        assertEquals(0, StartupMetrics.getAggregate(StartupMetrics.PHASE_FIRST_FRAME).getCount());
+    }
+
+    @Test
+    public void finishedSessionsAreAggregated() {
+        for (int i = 1; i <= 4; i++) {
+            mMetrics.begin(ORIGIN * i);
+            mMetrics.mark(StartupMetrics.PHASE_FIRST_FRAME, ORIGIN * i + i * 100 * 1000000L);
+        }
+
+        LatencyHistogram firstFrame = StartupMetrics.getAggregate(StartupMetrics.PHASE_FIRST_FRAME);
+        assertEquals(4, firstFrame.getCount());
+        assertEquals(100, firstFrame.getMin());
+        assertEquals(400, firstFrame.getMax());
+        assertEquals(0, StartupMetrics.getAggregate(StartupMetrics.PHASE_SET_URI).getCount());
+        assertEquals(400, StartupMetrics.percentile(StartupMetrics.PHASE_FIRST_FRAME, 1.0));
+        assertEquals(400, mMetrics.getPhaseMillis(StartupMetrics.PHASE_FIRST_FRAME));
+        assertEquals(0, mMetrics.getPhaseMillis(StartupMetrics.PHASE_SET_URI));
+    }
+
+    private static long at(long millis) {
+        return ORIGIN + millis * 1000000L;
+    }
+}
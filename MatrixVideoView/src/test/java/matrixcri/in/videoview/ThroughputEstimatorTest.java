@@ -0,0 +1,81 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThroughputEstimatorTest {
+    static final long DEFAULT = 1000000;
+
+    private final ThroughputEstimator mEstimator = new ThroughputEstimator(DEFAULT);
+
+    @Test
+    public void defaultUntilEnoughDownloadTime() {
+        mEstimator.addSample(62500, 100);
+        mEstimator.addSample(62500, 100);
+        assertEquals(DEFAULT, mEstimator.getEstimate());
+
+        mEstimator.addSample(250000, 400);
+        assertEquals(5000000, mEstimator.getEstimate(), 1);
+    }
+
+    @Test
+    public void ignoresSmallDownloads() {
+        mEstimator.addSample(1000, 1000);
+        assertEquals(0, mEstimator.getSampleCount());
+        assertEquals(DEFAULT, mEstimator.getEstimate());
+    }
+
+    @Test
+    public void steadyRateIsEstimatedExactly() {
+        for (int i = 0; i < 10; i++) {
+            mEstimator.addSample(1000000, 1000);
+        }
+        assertEquals(8000000, mEstimator.getEstimate(), 1);
+        assertEquals(10, mEstimator.getSampleCount());
+    }
+
+    @Test
+    public void dropsQuicklyAndRisesSlowly() {
+        for (int i = 0; i < 20; i++) {
+            mEstimator.addSample(1000000, 1000);
+        }
+        mEstimator.addSample(250000, 1000);
+        long dropped = mEstimator.getEstimate();
+        assertTrue(dropped < 6500000);
+
+        mEstimator.reset();
+        for (int i = 0; i < 20; i++) {
+            mEstimator.addSample(1000000, 1000);
+        }
+        mEstimator.addSample(2000000, 1000);
+        long raised = mEstimator.getEstimate();
+        assertTrue(raised > 8000000 && raised < 9000000);
+    }
+
+    @Test
+    public void resetReturnsToDefault() {
+        mEstimator.addSample(1000000, 1000);
+        mEstimator.reset();
+        assertEquals(DEFAULT, mEstimator.getEstimate());
+        assertEquals(0, mEstimator.getSampleCount());
+    }
+}
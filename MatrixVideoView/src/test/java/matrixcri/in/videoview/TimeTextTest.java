@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2015 Author <dictfb#gmail.com>
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package matrixcri.in.videoview;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeTextTest {
+
+    @Test
+    public void formatsMinutesAndSeconds() {
+        assertEquals("00:00", format(0));
+        assertEquals("00:09", format(9));
+        assertEquals("01:00", format(60));
+        assertEquals("59:59", format(3599));
+    }
+
+    @Test
+    public void formatsHours() {
+        assertEquals("1:00:00", format(3600));
+        assertEquals("10:02:03", format(36123));
+        assertEquals("596:31:23", format(Integer.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void clampsNegativeTimes() {
+        TimeText text = new TimeText();
+        assertTrue(text.set(-1500));
+        assertEquals("00:00", shown(text));
+        assertFalse(text.set(0));
+    }
+
+    @Test
+    public void skipsUnchangedSeconds() {
+        TimeText text = new TimeText();
+        assertTrue(text.set(1000));
+        assertFalse(text.set(1999));
+        assertTrue(text.set(2000));
+        assertEquals("00:02", shown(text));
+        text.invalidate();
+        assertTrue(text.set(2000));
+    }
+
+    @Test
+    public void repeatedUpdatesDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        TimeText text = new TimeText();
+        long id = Thread.currentThread().getId();
+        // Warm up so class loading and compilation are not measured.
+        tick(text, 200000);
+        long before = threads.getThreadAllocatedBytes(id);
+        tick(text, 1000000);
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        // The measuring call itself may allocate a little; a String per tick would be megabytes.
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    private static void tick(TimeText text, int count) {
+        for (int i = 0; i < count; i++) {
+            text.set(i * 250);
+        }
+    }
+
+    private static String format(int seconds) {
+        char[] out = new char[16];
+        return new String(out, 0, TimeText.format(seconds, out));
+    }
+
+    private static String shown(TimeText text) {
+        return new String(text.getChars(), 0, text.getLength());
+    }
+}